@@ -15,8 +15,24 @@ CREATE TABLE Reservations (
   day int
 );
 
-CREATE TABLE ReservationID (
-  rid INT PRIMARY KEY
+-- Each value reserves a block of reservation IDs, see ReservationIds
+CREATE SEQUENCE ReservationBlocks AS INT START WITH 0 INCREMENT BY 1;
+
+-- Flights after the second of an itinerary with more than two; the first two
+-- stay in Reservations.fid1 and fid2
+CREATE TABLE ReservationLegs (
+  rid int REFERENCES Reservations,
+  leg int, -- 3 for the third flight, and so on
+  fid int REFERENCES FLIGHTS,
+  PRIMARY KEY (rid, leg)
 );
 
-INSERT INTO ReservationID VALUES(1);
+-- Seats left per flight, filled from FLIGHTS here, so load FLIGHTS first.
+-- Bookings take a seat with a conditional update of the flight's row rather
+-- than counting its reservations; see SeatInventory
+CREATE TABLE FlightSeats (
+  fid int PRIMARY KEY REFERENCES FLIGHTS,
+  capacity int,
+  seats_left int
+);
+INSERT INTO FlightSeats SELECT fid, capacity, capacity FROM FLIGHTS;
@@ -0,0 +1,44 @@
+package edu.uw.cs;
+
+import java.util.*;
+
+/**
+ * Entry point of the benchmarks jar. Runs JMH with its usual options, writing
+ * results as JSON to jmh-result.json unless the arguments pick a result format
+ * or file.
+ */
+public class Benchmarks {
+  public static void main(String[] args) throws Exception {
+    List<String> jmhArgs = new ArrayList<>(Arrays.asList(args));
+    if (!jmhArgs.contains("-rf")) {
+      jmhArgs.add("-rf");
+      jmhArgs.add("json");
+    }
+    if (!jmhArgs.contains("-rff")) {
+      jmhArgs.add("-rff");
+      jmhArgs.add("jmh-result.json");
+    }
+    org.openjdk.jmh.Main.main(jmhArgs.toArray(new String[0]));
+  }
+
+  /**
+   * Configuration for a Query on the benchmark database: embedded H2 with
+   * synthetic flights, and the search cache off so searches do real work
+   */
+  static Properties config(boolean flightIndex) {
+    Properties configProps = new Properties();
+    configProps.setProperty("hw1.storage", "h2");
+    configProps.setProperty("hw1.h2.url", "jdbc:h2:mem:benchmarks;MODE=MSSQLServer;NON_KEYWORDS=DAY;DB_CLOSE_DELAY=-1");
+    configProps.setProperty("hw1.h2.synthetic_flights", "100000");
+    configProps.setProperty("hw1.flight_index", Boolean.toString(flightIndex));
+    configProps.setProperty("hw1.search_cache.max_entries", "0");
+    return configProps;
+  }
+
+  static Query open(boolean flightIndex) throws Exception {
+    Query q = new Query();
+    q.openConnection(config(flightIndex));
+    q.prepareStatements();
+    return q;
+  }
+}
@@ -0,0 +1,46 @@
+package edu.uw.cs;
+
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Parsing command lines, and running them through the command registry
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandBenchmark {
+  private static final String SEARCH = "search \"Seattle WA\" \"Chicago IL\" 1 5 10";
+
+  private final CommandParser parser = new CommandParser();
+  private Query q;
+
+  @Setup
+  public void open() throws Exception {
+    q = Benchmarks.open(true);
+  }
+
+  @TearDown
+  public void close() throws Exception {
+    q.closeConnection();
+  }
+
+  @Benchmark
+  public int parse() {
+    return parser.parse(SEARCH) + parser.intToken(5);
+  }
+
+  @Benchmark
+  public String executeUnknown() {
+    // parsing and the registry lookup, without a transaction
+    return FlightService.execute(q, "frobnicate 1 2 3");
+  }
+
+  @Benchmark
+  public String executeSearch() {
+    return FlightService.execute(q, SEARCH);
+  }
+}
@@ -0,0 +1,46 @@
+package edu.uw.cs;
+
+import java.util.*;
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * PBKDF2 on its own, and a whole login: a fresh session looking up the salt
+ * and hashing on the shared hasher
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LoginBenchmark {
+  private Properties configProps;
+  private byte[] salt;
+
+  @Setup
+  public void createUser() throws Exception {
+    configProps = Benchmarks.config(true);
+    Query q = Benchmarks.open(true);
+    q.transaction_createCustomer("login", "pw", 100);
+    q.closeConnection();
+    salt = new byte[PasswordHasher.SALT_LENGTH];
+    new Random(1).nextBytes(salt);
+  }
+
+  @Benchmark
+  public byte[] hash() {
+    return PasswordHasher.hash("pw", salt);
+  }
+
+  @Benchmark
+  public String login() throws Exception {
+    Query q = new Query();
+    q.openConnection(configProps);
+    try {
+      return q.transaction_login("login", "pw");
+    } finally {
+      q.closeConnection();
+    }
+  }
+}
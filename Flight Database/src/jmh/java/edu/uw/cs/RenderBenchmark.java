@@ -0,0 +1,65 @@
+package edu.uw.cs;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Sorting itineraries and rendering flights as text, without the database
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RenderBenchmark {
+  @Param({ "10", "1000" })
+  int size;
+
+  private List<Query.Itinerary> itineraries;
+  private final StringBuilder out = new StringBuilder();
+
+  @Setup
+  public void generate() {
+    Random random = new Random(344);
+    itineraries = new ArrayList<>();
+    for (int i = 0; i < size; i++) {
+      Query.Flight f1 = flight(random, 2 * i);
+      itineraries.add(random.nextBoolean() ? new Query.Itinerary(f1)
+          : new Query.Itinerary(f1, flight(random, 2 * i + 1)));
+    }
+  }
+
+  private static Query.Flight flight(Random random, int fid) {
+    String[] cities = SyntheticFlights.CITIES;
+    return new Query.Flight(fid, 1 + random.nextInt(SyntheticFlights.DAYS),
+        SyntheticFlights.CARRIERS[random.nextInt(SyntheticFlights.CARRIERS.length)],
+        Integer.toString(1 + random.nextInt(9999)), cities[random.nextInt(cities.length)],
+        cities[random.nextInt(cities.length)], 40 + random.nextInt(360), 1 + random.nextInt(20),
+        100 + random.nextInt(901));
+  }
+
+  @Benchmark
+  public List<Query.Itinerary> sort() {
+    List<Query.Itinerary> sorted = new ArrayList<>(itineraries);
+    Collections.sort(sorted);
+    return sorted;
+  }
+
+  @Benchmark
+  public String render() throws IOException {
+    StringBuilder sb = new StringBuilder();
+    Query.appendItineraries(sb, itineraries);
+    return sb.toString();
+  }
+
+  @Benchmark
+  public int renderInto() throws IOException {
+    // the reused buffer a server session renders into
+    out.setLength(0);
+    Query.appendItineraries(out, itineraries);
+    return out.length();
+  }
+}
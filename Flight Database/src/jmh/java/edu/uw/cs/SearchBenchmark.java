@@ -0,0 +1,45 @@
+package edu.uw.cs;
+
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Direct and one-hop searches for few and many itineraries, answered by the
+ * flight index and by SQL
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SearchBenchmark {
+  @Param({ "true", "false" })
+  boolean direct;
+
+  @Param({ "1", "100" })
+  int k;
+
+  @Param({ "true", "false" })
+  boolean flightIndex;
+
+  private Query q;
+  private int day;
+
+  @Setup
+  public void open() throws Exception {
+    q = Benchmarks.open(flightIndex);
+  }
+
+  @TearDown
+  public void close() throws Exception {
+    q.closeConnection();
+  }
+
+  @Benchmark
+  public String search() {
+    // a different day each time, so no single route's answer dominates
+    day = day % SyntheticFlights.DAYS + 1;
+    return q.transaction_search("Seattle WA", "Chicago IL", direct, day, k);
+  }
+}
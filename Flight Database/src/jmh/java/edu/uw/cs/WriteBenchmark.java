@@ -0,0 +1,61 @@
+package edu.uw.cs;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.*;
+
+/**
+ * Booking and paying. Each operation cancels what it booked, which gives back
+ * the seats and any payment, so the database stays the same from one call to
+ * the next.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WriteBenchmark {
+  private static final AtomicInteger users = new AtomicInteger();
+
+  private Query q;
+
+  @Setup
+  public void open() throws Exception {
+    q = Benchmarks.open(true);
+    int n = users.incrementAndGet();
+    String user = "writer" + n;
+    q.transaction_createCustomer(user, "pw", Integer.MAX_VALUE / 2);
+    q.transaction_login(user, "pw");
+    // a day per thread, so threads do not fill each other's flights
+    q.transaction_search("Seattle WA", "Chicago IL", true, 1 + n % SyntheticFlights.DAYS, 1);
+  }
+
+  @TearDown
+  public void close() throws Exception {
+    q.closeConnection();
+  }
+
+  @Benchmark
+  public void bookCancel(Blackhole bh) {
+    String booked = q.transaction_book(0);
+    bh.consume(booked);
+    bh.consume(q.transaction_cancel(reservationId(booked)));
+  }
+
+  @Benchmark
+  public void bookPayCancel(Blackhole bh) {
+    String booked = q.transaction_book(0);
+    int rid = reservationId(booked);
+    bh.consume(q.transaction_pay(rid));
+    bh.consume(q.transaction_cancel(rid));
+  }
+
+  private static int reservationId(String booked) {
+    if (!booked.startsWith("Booked flight(s), reservation ID: ")) {
+      throw new IllegalStateException(booked);
+    }
+    return Integer.parseInt(booked.substring(booked.lastIndexOf(' ') + 1).trim());
+  }
+}
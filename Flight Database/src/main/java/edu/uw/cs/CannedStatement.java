@@ -0,0 +1,13 @@
+package edu.uw.cs;
+
+/**
+ * The prepared statements a Query runs, for statement metrics. Names match
+ * the SQL constants in Query.
+ */
+enum CannedStatement {
+  CHECK_FLIGHT_CAPACITY, CLEAR_TABLES, RESET_ID, CREATE_USER, CHECK_USERNAME_EXISTS, GET_HASHSALT, GET_DIRECT,
+  GET_FLIGHT, GET_INDIRECT, GET_DIRECT_AFTER, GET_INDIRECT_AFTER, CHECK_DAY_RESERVED, BOOK_RESERVATION,
+  BOOK_RESERVATION_LEG, PAY_RESERVATION, DEBIT_BALANCE, GET_BALANCE, FIND_RESERVATIONS_ON_USERNAME,
+  FIND_RESERVATION_FIDS, CANCEL_RESERVATION, CANCEL_RESERVATION_LEGS, CREDIT_BALANCE,
+  TAKE_SEAT, GIVE_SEAT
+}
@@ -0,0 +1,153 @@
+package edu.uw.cs;
+
+import java.util.*;
+
+/**
+ * Splits a command line into tokens without copying it.
+ *
+ * A token is either text between double quotes, which may contain spaces, or
+ * a run of non-whitespace characters; a quote with no closing quote after it
+ * starts an ordinary token. Tokens are kept as offsets into the line, so
+ * comparing a token or reading it as an int allocates nothing. A parser is
+ * reused from one line to the next and is not thread-safe.
+ */
+class CommandParser {
+  private CharSequence line;
+  private int count;
+  private int[] starts = new int[8];
+  private int[] ends = new int[8];
+
+  /**
+   * Tokenizes {@code line}, replacing the previous line
+   *
+   * @return the number of tokens
+   */
+  int parse(CharSequence line) {
+    this.line = line;
+    count = 0;
+    int end = line.length();
+    int i = 0;
+    while (true) {
+      while (i < end && isWhitespace(line.charAt(i))) {
+        i++;
+      }
+      if (i == end) {
+        return count;
+      }
+      if (line.charAt(i) == '"') {
+        int close = indexOfQuote(i + 1, end);
+        if (close >= 0) {
+          add(i + 1, close);
+          i = close + 1;
+          continue;
+        }
+      }
+      int start = i;
+      while (i < end && !isWhitespace(line.charAt(i))) {
+        i++;
+      }
+      add(start, i);
+    }
+  }
+
+  /**
+   * Number of tokens in the current line
+   */
+  int count() {
+    return count;
+  }
+
+  /**
+   * Whether token {@code i} is exactly {@code s}
+   */
+  boolean tokenEquals(int i, String s) {
+    int start = starts[i];
+    int length = ends[i] - start;
+    if (length != s.length()) {
+      return false;
+    }
+    for (int k = 0; k < length; k++) {
+      if (line.charAt(start + k) != s.charAt(k)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Token {@code i} as a String
+   */
+  String token(int i) {
+    return line.subSequence(starts[i], ends[i]).toString();
+  }
+
+  /**
+   * Whether token {@code i} is a decimal int, with an optional sign, that
+   * {@link #intToken} can read
+   */
+  boolean isInt(int i) {
+    int k = starts[i];
+    int end = ends[i];
+    if (k < end && (line.charAt(k) == '-' || line.charAt(k) == '+')) {
+      k++;
+    }
+    if (k == end) {
+      return false;
+    }
+    boolean negative = line.charAt(starts[i]) == '-';
+    // accumulate negatively so Integer.MIN_VALUE fits
+    long value = 0;
+    for (; k < end; k++) {
+      char c = line.charAt(k);
+      if (c < '0' || c > '9') {
+        return false;
+      }
+      value = value * 10 - (c - '0');
+      if (value < Integer.MIN_VALUE) {
+        return false;
+      }
+    }
+    return negative || value != Integer.MIN_VALUE;
+  }
+
+  /**
+   * Token {@code i} as an int. Only valid if {@link #isInt} is true for it.
+   */
+  int intToken(int i) {
+    int k = starts[i];
+    int end = ends[i];
+    boolean negative = line.charAt(k) == '-';
+    if (negative || line.charAt(k) == '+') {
+      k++;
+    }
+    int value = 0;
+    for (; k < end; k++) {
+      value = value * 10 - (line.charAt(k) - '0');
+    }
+    return negative ? value : -value;
+  }
+
+  private void add(int start, int end) {
+    if (count == starts.length) {
+      starts = Arrays.copyOf(starts, count * 2);
+      ends = Arrays.copyOf(ends, count * 2);
+    }
+    starts[count] = start;
+    ends[count] = end;
+    count++;
+  }
+
+  private int indexOfQuote(int from, int end) {
+    for (int i = from; i < end; i++) {
+      if (line.charAt(i) == '"') {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  // The characters the \s regex class matches
+  private static boolean isWhitespace(char c) {
+    return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+  }
+}
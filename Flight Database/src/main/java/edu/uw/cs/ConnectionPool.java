@@ -0,0 +1,374 @@
+package edu.uw.cs;
+
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Bounded pool of physical database connections shared by every Query on one
+ * {@link Database}.
+ *
+ * Connections are created on demand up to {@code maxSize}, and {@code minIdle}
+ * of them are opened up front. A connection that sat idle for longer than
+ * {@code validateIdleMillis} is checked with {@link Connection#isValid} before
+ * it is handed out. Connections held for longer than {@code leakMillis} are
+ * reported with the thread that borrowed them, and with its stack when
+ * {@code leakStacks} is set; taking a stack on every borrow is too slow to
+ * leave on.
+ *
+ * Each pooled connection keeps its own prepared statements, so a Query only
+ * prepares a statement once per physical connection.
+ */
+class ConnectionPool {
+  // Seconds to wait for isValid
+  private static final int VALIDATION_TIMEOUT = 5;
+
+  private final String url;
+  private final int maxSize;
+  private final long borrowTimeoutMillis;
+  private final long validateIdleMillis;
+  private final long leakMillis;
+  private final boolean leakStacks;
+
+  private final BlockingDeque<PooledConnection> idle = new LinkedBlockingDeque<>();
+  private final Set<PooledConnection> borrowed = ConcurrentHashMap.newKeySet();
+  private final Semaphore permits;
+  private final ScheduledExecutorService leakDetector;
+  // Set by shutdown; no connection is handed out or kept after it
+  private volatile boolean shutDown;
+
+  // Metrics
+  private final AtomicLong borrows = new AtomicLong();
+  private final AtomicLong waits = new AtomicLong();
+  private final AtomicLong timeouts = new AtomicLong();
+  private final AtomicLong created = new AtomicLong();
+  private final AtomicLong closed = new AtomicLong();
+  private final AtomicLong validationFailures = new AtomicLong();
+  private final AtomicLong leaks = new AtomicLong();
+  private final AtomicLong borrowNanos = new AtomicLong();
+
+  ConnectionPool(String url, int maxSize, int minIdle, long borrowTimeoutMillis, long validateIdleMillis,
+      long leakMillis, boolean leakStacks) throws SQLException {
+    if (maxSize <= 0 || minIdle < 0 || minIdle > maxSize) {
+      throw new IllegalArgumentException("Bad pool size: max " + maxSize + ", min idle " + minIdle);
+    }
+    this.url = url;
+    this.maxSize = maxSize;
+    this.borrowTimeoutMillis = borrowTimeoutMillis;
+    this.validateIdleMillis = validateIdleMillis;
+    this.leakMillis = leakMillis;
+    this.leakStacks = leakStacks;
+    this.permits = new Semaphore(maxSize, true);
+
+    // Warm up; if a connection cannot be opened, close the ones that were
+    try {
+      for (int i = 0; i < minIdle; i++) {
+        idle.addLast(open());
+      }
+    } catch (SQLException | RuntimeException e) {
+      closeIdle();
+      throw e;
+    }
+
+    leakDetector = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread t = new Thread(r, "connection-leak-detector");
+      t.setDaemon(true);
+      return t;
+    });
+    if (leakMillis > 0) {
+      long period = Math.max(leakMillis / 2, 1000);
+      leakDetector.scheduleWithFixedDelay(this::detectLeaks, period, period, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Takes a connection from the pool, opening a new one if none is idle. Waits
+   * up to the borrow timeout when every connection is in use.
+   *
+   * @throws SQLException if no connection could be obtained in time, or the
+   *         pool is shut down
+   */
+  PooledConnection borrow() throws SQLException {
+    long start = System.nanoTime();
+    checkNotShutDown();
+    try {
+      if (!permits.tryAcquire()) {
+        waits.incrementAndGet();
+        if (!permits.tryAcquire(borrowTimeoutMillis, TimeUnit.MILLISECONDS)) {
+          timeouts.incrementAndGet();
+          throw new SQLException("Timed out waiting for a connection after " + borrowTimeoutMillis + " ms");
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new SQLException("Interrupted waiting for a connection", e);
+    }
+
+    try {
+      // shut down while this waited for a permit
+      checkNotShutDown();
+      PooledConnection pc;
+      while ((pc = idle.pollFirst()) != null) {
+        if (isUsable(pc)) {
+          break;
+        }
+        validationFailures.incrementAndGet();
+        discard(pc);
+      }
+      if (pc == null) {
+        pc = open();
+      }
+      pc.borrowedAt = System.currentTimeMillis();
+      if (leakMillis > 0) {
+        pc.borrower = Thread.currentThread().getName();
+        pc.borrowStack = leakStacks ? new Throwable("Connection borrowed by " + pc.borrower) : null;
+      }
+      pc.leakReported = false;
+      borrowed.add(pc);
+      borrows.incrementAndGet();
+      borrowNanos.addAndGet(System.nanoTime() - start);
+      return pc;
+    } catch (SQLException | RuntimeException e) {
+      permits.release();
+      throw e;
+    }
+  }
+
+  /**
+   * Returns a connection to the pool. Any transaction still open is rolled
+   * back first; a connection that cannot be rolled back, or comes back after
+   * {@link #shutdown}, is closed.
+   */
+  void release(PooledConnection pc) {
+    if (!borrowed.remove(pc)) {
+      return;
+    }
+    pc.borrower = null;
+    pc.borrowStack = null;
+    try {
+      pc.connection().rollback();
+      if (shutDown) {
+        discard(pc);
+        return;
+      }
+      pc.lastUsed = System.currentTimeMillis();
+      idle.addFirst(pc);
+      // shutdown may have emptied the idle list before this got on it
+      if (shutDown && idle.remove(pc)) {
+        discard(pc);
+      }
+    } catch (SQLException e) {
+      discard(pc);
+    } finally {
+      permits.release();
+    }
+  }
+
+  /**
+   * Closes every idle connection and stops the leak detector. Borrowed
+   * connections are closed when they are released, and later borrows fail.
+   */
+  void shutdown() {
+    shutDown = true;
+    leakDetector.shutdownNow();
+    closeIdle();
+  }
+
+  int maxSize() {
+    return maxSize;
+  }
+
+  int idleCount() {
+    return idle.size();
+  }
+
+  int activeCount() {
+    return borrowed.size();
+  }
+
+  long borrowCount() {
+    return borrows.get();
+  }
+
+  long leakCount() {
+    return leaks.get();
+  }
+
+  /**
+   * One line summary of the pool metrics
+   */
+  String metrics() {
+    long n = borrows.get();
+    return String.format("pool: max=%d active=%d idle=%d borrows=%d waits=%d timeouts=%d created=%d closed=%d "
+        + "validationFailures=%d leaks=%d avgBorrowMicros=%d", maxSize, activeCount(), idleCount(), n, waits.get(),
+        timeouts.get(), created.get(), closed.get(), validationFailures.get(), leaks.get(),
+        n == 0 ? 0 : borrowNanos.get() / n / 1000);
+  }
+
+  private void checkNotShutDown() throws SQLException {
+    if (shutDown) {
+      throw new SQLException("Connection pool is shut down");
+    }
+  }
+
+  private void closeIdle() {
+    PooledConnection pc;
+    while ((pc = idle.pollFirst()) != null) {
+      discard(pc);
+    }
+  }
+
+  private boolean isUsable(PooledConnection pc) {
+    if (System.currentTimeMillis() - pc.lastUsed < validateIdleMillis) {
+      return true;
+    }
+    try {
+      return pc.connection().isValid(VALIDATION_TIMEOUT);
+    } catch (SQLException e) {
+      return false;
+    }
+  }
+
+  private PooledConnection open() throws SQLException {
+    Connection conn = DriverManager.getConnection(url);
+
+    // By default, automatically commit after each statement
+    conn.setAutoCommit(false);
+
+    // By default, set the transaction isolation level to serializable
+    conn.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
+
+    created.incrementAndGet();
+    return new PooledConnection(conn);
+  }
+
+  private void discard(PooledConnection pc) {
+    closed.incrementAndGet();
+    try {
+      pc.connection().close();
+    } catch (SQLException e) {
+      // already broken
+    }
+  }
+
+  private void detectLeaks() {
+    long now = System.currentTimeMillis();
+    for (PooledConnection pc : borrowed) {
+      String borrower = pc.borrower;
+      if (!pc.leakReported && borrower != null && now - pc.borrowedAt > leakMillis) {
+        pc.leakReported = true;
+        leaks.incrementAndGet();
+        System.err.println("Possible connection leak: held by " + borrower + " for " + (now - pc.borrowedAt) + " ms");
+        Throwable stack = pc.borrowStack;
+        if (stack != null) {
+          stack.printStackTrace();
+        }
+      }
+    }
+  }
+
+  /**
+   * A physical connection and the statements prepared on it
+   */
+  static class PooledConnection {
+    private final Connection conn;
+    private final Map<String, PreparedStatement> statements = new HashMap<>();
+    volatile long borrowedAt;
+    volatile long lastUsed = System.currentTimeMillis();
+    // Isolation level last set on it, kept so switching needs no round trip
+    // to read it back
+    int isolation = Connection.TRANSACTION_SERIALIZABLE;
+    // Thread that borrowed it, and where, if stacks are kept
+    volatile String borrower;
+    volatile Throwable borrowStack;
+    volatile boolean leakReported;
+
+    PooledConnection(Connection conn) {
+      this.conn = conn;
+    }
+
+    Connection connection() {
+      return conn;
+    }
+
+    /**
+     * Returns the statement for {@code sql}, preparing it on first use
+     */
+    PreparedStatement prepare(String sql) throws SQLException {
+      PreparedStatement stmt = statements.get(sql);
+      if (stmt == null) {
+        stmt = conn.prepareStatement(sql);
+        statements.put(sql, stmt);
+      }
+      return stmt;
+    }
+  }
+
+  /**
+   * The pool's MBean
+   */
+  PoolMBean mbean() {
+    return new Stats();
+  }
+
+  /**
+   * Connections in use and how borrows went. Times are in microseconds.
+   */
+  public interface PoolMBean extends QueryMetrics.ComponentMBean {
+    int getMaxSize();
+
+    int getActive();
+
+    int getIdle();
+
+    long getBorrows();
+
+    long getWaits();
+
+    long getTimeouts();
+
+    long getLeaks();
+
+    long getMeanBorrowMicros();
+  }
+
+  private class Stats implements PoolMBean {
+    public String getSummary() {
+      return metrics();
+    }
+
+    public int getMaxSize() {
+      return maxSize;
+    }
+
+    public int getActive() {
+      return activeCount();
+    }
+
+    public int getIdle() {
+      return idleCount();
+    }
+
+    public long getBorrows() {
+      return borrows.get();
+    }
+
+    public long getWaits() {
+      return waits.get();
+    }
+
+    public long getTimeouts() {
+      return timeouts.get();
+    }
+
+    public long getLeaks() {
+      return leaks.get();
+    }
+
+    public long getMeanBorrowMicros() {
+      long n = borrows.get();
+      return n == 0 ? 0 : borrowNanos.get() / n / 1000;
+    }
+  }
+}
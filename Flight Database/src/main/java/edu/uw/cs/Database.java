@@ -0,0 +1,263 @@
+package edu.uw.cs;
+
+import java.lang.management.*;
+import java.nio.file.*;
+import java.sql.*;
+import java.util.*;
+
+/**
+ * What every Query on one database shares: the connection pool, group
+ * committer, retry policy, seat inventory, reservation IDs, search cache,
+ * sessions, password hasher, metrics, and the flight cache and index.
+ *
+ * {@link #open} hands out one context per database URL and counts its users.
+ * A Query opens it in openConnection and closes it in closeConnection. When
+ * the last user closes it, the pool, the committer, the hasher and the seat
+ * inventory's connection are shut down and the metrics unpublished, and the
+ * next open
+ * starts afresh with the settings it is given. Opening a context that is
+ * already open with other settings fails, rather than quietly running with
+ * the first ones.
+ */
+class Database {
+  // Settings a context is made with, and their defaults
+  private static final String[][] SETTINGS = {
+    { "hw1.pool.max_size", "32" },
+    { "hw1.pool.min_idle", "4" },
+    { "hw1.pool.borrow_timeout_ms", "30000" },
+    { "hw1.pool.validate_idle_ms", "5000" },
+    { "hw1.pool.leak_threshold_ms", "60000" },
+    { "hw1.pool.leak_stacks", "false" },
+    { "hw1.group_commit.enabled", "false" },
+    { "hw1.group_commit.window_ms", "2" },
+    { "hw1.group_commit.max_group", "64" },
+    { "hw1.retry.max_attempts", "5" },
+    { "hw1.retry.base_ms", "10" },
+    { "hw1.retry.max_ms", "1000" },
+    { "hw1.search_cache.max_entries", "10000" },
+    { "hw1.search_cache.ttl_ms", "60000" },
+    { "hw1.session.ttl_ms", "1800000" },
+    { "hw1.session.max_bytes", "268435456" },
+    { "hw1.rid_block_size", "20" },
+    { "hw1.hash.threads", Integer.toString(Math.max(1, Runtime.getRuntime().availableProcessors() / 2)) },
+    { "hw1.hash.queue_size", "256" },
+    { "hw1.hash.submit_timeout_ms", "5000" },
+    { "hw1.metrics.jmx", "true" },
+    { "hw1.flight_snapshot", "" },
+  };
+
+  // Guarded by Database.class: open contexts by URL, and how many were ever
+  // opened, which numbers their metrics
+  private static final Map<String, Database> open = new HashMap<>();
+  private static int opened;
+
+  private final String url;
+  private final String flightsSource;
+  private final Map<String, String> settings;
+  // Guarded by Database.class
+  private int users;
+
+  private final QueryMetrics metrics;
+  private final boolean jmx;
+  private final ReservationIds reservationIds;
+  private final SeatInventory seats;
+  private final SessionStore sessions;
+  private final TransactionRetry retry;
+  private final PasswordHasher hasher;
+  // Null when disabled
+  private final SearchCache searchCache;
+  private final ConnectionPool pool;
+  private final GroupCommitter groupCommitter;
+
+  // Guarded by this; loaded on first use
+  private FlightCache flightCache;
+  private FlightIndex flightIndex;
+
+  /**
+   * Opens the context of the database {@code storage} connects to, creating
+   * it from {@code configProps} if it is not open yet. Each open must be
+   * matched by a {@link #close}.
+   *
+   * @throws IllegalArgumentException if the context is open with other
+   *         settings
+   */
+  static synchronized Database open(Storage storage, Properties configProps) throws SQLException {
+    Map<String, String> settings = settings(configProps);
+    Database db = open.get(storage.url());
+    if (db == null) {
+      db = new Database(storage, settings, ++opened);
+      open.put(db.url, db);
+    } else if (!db.settings.equals(settings)) {
+      for (String[] setting : SETTINGS) {
+        String key = setting[0];
+        if (!db.settings.get(key).equals(settings.get(key))) {
+          throw new IllegalArgumentException("Database already open with " + key + " = " + db.settings.get(key)
+              + ", not " + settings.get(key));
+        }
+      }
+    }
+    db.users++;
+    return db;
+  }
+
+  private Database(Storage storage, Map<String, String> settings, int number) throws SQLException {
+    url = storage.url();
+    flightsSource = storage.flightsSource();
+    this.settings = settings;
+    jmx = Boolean.parseBoolean(settings.get("hw1.metrics.jmx"));
+    metrics = new QueryMetrics(Integer.toString(number));
+    reservationIds = new ReservationIds(integer("hw1.rid_block_size"));
+    seats = new SeatInventory(url, storage.snapshotIsolation());
+    metrics.component("SeatInventory", seats.mbean(), SeatInventory.SeatsMBean.class);
+    sessions = new SessionStore(number("hw1.session.ttl_ms"), number("hw1.session.max_bytes"));
+    metrics.component("SessionStore", sessions.mbean(), SessionStore.StoreMBean.class);
+    retry = new TransactionRetry(integer("hw1.retry.max_attempts"), number("hw1.retry.base_ms"),
+        number("hw1.retry.max_ms"));
+    metrics.component("TransactionRetry", retry.mbean(), TransactionRetry.RetryMBean.class);
+    int maxEntries = integer("hw1.search_cache.max_entries");
+    searchCache = maxEntries > 0 ? new SearchCache(maxEntries, number("hw1.search_cache.ttl_ms")) : null;
+    if (integer("hw1.pool.max_size") > 0) {
+      pool = new ConnectionPool(url, integer("hw1.pool.max_size"), integer("hw1.pool.min_idle"),
+          number("hw1.pool.borrow_timeout_ms"), number("hw1.pool.validate_idle_ms"),
+          number("hw1.pool.leak_threshold_ms"), Boolean.parseBoolean(settings.get("hw1.pool.leak_stacks")));
+      metrics.component("ConnectionPool", pool.mbean(), ConnectionPool.PoolMBean.class);
+      groupCommitter = Boolean.parseBoolean(settings.get("hw1.group_commit.enabled"))
+          ? new GroupCommitter(pool, retry, number("hw1.group_commit.window_ms"), integer("hw1.group_commit.max_group"))
+          : null;
+      if (groupCommitter != null) {
+        metrics.component("GroupCommitter", groupCommitter.mbean(), GroupCommitter.GroupCommitMBean.class);
+      }
+    } else {
+      pool = null;
+      groupCommitter = null;
+    }
+    hasher = new PasswordHasher(integer("hw1.hash.threads"), integer("hw1.hash.queue_size"),
+        number("hw1.hash.submit_timeout_ms"));
+    metrics.component("PasswordHasher", hasher.mbean(), PasswordHasher.HasherMBean.class);
+    if (searchCache != null) {
+      metrics.component("SearchCache", searchCache.mbean(), SearchCache.CacheMBean.class);
+    }
+    if (jmx) {
+      metrics.register(ManagementFactory.getPlatformMBeanServer());
+    }
+  }
+
+  /**
+   * Gives up this user's share of the context; the last one shuts it down
+   */
+  void close() {
+    synchronized (Database.class) {
+      if (users == 0) {
+        throw new IllegalStateException("Database already closed");
+      }
+      if (--users > 0) {
+        return;
+      }
+      open.remove(url);
+    }
+    if (groupCommitter != null) {
+      groupCommitter.stop();
+    }
+    if (pool != null) {
+      pool.shutdown();
+    }
+    seats.close();
+    hasher.shutdown();
+    if (jmx) {
+      metrics.unregister(ManagementFactory.getPlatformMBeanServer());
+    }
+  }
+
+  String url() {
+    return url;
+  }
+
+  QueryMetrics metrics() {
+    return metrics;
+  }
+
+  ReservationIds reservationIds() {
+    return reservationIds;
+  }
+
+  SeatInventory seats() {
+    return seats;
+  }
+
+  SessionStore sessions() {
+    return sessions;
+  }
+
+  TransactionRetry retry() {
+    return retry;
+  }
+
+  PasswordHasher hasher() {
+    return hasher;
+  }
+
+  /**
+   * The search cache, or null if it is disabled
+   */
+  SearchCache searchCache() {
+    return searchCache;
+  }
+
+  /**
+   * The connection pool, or null if each Query has its own connection
+   */
+  ConnectionPool pool() {
+    return pool;
+  }
+
+  /**
+   * The group committer, or null if group commit is off
+   */
+  GroupCommitter groupCommitter() {
+    return groupCommitter;
+  }
+
+  /**
+   * The flight cache, loaded the first time it is needed from the snapshot
+   * file if that is usable, and otherwise by a scan over {@code conn}. The
+   * caller is responsible for committing {@code conn}.
+   */
+  synchronized FlightCache flightCache(Connection conn) throws SQLException {
+    if (flightCache == null) {
+      String snapshot = settings.get("hw1.flight_snapshot");
+      flightCache = FlightCache.load(url, flightsSource, snapshot.isEmpty() ? null : Paths.get(snapshot), conn);
+      metrics.component("FlightCache", flightCache.mbean(), FlightCache.FlightsMBean.class);
+    }
+    return flightCache;
+  }
+
+  /**
+   * The search index, built over the flight cache the first time it is
+   * needed
+   */
+  synchronized FlightIndex flightIndex(Connection conn) throws SQLException {
+    if (flightIndex == null) {
+      flightIndex = new FlightIndex(flightCache(conn));
+    }
+    return flightIndex;
+  }
+
+  private int integer(String key) {
+    return Integer.parseInt(settings.get(key));
+  }
+
+  private long number(String key) {
+    return Long.parseLong(settings.get(key));
+  }
+
+  /**
+   * The value of every setting in {@link #SETTINGS}, with its default if unset
+   */
+  private static Map<String, String> settings(Properties configProps) {
+    Map<String, String> settings = new HashMap<>();
+    for (String[] setting : SETTINGS) {
+      settings.put(setting[0], configProps.getProperty(setting[0], setting[1]).trim());
+    }
+    return settings;
+  }
+}
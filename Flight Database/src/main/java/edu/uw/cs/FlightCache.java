@@ -0,0 +1,411 @@
+package edu.uw.cs;
+
+import java.io.*;
+import java.nio.file.*;
+import java.sql.*;
+import java.util.*;
+
+/**
+ * In-memory copy of the Flights table, looked up by fid.
+ *
+ * Flights are stored column-wise in primitive arrays indexed by row, with rows
+ * in fid order, so a fid is found by binary search. Cities and carriers are
+ * dictionary encoded into 16-bit ids and flight numbers into int ids.
+ *
+ * Capacity is the one column that is not static. The value loaded with the
+ * cache is used for search results; callers that need it current read it
+ * from the database and pass it to {@link #appendFlight}.
+ */
+class FlightCache {
+  private static final String LOAD_FLIGHTS = "SELECT fid, day_of_month, carrier_id, flight_num, origin_city, dest_city, actual_time, capacity, price, canceled " +
+                                             "FROM Flights ORDER BY fid ASC";
+
+  // Largest id a 16-bit dictionary column can hold
+  private static final int MAX_SHORT_ID = Character.MAX_VALUE;
+
+  // Columns, one entry per row
+  private final int size;
+  private final int[] fid;
+  private final byte[] day;
+  private final char[] carrier;
+  private final int[] flightNum;
+  private final char[] origin;
+  private final char[] dest;
+  private final int[] time;
+  private final int[] price;
+  private final boolean[] canceled;
+  private final int[] capacity;
+
+  // Dictionaries for the string columns
+  private final Dictionary cities;
+  private final Dictionary carriers;
+  private final Dictionary flightNums;
+
+  /**
+   * Loads the cache of the database at {@code url} from {@code snapshot} if
+   * that holds a valid {@link FlightSnapshot} that still matches Flights, and
+   * otherwise from a scan over {@code conn}, which is then written to
+   * {@code snapshot} for the next start. The caller is responsible for
+   * committing {@code conn}.
+   *
+   * @param flights  how Flights was loaded, from {@link Storage#flightsSource}
+   * @param snapshot snapshot file, or null to always scan
+   */
+  static FlightCache load(String url, String flights, Path snapshot, Connection conn) throws SQLException {
+    FlightCache cache = snapshot == null ? null
+        : FlightSnapshot.readIfValid(url, flights, FlightSnapshot.extent(conn), snapshot);
+    if (cache == null) {
+      cache = load(conn);
+      if (snapshot != null) {
+        try {
+          FlightSnapshot.write(cache, url, flights, snapshot);
+        } catch (IOException e) {
+          // the scan still worked; the next start scans again
+          System.err.println("Could not write flight snapshot " + snapshot + ": " + e);
+        }
+      }
+    }
+    return cache;
+  }
+
+  /**
+   * Reads the whole Flights table into a new cache.
+   */
+  static FlightCache load(Connection conn) throws SQLException {
+    Builder b = new Builder();
+    try (Statement stmt = conn.createStatement(); ResultSet rs = stmt.executeQuery(LOAD_FLIGHTS)) {
+      while (rs.next()) {
+        b.add(rs.getInt("fid"), rs.getInt("day_of_month"), rs.getString("carrier_id"), rs.getString("flight_num"),
+            rs.getString("origin_city"), rs.getString("dest_city"), rs.getInt("actual_time"), rs.getInt("capacity"),
+            rs.getInt("price"), rs.getInt("canceled") != 0);
+      }
+    }
+    return b.build();
+  }
+
+  private FlightCache(Builder b) {
+    size = b.size;
+    fid = Arrays.copyOf(b.fid, size);
+    day = Arrays.copyOf(b.day, size);
+    carrier = Arrays.copyOf(b.carrier, size);
+    flightNum = Arrays.copyOf(b.flightNum, size);
+    origin = Arrays.copyOf(b.origin, size);
+    dest = Arrays.copyOf(b.dest, size);
+    time = Arrays.copyOf(b.time, size);
+    price = Arrays.copyOf(b.price, size);
+    canceled = Arrays.copyOf(b.canceled, size);
+    capacity = Arrays.copyOf(b.capacity, size);
+    cities = b.cities;
+    carriers = b.carriers;
+    flightNums = b.flightNums;
+  }
+
+  /**
+   * Number of flights in the cache
+   */
+  int size() {
+    return size;
+  }
+
+  /**
+   * Returns the row of flight {@code fid}, or -1 if there is no such flight
+   */
+  int row(int fid) {
+    int row = Arrays.binarySearch(this.fid, fid);
+    return row < 0 ? -1 : row;
+  }
+
+  int fid(int row) {
+    return fid[row];
+  }
+
+  int day(int row) {
+    return day[row];
+  }
+
+  int carrier(int row) {
+    return carrier[row];
+  }
+
+  int flightNum(int row) {
+    return flightNum[row];
+  }
+
+  int origin(int row) {
+    return origin[row];
+  }
+
+  int dest(int row) {
+    return dest[row];
+  }
+
+  int time(int row) {
+    return time[row];
+  }
+
+  int price(int row) {
+    return price[row];
+  }
+
+  boolean canceled(int row) {
+    return canceled[row];
+  }
+
+  int capacity(int row) {
+    return capacity[row];
+  }
+
+  /**
+   * Number of distinct cities; city ids are 0 up to this
+   */
+  int cityCount() {
+    return cities.size();
+  }
+
+  /**
+   * Returns the id of {@code name}, ignoring case, or -1 if no flight touches it
+   */
+  int city(String name) {
+    return cities.find(name);
+  }
+
+  Dictionary cities() {
+    return cities;
+  }
+
+  Dictionary carriers() {
+    return carriers;
+  }
+
+  Dictionary flightNums() {
+    return flightNums;
+  }
+
+  /**
+   * Materializes a row as a Flight, with the same values JDBC would return.
+   */
+  Query.Flight flight(int row) {
+    return new Query.Flight(fid[row], day[row], carriers.name(carrier[row]), flightNums.name(flightNum[row]),
+        cities.name(origin[row]), cities.name(dest[row]), time[row], capacity[row], price[row]);
+  }
+
+  /**
+   * Appends a row in the {@link Query.Flight#toString()} format, showing
+   * {@code capacity} as its capacity
+   */
+  void appendFlight(Appendable out, int row, int capacity) throws IOException {
+    out.append("ID: ");
+    Query.appendInt(out, fid[row]);
+    out.append(" Day: ");
+    Query.appendInt(out, day[row]);
+    out.append(" Carrier: ").append(carriers.name(carrier[row]))
+      .append(" Number: ").append(flightNums.name(flightNum[row]))
+      .append(" Origin: ").append(cities.name(origin[row]))
+      .append(" Dest: ").append(cities.name(dest[row]))
+      .append(" Duration: ");
+    Query.appendInt(out, time[row]);
+    out.append(" Capacity: ");
+    Query.appendInt(out, capacity);
+    out.append(" Price: ");
+    Query.appendInt(out, price[row]);
+  }
+
+  /**
+   * Approximate heap bytes held by the columns and dictionaries
+   */
+  long footprintBytes() {
+    long columns = (long) size * (4 + 1 + 2 + 4 + 2 + 2 + 4 + 4 + 1 + 4);
+    return columns + cities.footprintBytes() + carriers.footprintBytes() + flightNums.footprintBytes();
+  }
+
+  /**
+   * One line summary of the cache size
+   */
+  String metrics() {
+    long bytes = footprintBytes();
+    return String.format("flightCache: flights=%d cities=%d carriers=%d flightNums=%d bytes=%d bytesPerFlight=%.1f",
+        size, cities.size(), carriers.size(), flightNums.size(), bytes, size == 0 ? 0.0 : (double) bytes / size);
+  }
+
+  /**
+   * The cache's MBean
+   */
+  FlightsMBean mbean() {
+    return new Stats();
+  }
+
+  /**
+   * Flights held and the heap they take
+   */
+  public interface FlightsMBean extends QueryMetrics.ComponentMBean {
+    int getFlights();
+
+    int getCities();
+
+    long getBytes();
+  }
+
+  private class Stats implements FlightsMBean {
+    public String getSummary() {
+      return metrics();
+    }
+
+    public int getFlights() {
+      return size;
+    }
+
+    public int getCities() {
+      return cities.size();
+    }
+
+    public long getBytes() {
+      return footprintBytes();
+    }
+  }
+
+  /**
+   * Maps strings to dense int ids. Lookups ignore case, like the default SQL
+   * Server collation the queries run under.
+   */
+  static class Dictionary {
+    // Rough per-entry cost of a String and its slots in the two maps
+    private static final int ENTRY_OVERHEAD = 40 + 2 * 48;
+
+    private final Map<String, Integer> ids = new HashMap<>();
+    private final Map<String, Integer> folded = new HashMap<>();
+    private String[] names = new String[16];
+    private int size;
+    private long chars;
+
+    int intern(String name) {
+      Integer id = ids.get(name);
+      if (id == null) {
+        id = size;
+        if (size == names.length) {
+          names = Arrays.copyOf(names, size * 2);
+        }
+        names[size++] = name;
+        ids.put(name, id);
+        if (name != null) {
+          chars += name.length();
+          folded.putIfAbsent(fold(name), id);
+        }
+      }
+      return id;
+    }
+
+    /**
+     * Returns the id of {@code name}, or -1 if it is not in the dictionary.
+     */
+    int find(String name) {
+      if (name == null) {
+        return -1;
+      }
+      Integer id = folded.get(fold(name));
+      return id == null ? -1 : id;
+    }
+
+    String name(int id) {
+      return names[id];
+    }
+
+    int size() {
+      return size;
+    }
+
+    long footprintBytes() {
+      return (long) size * (ENTRY_OVERHEAD + 4) + 2 * chars;
+    }
+
+    private static String fold(String name) {
+      return name.toLowerCase(Locale.ROOT);
+    }
+  }
+
+  /**
+   * Accumulates rows while the Flights table is being scanned. Rows must be
+   * added in fid order.
+   */
+  static class Builder {
+    int size;
+    int[] fid = new int[1024];
+    byte[] day = new byte[1024];
+    char[] carrier = new char[1024];
+    int[] flightNum = new int[1024];
+    char[] origin = new char[1024];
+    char[] dest = new char[1024];
+    int[] time = new int[1024];
+    int[] capacity = new int[1024];
+    int[] price = new int[1024];
+    boolean[] canceled = new boolean[1024];
+    final Dictionary cities = new Dictionary();
+    final Dictionary carriers = new Dictionary();
+    final Dictionary flightNums = new Dictionary();
+
+    void add(int fid, int day, String carrierId, String flightNum, String originCity, String destCity, int time,
+        int capacity, int price, boolean canceled) {
+      addEncoded(fid, day, carriers.intern(carrierId), flightNums.intern(flightNum), cities.intern(originCity),
+          cities.intern(destCity), time, capacity, price, canceled);
+    }
+
+    /**
+     * Adds a row whose string columns are ids already in this builder's
+     * dictionaries
+     */
+    void addEncoded(int fid, int day, int carrierId, int flightNumId, int originId, int destId, int time,
+        int capacity, int price, boolean canceled) {
+      if (size > 0 && fid <= this.fid[size - 1]) {
+        throw new IllegalArgumentException("Flights out of fid order: " + fid);
+      }
+      if (day < Byte.MIN_VALUE || day > Byte.MAX_VALUE) {
+        throw new IllegalArgumentException("Day out of range: " + day);
+      }
+      if (size == this.fid.length) {
+        grow();
+      }
+      this.fid[size] = fid;
+      this.day[size] = (byte) day;
+      this.carrier[size] = shortId(carrierId, carriers);
+      this.flightNum[size] = id(flightNumId, flightNums);
+      this.origin[size] = shortId(originId, cities);
+      this.dest[size] = shortId(destId, cities);
+      this.time[size] = time;
+      this.capacity[size] = capacity;
+      this.price[size] = price;
+      this.canceled[size] = canceled;
+      size++;
+    }
+
+    private static char shortId(int id, Dictionary dictionary) {
+      if (id > MAX_SHORT_ID) {
+        throw new IllegalArgumentException("Too many distinct values: " + id);
+      }
+      return (char) id(id, dictionary);
+    }
+
+    private static int id(int id, Dictionary dictionary) {
+      if (id < 0 || id >= dictionary.size()) {
+        throw new IllegalArgumentException("No such dictionary id: " + id);
+      }
+      return id;
+    }
+
+    private void grow() {
+      int n = size * 2;
+      fid = Arrays.copyOf(fid, n);
+      day = Arrays.copyOf(day, n);
+      carrier = Arrays.copyOf(carrier, n);
+      flightNum = Arrays.copyOf(flightNum, n);
+      origin = Arrays.copyOf(origin, n);
+      dest = Arrays.copyOf(dest, n);
+      time = Arrays.copyOf(time, n);
+      capacity = Arrays.copyOf(capacity, n);
+      price = Arrays.copyOf(price, n);
+      canceled = Arrays.copyOf(canceled, n);
+    }
+
+    FlightCache build() {
+      return new FlightCache(this);
+    }
+  }
+}
@@ -0,0 +1,251 @@
+package edu.uw.cs;
+
+import java.util.*;
+
+/**
+ * Search index over the flights in a {@link FlightCache}, used to answer
+ * searches without a database round trip.
+ *
+ * For every (day, origin city) pair the outgoing flights are kept as a slice of
+ * {@code outRows}, sorted by actual_time and then fid, so direct and one-hop
+ * searches come out in the same order as the GET_DIRECT and GET_INDIRECT
+ * queries in {@link Query}. Rows are the cache's rows, which are in fid order.
+ */
+class FlightIndex {
+  private final FlightCache flights;
+
+  // Per (day, origin) adjacency: outRows[outStart[b] .. outStart[b + 1]) for bucket b
+  private final int size;
+  private final int cityCount;
+  private final int firstDay;
+  private final int dayCount;
+  private final int[] outStart;
+  private final int[] outRows;
+
+  FlightIndex(FlightCache flights) {
+    this.flights = flights;
+    size = flights.size();
+    cityCount = flights.cityCount();
+
+    int minDay = Integer.MAX_VALUE;
+    int maxDay = Integer.MIN_VALUE;
+    for (int i = 0; i < size; i++) {
+      minDay = Math.min(minDay, flights.day(i));
+      maxDay = Math.max(maxDay, flights.day(i));
+    }
+    if (size > TopItineraries.MAX_LEG + 1) {
+      throw new IllegalArgumentException("Too many flights to index: " + size);
+    }
+    firstDay = size == 0 ? 0 : minDay;
+    dayCount = size == 0 ? 0 : maxDay - minDay + 1;
+
+    // Counting sort rows into (day, origin) buckets
+    int buckets = dayCount * cityCount;
+    outStart = new int[buckets + 1];
+    for (int i = 0; i < size; i++) {
+      outStart[bucket(flights.day(i), flights.origin(i)) + 1]++;
+    }
+    for (int i = 0; i < buckets; i++) {
+      outStart[i + 1] += outStart[i];
+    }
+    outRows = new int[size];
+    int[] fill = Arrays.copyOf(outStart, buckets);
+    for (int i = 0; i < size; i++) {
+      outRows[fill[bucket(flights.day(i), flights.origin(i))]++] = i;
+    }
+
+    // Order each bucket by (actual_time, fid). Rows are in fid order, so the row
+    // number breaks ties the same way fid does.
+    long[] keys = new long[size];
+    for (int bkt = 0; bkt < buckets; bkt++) {
+      int from = outStart[bkt];
+      int to = outStart[bkt + 1];
+      for (int i = from; i < to; i++) {
+        int row = outRows[i];
+        keys[i] = ((long) flights.time(row) << 32) | row;
+      }
+      Arrays.sort(keys, from, to);
+      for (int i = from; i < to; i++) {
+        outRows[i] = (int) keys[i];
+      }
+    }
+  }
+
+  /**
+   * Number of flights in the index
+   */
+  int size() {
+    return size;
+  }
+
+  /**
+   * Returns the keys of up to {@code limit} direct flights, in GET_DIRECT order.
+   */
+  long[] direct(String originCity, String destinationCity, int dayOfMonth, int limit) {
+    return direct(originCity, destinationCity, dayOfMonth, -1, limit);
+  }
+
+  /**
+   * Returns the keys of up to {@code limit} direct flights whose keys are
+   * greater than {@code after}, in GET_DIRECT order
+   */
+  long[] direct(String originCity, String destinationCity, int dayOfMonth, long after, int limit) {
+    int o = flights.city(originCity);
+    int d = flights.city(destinationCity);
+    if (o < 0 || d < 0 || !hasDay(dayOfMonth) || limit <= 0) {
+      return new long[0];
+    }
+    int bkt = bucket(dayOfMonth, o);
+    long[] keys = new long[Math.min(limit, outStart[bkt + 1] - outStart[bkt])];
+    int n = 0;
+    for (int i = outStart[bkt]; i < outStart[bkt + 1] && n < keys.length; i++) {
+      int row = outRows[i];
+      if (flights.dest(row) == d) {
+        long key = TopItineraries.key(flights.time(row), row, TopItineraries.NO_LEG);
+        if (key > after) {
+          keys[n++] = key;
+        }
+      }
+    }
+    return Arrays.copyOf(keys, n);
+  }
+
+  /**
+   * Returns the keys of up to {@code limit} one-hop itineraries, in GET_INDIRECT
+   * order. Only the best {@code limit} candidates are kept while the day's
+   * flights are walked.
+   */
+  long[] indirect(String originCity, String destinationCity, int dayOfMonth, int limit) {
+    return indirect(originCity, destinationCity, dayOfMonth, -1, limit);
+  }
+
+  /**
+   * Returns the keys of up to {@code limit} one-hop itineraries whose keys are
+   * greater than {@code after}, in GET_INDIRECT order
+   */
+  long[] indirect(String originCity, String destinationCity, int dayOfMonth, long after, int limit) {
+    int o = flights.city(originCity);
+    int d = flights.city(destinationCity);
+    if (o < 0 || d < 0 || !hasDay(dayOfMonth) || limit <= 0) {
+      return new long[0];
+    }
+    TopItineraries top = new TopItineraries(limit);
+    // Second legs into the destination, per connecting city, built on demand
+    Map<Integer, int[]> secondLegs = new HashMap<>();
+    int bkt = bucket(dayOfMonth, o);
+    for (int i = outStart[bkt]; i < outStart[bkt + 1]; i++) {
+      int first = outRows[i];
+      // first legs come in time order, so once the first leg alone is too long
+      // nothing later can make it
+      if (top.isFull() && flights.time(first) > TopItineraries.totalTime(top.max())) {
+        break;
+      }
+      if (flights.canceled(first)) {
+        continue;
+      }
+      int[] legs = secondLegs.get(flights.dest(first));
+      if (legs == null) {
+        legs = legsInto(dayOfMonth, flights.dest(first), d);
+        secondLegs.put(flights.dest(first), legs);
+      }
+      // keys grow along the second legs of one first leg
+      for (int second : legs) {
+        long key = TopItineraries.key(flights.time(first) + flights.time(second), first, second);
+        if (key > after && !top.offer(key)) {
+          break;
+        }
+      }
+    }
+    return top.toSortedArray();
+  }
+
+  /**
+   * The key of the itinerary with total time {@code totalTime} on flights
+   * {@code fid1} and {@code fid2}, or {@link SearchCursor#NO_FLIGHT} for a
+   * direct flight, for seeking past it
+   *
+   * @return the key, or -1 if a flight is not in the index
+   */
+  long key(int totalTime, int fid1, int fid2) {
+    int first = flights.row(fid1);
+    int second = fid2 == SearchCursor.NO_FLIGHT ? TopItineraries.NO_LEG : flights.row(fid2);
+    if (first < 0 || (fid2 != SearchCursor.NO_FLIGHT && second < 0) || totalTime < 0) {
+      return -1;
+    }
+    // nothing is longer than the longest time a key holds
+    return totalTime > TopItineraries.MAX_TIME ? Long.MAX_VALUE : TopItineraries.key(totalTime, first, second);
+  }
+
+  /**
+   * Materializes the itineraries behind keys returned by this index
+   */
+  List<Query.Itinerary> itineraries(long[] keys) {
+    List<Query.Itinerary> result = new ArrayList<>(keys.length);
+    for (long key : keys) {
+      result.add(itinerary(key));
+    }
+    return result;
+  }
+
+  /**
+   * Materializes the itinerary behind a key returned by this index
+   */
+  Query.Itinerary itinerary(long key) {
+    Query.Flight f1 = flight(TopItineraries.firstLeg(key));
+    int second = TopItineraries.secondLeg(key);
+    return second == TopItineraries.NO_LEG ? new Query.Itinerary(f1) : new Query.Itinerary(f1, flight(second));
+  }
+
+  /**
+   * Non-canceled flights from city {@code from} to city {@code to} on the given
+   * day, in (actual_time, fid) order.
+   */
+  private int[] legsInto(int dayOfMonth, int from, int to) {
+    int bkt = bucket(dayOfMonth, from);
+    int[] legs = new int[outStart[bkt + 1] - outStart[bkt]];
+    int n = 0;
+    for (int i = outStart[bkt]; i < outStart[bkt + 1]; i++) {
+      int row = outRows[i];
+      if (flights.dest(row) == to && !flights.canceled(row)) {
+        legs[n++] = row;
+      }
+    }
+    return Arrays.copyOf(legs, n);
+  }
+
+  /**
+   * Materializes a row as a Flight, with the same values JDBC would return.
+   */
+  Query.Flight flight(int row) {
+    return flights.flight(row);
+  }
+
+  FlightCache flights() {
+    return flights;
+  }
+
+  /**
+   * Flights leaving {@code city} on the given day are
+   * {@code outRow(outFrom(...)) .. outRow(outTo(...) - 1)}, in
+   * (actual_time, fid) order
+   */
+  int outFrom(int dayOfMonth, int city) {
+    return outStart[bucket(dayOfMonth, city)];
+  }
+
+  int outTo(int dayOfMonth, int city) {
+    return outStart[bucket(dayOfMonth, city) + 1];
+  }
+
+  int outRow(int i) {
+    return outRows[i];
+  }
+
+  boolean hasDay(int dayOfMonth) {
+    return dayOfMonth >= firstDay && dayOfMonth < firstDay + dayCount;
+  }
+
+  private int bucket(int dayOfMonth, int city) {
+    return (dayOfMonth - firstDay) * cityCount + city;
+  }
+}
@@ -0,0 +1,416 @@
+package edu.uw.cs;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Serves the Flights command grammar to many TCP clients from one selector
+ * thread.
+ *
+ * Each connection is its own session. Clients send one command per line,
+ * exactly as typed at the {@link FlightService} prompt, and each response is
+ * sent back followed by an empty line. Commands of one connection run one at a
+ * time, in order, on a bounded pool of worker threads, so database calls never
+ * block the selector. When the workers and their queue are full, a command is
+ * answered with a busy error instead of being run.
+ *
+ * Each worker has one Query and runs every session's commands on it, moving
+ * the session's login and last search in and out of the {@link SessionStore}
+ * around each command. An idle connection holds little more than its socket
+ * and session ID.
+ */
+public class FlightServer implements Closeable {
+  static final String BUSY = "Error: server busy, try again\n";
+  static final String LINE_TOO_LONG = "Error: command too long\n";
+
+  // Longest command line accepted, in bytes
+  private static final int MAX_LINE = 8192;
+  private static final int READ_BUFFER = 4096;
+  private static final byte[] EMPTY_LINE = new byte[0];
+  // Seconds a stopping server waits for running commands before closing the
+  // workers' Query objects
+  private static final int SHUTDOWN_WAIT_SECONDS = 30;
+
+  private final Properties configProps;
+  private final Selector selector;
+  private final ServerSocketChannel server;
+  private final ThreadPoolExecutor workers;
+
+  // Each worker's Query and response buffer, and every Query made so far
+  private final ThreadLocal<Worker> worker = ThreadLocal.withInitial(Worker::new);
+  private final List<Query> queries = Collections.synchronizedList(new ArrayList<>());
+  // Where the Query objects keep session state; set with the first Query
+  private volatile SessionStore store;
+
+  // Selector thread only; every read is split into lines before the next
+  private final ByteBuffer in = ByteBuffer.allocate(READ_BUFFER);
+
+  // Sessions with output to send, handed from workers to the selector thread
+  private final Queue<Session> writable = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger sessions = new AtomicInteger();
+  private volatile boolean running = true;
+
+  /**
+   * Binds to {@code port}, 0 for any free port. Sessions are opened with the
+   * given configuration, in the same format as dbconn.properties.
+   */
+  public FlightServer(int port, Properties configProps) throws IOException {
+    this.configProps = configProps;
+    int threads = Integer.parseInt(configProps.getProperty("hw1.server.workers", "32"));
+    int queueSize = Integer.parseInt(configProps.getProperty("hw1.server.queue_size", "1024"));
+    AtomicInteger n = new AtomicInteger();
+    workers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queueSize),
+        r -> {
+          Thread t = new Thread(r, "flight-server-worker-" + n.incrementAndGet());
+          t.setDaemon(true);
+          return t;
+        });
+    selector = Selector.open();
+    server = ServerSocketChannel.open();
+    server.bind(new InetSocketAddress(port));
+    server.configureBlocking(false);
+    server.register(selector, SelectionKey.OP_ACCEPT);
+  }
+
+  /**
+   * The port the server is listening on
+   */
+  public int port() throws IOException {
+    return ((InetSocketAddress) server.getLocalAddress()).getPort();
+  }
+
+  /**
+   * Number of open client connections
+   */
+  public int sessionCount() {
+    return sessions.get();
+  }
+
+  /**
+   * Runs the selector loop until {@link #close} is called
+   */
+  public void run() throws IOException {
+    while (running) {
+      selector.select();
+      Session s;
+      while ((s = writable.poll()) != null) {
+        if (s.key.isValid()) {
+          s.key.interestOps(s.key.interestOps() | SelectionKey.OP_WRITE);
+        }
+      }
+      Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+      while (keys.hasNext()) {
+        SelectionKey key = keys.next();
+        keys.remove();
+        try {
+          if (!key.isValid()) {
+            continue;
+          }
+          if (key.isAcceptable()) {
+            accept();
+          }
+          if (key.isValid() && key.isReadable()) {
+            ((Session) key.attachment()).read();
+          }
+          if (key.isValid() && key.isWritable()) {
+            ((Session) key.attachment()).write();
+          }
+        } catch (IOException e) {
+          if (key.attachment() != null) {
+            ((Session) key.attachment()).disconnect();
+          }
+        }
+      }
+    }
+    for (SelectionKey key : selector.keys()) {
+      if (key.attachment() != null) {
+        ((Session) key.attachment()).disconnect();
+      }
+    }
+    selector.close();
+    workers.shutdown();
+    try {
+      workers.awaitTermination(SHUTDOWN_WAIT_SECONDS, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    synchronized (queries) {
+      for (Query q : queries) {
+        try {
+          q.closeConnection();
+        } catch (SQLException e) {
+          e.printStackTrace();
+        }
+      }
+      queries.clear();
+    }
+  }
+
+  /**
+   * Stops accepting clients, disconnects the open ones and stops the loop
+   */
+  @Override
+  public void close() throws IOException {
+    running = false;
+    server.close();
+    selector.wakeup();
+    workers.shutdown();
+  }
+
+  private void accept() throws IOException {
+    SocketChannel channel;
+    while ((channel = server.accept()) != null) {
+      channel.configureBlocking(false);
+      channel.socket().setTcpNoDelay(true);
+      Session s = new Session(channel);
+      s.key = channel.register(selector, SelectionKey.OP_READ, s);
+      sessions.incrementAndGet();
+    }
+  }
+
+  /**
+   * A worker thread's Query, opened on its first command, and the buffer its
+   * responses are rendered into
+   */
+  private class Worker {
+    Query q;
+    final StringBuilder response = new StringBuilder();
+
+    Query query() throws SQLException {
+      if (q == null) {
+        Query query = new Query();
+        query.openConnection(configProps);
+        query.prepareStatements();
+        queries.add(query);
+        store = query.sessionStore();
+        q = query;
+      }
+      return q;
+    }
+  }
+
+  /**
+   * One client connection and its session
+   */
+  private class Session {
+    final SocketChannel channel;
+    SelectionKey key;
+    final String id = SessionStore.newId();
+
+    // Selector thread only; grown when a line does not fit
+    byte[] line = EMPTY_LINE;
+    int lineLength;
+
+    // Guarded by this: commands waiting to run, and whether a worker is on them
+    final Deque<String> commands = new ArrayDeque<>();
+    boolean running;
+    boolean closing;
+
+    final Queue<ByteBuffer> out = new ConcurrentLinkedQueue<>();
+
+    // Whether a command has run, so the session may have saved state; set by
+    // the worker running its commands, read once none is
+    boolean started;
+
+    Session(SocketChannel channel) {
+      this.channel = channel;
+    }
+
+    void read() throws IOException {
+      // through Buffer, so a newer compiler links the Java 8 signatures
+      ((Buffer) in).clear();
+      int n = channel.read(in);
+      if (n < 0) {
+        disconnect();
+        return;
+      }
+      ((Buffer) in).flip();
+      while (in.hasRemaining()) {
+        byte b = in.get();
+        if (b == '\n') {
+          int end = lineLength > 0 && line[lineLength - 1] == '\r' ? lineLength - 1 : lineLength;
+          submit(new String(line, 0, end, StandardCharsets.UTF_8));
+          lineLength = 0;
+        } else if (lineLength == MAX_LINE) {
+          send(LINE_TOO_LONG);
+          lineLength = 0;
+          quitAfterOutput();
+        } else {
+          if (lineLength == line.length) {
+            line = Arrays.copyOf(line, Math.min(Math.max(2 * line.length, 64), MAX_LINE));
+          }
+          line[lineLength++] = b;
+        }
+      }
+    }
+
+    void write() throws IOException {
+      ByteBuffer buf;
+      while ((buf = out.peek()) != null) {
+        channel.write(buf);
+        if (buf.hasRemaining()) {
+          return;
+        }
+        out.poll();
+      }
+      key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+      synchronized (this) {
+        if (closing && !running && out.isEmpty()) {
+          disconnect();
+        }
+      }
+    }
+
+    /**
+     * Queues a command, starting a worker if none is running this session's
+     * commands
+     */
+    void submit(String command) {
+      synchronized (this) {
+        if (closing) {
+          return;
+        }
+        commands.addLast(command);
+        if (running) {
+          return;
+        }
+        running = true;
+      }
+      try {
+        workers.execute(this::runCommands);
+      } catch (RejectedExecutionException e) {
+        synchronized (this) {
+          commands.clear();
+          running = false;
+        }
+        send(BUSY);
+      }
+    }
+
+    /**
+     * Runs queued commands until there are none left
+     */
+    void runCommands() {
+      while (true) {
+        String command;
+        synchronized (this) {
+          command = commands.pollFirst();
+          if (command == null || closing) {
+            running = false;
+            if (!closing) {
+              return;
+            }
+            endSession();
+          }
+          if (!running) {
+            // let the selector thread disconnect once the output is flushed
+            writable.add(this);
+            selector.wakeup();
+            return;
+          }
+        }
+        Worker w = worker.get();
+        boolean more = execute(command, w);
+        send(w.response);
+        if (!more) {
+          quitAfterOutput();
+        }
+      }
+    }
+
+    /**
+     * Runs {@code command} as this session on the worker's Query, leaving its
+     * response in the worker's buffer
+     *
+     * @return false if it was a quit
+     */
+    private boolean execute(String command, Worker w) {
+      StringBuilder response = w.response;
+      response.setLength(0);
+      try {
+        Query q = w.query();
+        started = true;
+        q.resumeSession(id);
+        boolean more = true;
+        try {
+          more = FlightService.execute(q, command, response);
+          return more;
+        } finally {
+          if (more) {
+            q.saveSession();
+          } else {
+            q.endSession(id);
+          }
+        }
+      } catch (SQLException | IOException | RuntimeException e) {
+        // the client gets the command's usual failure, not the driver's text
+        e.printStackTrace();
+        response.setLength(0);
+        response.append(FlightService.failure(command));
+        return true;
+      }
+    }
+
+    void send(CharSequence text) {
+      StringBuilder sb = text instanceof StringBuilder ? (StringBuilder) text
+          : new StringBuilder(text.length() + 2).append(text);
+      if (sb.length() == 0 || sb.charAt(sb.length() - 1) != '\n') {
+        sb.append('\n');
+      }
+      sb.append('\n');
+      // encoded straight from the buffer, which the worker's next command reuses
+      out.add(StandardCharsets.UTF_8.encode(CharBuffer.wrap(sb)));
+      writable.add(this);
+      selector.wakeup();
+    }
+
+    void quitAfterOutput() {
+      synchronized (this) {
+        closing = true;
+        commands.clear();
+      }
+    }
+
+    void disconnect() {
+      boolean idle;
+      synchronized (this) {
+        if (!channel.isOpen()) {
+          return;
+        }
+        closing = true;
+        commands.clear();
+        idle = !running;
+      }
+      key.cancel();
+      try {
+        channel.close();
+      } catch (IOException e) {
+        // already gone
+      }
+      sessions.decrementAndGet();
+      if (idle) {
+        synchronized (this) {
+          endSession();
+        }
+      }
+    }
+
+    /**
+     * Drops the session's state straight from the store, without a Query
+     */
+    private void endSession() {
+      SessionStore s = store;
+      if (started && s != null) {
+        s.remove(id);
+      }
+      started = false;
+    }
+  }
+}
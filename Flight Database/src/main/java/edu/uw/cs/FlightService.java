@@ -2,128 +2,256 @@ package edu.uw.cs;
 
 import java.io.*;
 import java.util.*;
-import java.util.regex.*;
 import java.sql.*;
 
 public class FlightService {
 
   /**
-   * Execute the specified command on the database query connection
+   * Runs one parsed command on a session, writing its response to
+   * {@code out}. Arguments start at token 1.
    */
-  public static String execute(Query q, String command) {
-    String[] tokens = tokenize(command.trim());
-    String response;
+  interface Command {
+    void run(Query q, CommandParser cmd, Appendable out) throws IOException;
+  }
 
-    // empty input
-    if (tokens.length == 0) {
-      response = "Please enter a command";
+  // Ends the session
+  static final String QUIT = "quit";
+
+  // Registered commands, looked up by comparing the first token in place;
+  // replaced as a whole on register
+  private static volatile Entry[] registry = new Entry[0];
+
+  private static class Entry {
+    final String name;
+    final Command command;
+
+    Entry(String name, Command command) {
+      this.name = name;
+      this.command = command;
     }
+  }
 
-    // login
-    else if (tokens[0].equals("login")) {
-      if (tokens.length == 3) {
-        String username = tokens[1];
-        String password = tokens[2];
-        response = q.transaction_login(username, password);
+  // One parser per thread, reused for every command
+  private static final ThreadLocal<CommandParser> parsers = ThreadLocal.withInitial(CommandParser::new);
+
+  static {
+    register("login", (q, cmd, out) -> {
+      if (cmd.count() != 3) {
+        out.append("Error: Please provide a username and password");
       } else {
-        response = "Error: Please provide a username and password";
+        out.append(q.transaction_login(cmd.token(1), cmd.token(2)));
       }
-    }
-
-    // create
-    else if (tokens[0].equals("create")) {
-      if (tokens.length == 4) {
-        String username = tokens[1];
-        String password = tokens[2];
-        int initAmount = Integer.parseInt(tokens[3]);
-        response = q.transaction_createCustomer(username, password, initAmount);
+    });
+    register("create", (q, cmd, out) -> {
+      if (cmd.count() != 4) {
+        out.append("Error: Please provide a username, password, and initial amount in the account");
+      } else if (!cmd.isInt(3)) {
+        out.append("Failed to parse integer");
       } else {
-        response = "Error: Please provide a username, password, and initial amount in the account";
+        out.append(q.transaction_createCustomer(cmd.token(1), cmd.token(2), cmd.intToken(3)));
       }
-    }
-
-    // search
-    else if (tokens[0].equals("search")) {
-      if (tokens.length == 6) {
-        String originCity = tokens[1];
-        String destinationCity = tokens[2];
-        boolean direct = tokens[3].equals("1");
-        try {
-          int day = Integer.valueOf(tokens[4]);
-          int count = Integer.valueOf(tokens[5]);
-          response = q.transaction_search(originCity, destinationCity, direct, day, count);
-        } catch (NumberFormatException e) {
-          response = "Failed to parse integer";
-        }
+    });
+    register("search", (q, cmd, out) -> {
+      if (cmd.count() != 6) {
+        out.append("Error: Please provide all search parameters <origin_city> <destination_city> <direct> <date> <nb itineraries>");
+      } else if (!cmd.isInt(4) || !cmd.isInt(5)) {
+        out.append("Failed to parse integer");
       } else {
-        response = "Error: Please provide all search parameters <origin_city> <destination_city> <direct> <date> <nb itineraries>";
+        q.transaction_search(cmd.token(1), cmd.token(2), cmd.tokenEquals(3, "1"), cmd.intToken(4), cmd.intToken(5),
+            out);
       }
-    }
-
-    // book
-    else if (tokens[0].equals("book")) {
-      if (tokens.length == 2) {
-        int itinerary_id = Integer.parseInt(tokens[1]);
-        response = q.transaction_book(itinerary_id);
+    });
+    register("search-page", (q, cmd, out) -> {
+      if (cmd.count() != 6) {
+        out.append("Error: Please provide all search parameters <origin_city> <destination_city> <direct> <date> <page size>");
+      } else if (!cmd.isInt(4) || !cmd.isInt(5)) {
+        out.append("Failed to parse integer");
       } else {
-        response = "Error: Please provide an itinerary_id";
+        q.transaction_searchPage(cmd.token(1), cmd.token(2), cmd.tokenEquals(3, "1"), cmd.intToken(4),
+            cmd.intToken(5), out);
       }
-    }
-
-    // reservations
-    else if (tokens[0].equals("reservations")) {
-      response = q.transaction_reservations();
-    }
-
-    // pay
-    else if (tokens[0].equals("pay")) {
-      if (tokens.length == 2) {
-        int reservation_id = Integer.parseInt(tokens[1]);
-        response = q.transaction_pay(reservation_id);
+    });
+    register("search-next", (q, cmd, out) -> {
+      if (cmd.count() != 2) {
+        out.append("Error: Please provide the cursor of the last page");
       } else {
-        response = "Error: Please provide a reservation_id";
+        q.transaction_searchNext(cmd.token(1), out);
       }
-    }
-
-    // cancel
-    else if (tokens[0].equals("cancel")) {
-      if (tokens.length == 2) {
-        int reservation_id = Integer.parseInt(tokens[1]);
-        response = q.transaction_cancel(reservation_id);
+    });
+    register("search-hops", (q, cmd, out) -> {
+      if (cmd.count() != 6) {
+        out.append("Error: Please provide all search parameters <origin_city> <destination_city> <max legs> <date> <nb itineraries>");
+      } else if (!cmd.isInt(3) || !cmd.isInt(4) || !cmd.isInt(5)) {
+        out.append("Failed to parse integer");
+      } else {
+        q.transaction_searchHops(cmd.token(1), cmd.token(2), cmd.intToken(3), cmd.intToken(4), cmd.intToken(5), out);
+      }
+    });
+    register("book", (q, cmd, out) -> {
+      if (cmd.count() != 2) {
+        out.append("Error: Please provide an itinerary_id");
+      } else if (!cmd.isInt(1)) {
+        out.append("Failed to parse integer");
+      } else {
+        out.append(q.transaction_book(cmd.intToken(1)));
+      }
+    });
+    register("reservations", (q, cmd, out) -> q.transaction_reservations(out));
+    register("pay", (q, cmd, out) -> {
+      if (cmd.count() != 2) {
+        out.append("Error: Please provide a reservation_id");
+      } else if (!cmd.isInt(1)) {
+        out.append("Failed to parse integer");
+      } else {
+        out.append(q.transaction_pay(cmd.intToken(1)));
+      }
+    });
+    register("cancel", (q, cmd, out) -> {
+      if (cmd.count() != 2) {
+        out.append("Error: Please provide a reservation_id");
+      } else if (!cmd.isInt(1)) {
+        out.append("Failed to parse integer");
       } else {
-        response = "Error: Please provide a reservation_id";
+        out.append(q.transaction_cancel(cmd.intToken(1)));
+      }
+    });
+    register(QUIT, (q, cmd, out) -> out.append("Goodbye\n"));
+  }
+
+  /**
+   * Adds a command, or replaces the one with the same name
+   */
+  static synchronized void register(String name, Command command) {
+    Entry[] entries = registry;
+    for (int i = 0; i < entries.length; i++) {
+      if (entries[i].name.equals(name)) {
+        entries = entries.clone();
+        entries[i] = new Entry(name, command);
+        registry = entries;
+        return;
       }
     }
+    entries = Arrays.copyOf(entries, entries.length + 1);
+    entries[entries.length - 1] = new Entry(name, command);
+    registry = entries;
+  }
 
-    // quit
-    else if (tokens[0].equals("quit")) {
-      response = "Goodbye\n";
+  /**
+   * Execute the specified command on the database query connection
+   */
+  public static String execute(Query q, String command) {
+    StringBuilder sb = new StringBuilder();
+    try {
+      execute(q, command, sb);
+    } catch (IOException e) {
+      // a StringBuilder does not throw
+      throw new UncheckedIOException(e);
     }
+    return sb.toString();
+  }
 
-    // unknown command
-    else {
-      response = "Error: unrecognized command '" + tokens[0] + "'";
+  /**
+   * Execute the specified command on the database query connection, writing
+   * the response to {@code out} as it is rendered
+   *
+   * @return false if the command was a quit
+   * @throws IOException if {@code out} does
+   */
+  public static boolean execute(Query q, String command, Appendable out) throws IOException {
+    CommandParser cmd = parsers.get();
+    // empty input
+    if (cmd.parse(command.trim()) == 0) {
+      out.append("Please enter a command");
+      return true;
+    }
+    for (Entry e : registry) {
+      if (cmd.tokenEquals(0, e.name)) {
+        e.command.run(q, cmd, out);
+        return !e.name.equals(QUIT);
+      }
     }
+    // unknown command
+    out.append("Error: unrecognized command '").append(cmd.token(0)).append('\'');
+    return true;
+  }
 
-    return response;
+  /**
+   * The response {@code command} gives when its transaction fails, for when
+   * running it threw instead, so that what went wrong stays out of the reply
+   */
+  static String failure(String command) {
+    CommandParser cmd = parsers.get();
+    if (cmd.parse(command.trim()) == 0) {
+      return "Please enter a command\n";
+    }
+    String id = cmd.count() > 1 ? cmd.token(1) : "";
+    if (cmd.tokenEquals(0, "login")) {
+      return "Login failed\n";
+    } else if (cmd.tokenEquals(0, "create")) {
+      return "Failed to create user\n";
+    } else if (cmd.tokenEquals(0, "book")) {
+      return "Booking failed\n";
+    } else if (cmd.tokenEquals(0, "pay")) {
+      return "Failed to pay for reservation " + id + "\n";
+    } else if (cmd.tokenEquals(0, "reservations")) {
+      return "Failed to retrieve reservations\n";
+    } else if (cmd.tokenEquals(0, "cancel")) {
+      return "Failed to cancel reservation " + id + "\n";
+    } else if (cmd.token(0).startsWith("search")) {
+      return "Failed to search\n";
+    }
+    return "Failed to run " + cmd.token(0) + "\n";
   }
 
   /**
    * Establishes an application-to-database connection and runs the Flights
-   * application REPL
+   * application REPL. With {@code --server [port]} it serves the same commands
+   * to TCP clients instead, see {@link FlightServer}. With
+   * {@code --batch [file]} it runs the commands in the file, or on standard
+   * input, without prompts.
    * 
    * @param args
    * @throws IOException
    */
   public static void main(String[] args) throws IOException, SQLException {
+    if (args.length > 0 && args[0].equals("--server")) {
+      serve(args.length > 1 ? Integer.parseInt(args[1]) : -1);
+      return;
+    }
     /* prepare the database connection stuff */
     Query q = new Query();
     q.openConnection();
     q.prepareStatements();
-    menu(q);
+    if (args.length > 0 && args[0].equals("--batch")) {
+      String file = args.length > 1 ? args[1] : "-";
+      try (Reader in = file.equals("-") ? new InputStreamReader(System.in) : new FileReader(file)) {
+        batch(q, new BufferedReader(in, 1 << 16),
+            new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16));
+      }
+    } else {
+      menu(q);
+    }
     q.closeConnection();
   }
 
+  /**
+   * Runs a FlightServer on {@code port}, or on hw1.server.port if it is
+   * negative, until the process is killed
+   */
+  private static void serve(int port) throws IOException {
+    Properties configProps = new Properties();
+    try (FileInputStream in = new FileInputStream("dbconn.properties")) {
+      configProps.load(in);
+    }
+    if (port < 0) {
+      port = Integer.parseInt(configProps.getProperty("hw1.server.port", "3440"));
+    }
+    try (FlightServer server = new FlightServer(port, configProps)) {
+      System.err.println("Serving on port " + server.port());
+      server.run();
+    }
+  }
+
   /**
    * REPL (Read-Execute-Print-Loop) for Flights application for the specified
    * application-to-database connection
@@ -132,6 +260,7 @@ public class FlightService {
    * @throws IOException
    */
   private static void menu(Query q) throws IOException {
+    BufferedReader r = new BufferedReader(new InputStreamReader(System.in));
     while (true) {
       // print the command options
       System.out.println();
@@ -139,6 +268,9 @@ public class FlightService {
       System.out.println("> create <username> <password> <initial amount>");
       System.out.println("> login <username> <password>");
       System.out.println("> search <origin city> <destination city> <direct> <day of the month> <num itineraries>");
+      System.out.println("> search-page <origin city> <destination city> <direct> <day of the month> <page size>");
+      System.out.println("> search-next <cursor>");
+      System.out.println("> search-hops <origin city> <destination city> <max legs> <day of the month> <num itineraries>");
       System.out.println("> book <itinerary id>");
       System.out.println("> pay <reservation id>");
       System.out.println("> reservations");
@@ -146,32 +278,40 @@ public class FlightService {
       System.out.println("> quit");
 
       // read an input command from the REPL
-      BufferedReader r = new BufferedReader(new InputStreamReader(System.in));
       System.out.print("> ");
       String command = r.readLine();
+      if (command == null) {
+        break;
+      }
 
       // execute the given input command
-      String response = execute(q, command);
-      System.out.print(response);
-      if (response.equals("Goodbye\n")) {
+      if (!execute(q, command, System.out)) {
         break;
       }
     }
   }
 
   /**
-   * Tokenize a string into a string array
+   * Runs every command from {@code in}, writing the responses to {@code out}
+   * as the REPL would print them, until the input ends or a quit. Prints the
+   * command rate to standard error at the end.
+   *
+   * @return number of commands run
    */
-  private static String[] tokenize(String command) {
-    String regex = "\"([^\"]*)\"|(\\S+)";
-    Matcher m = Pattern.compile(regex).matcher(command);
-    List<String> tokens = new ArrayList<>();
-    while (m.find()) {
-      if (m.group(1) != null)
-        tokens.add(m.group(1));
-      else
-        tokens.add(m.group(2));
+  static int batch(Query q, BufferedReader in, Writer out) throws IOException {
+    long start = System.nanoTime();
+    int commands = 0;
+    String command;
+    while ((command = in.readLine()) != null) {
+      commands++;
+      if (!execute(q, command, out)) {
+        break;
+      }
     }
-    return tokens.toArray(new String[0]);
+    out.flush();
+    double seconds = (System.nanoTime() - start) / 1e9;
+    System.err.printf("%d commands in %.3f s, %.1f commands/sec%n", commands, seconds,
+        seconds == 0 ? 0.0 : commands / seconds);
+    return commands;
   }
 }
@@ -0,0 +1,277 @@
+package edu.uw.cs;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.sql.*;
+import java.util.zip.*;
+
+/**
+ * Binary snapshot of a {@link FlightCache}, so a process can start without
+ * scanning the Flights table.
+ *
+ * The file is little-endian. It starts with a header of eleven ints: magic,
+ * version, a hash of the database it was taken from and of how its Flights
+ * were loaded, rows, the lowest and highest fid, the number of cities,
+ * carriers and flight numbers, the length of the body in bytes and the CRC32
+ * of the body. The body holds one int column per flight attribute,
+ * each one int per row in fid order (fid, day, carrier, flight number, origin,
+ * destination, time, capacity, price, canceled), with the string attributes
+ * as ids. After the columns come the city, carrier and flight number
+ * dictionaries, each entry as a UTF-8 byte count and the bytes, with -1 for
+ * null, in id order.
+ *
+ * Reading maps the file and copies the columns out of the mapping in bulk, so
+ * a start costs a sequential read of page-cached memory rather than a table
+ * scan, and processes on one host share the cached pages. A snapshot is only
+ * used if the database's Flights still has its row count and fid range, from
+ * {@link #EXTENT}, which catches most reloads; Flights never changes while the
+ * application runs, but delete the snapshot after reloading the table with
+ * the same fids.
+ */
+class FlightSnapshot {
+  static final int MAGIC = 0x464C5350; // "FLSP"
+  static final int VERSION = 2;
+
+  // Row count and fid range of Flights, checked against a snapshot's
+  static final String EXTENT = "SELECT count(*) AS n, min(fid) AS lo, max(fid) AS hi FROM Flights";
+
+  private static final int HEADER_INTS = 11;
+  private static final int HEADER_BYTES = HEADER_INTS * 4;
+  private static final int COLUMNS = 10;
+  private static final int NULL_NAME = -1;
+
+  /**
+   * Writes {@code cache}, loaded from the database at {@code url}, to
+   * {@code file}. The file is written beside it and moved into place, so
+   * readers never see a partial snapshot.
+   *
+   * @param flights how the database's Flights was loaded, from
+   *                {@link Storage#flightsSource}
+   */
+  static void write(FlightCache cache, String url, String flights, Path file) throws IOException {
+    byte[][] cities = encode(cache.cities());
+    byte[][] carriers = encode(cache.carriers());
+    byte[][] flightNums = encode(cache.flightNums());
+    int rows = cache.size();
+    long body = (long) COLUMNS * rows * 4 + length(cities) + length(carriers) + length(flightNums);
+    if (HEADER_BYTES + body > Integer.MAX_VALUE) {
+      throw new IOException("Too many flights for a snapshot: " + rows);
+    }
+    ByteBuffer buf = ByteBuffer.allocate(HEADER_BYTES + (int) body).order(ByteOrder.LITTLE_ENDIAN);
+    // Buffer methods are called through Buffer, whose Java 8 signatures
+    // newer compilers would otherwise skip for ByteBuffer's overrides
+    ((Buffer) buf).position(HEADER_BYTES);
+    for (int column = 0; column < COLUMNS; column++) {
+      for (int row = 0; row < rows; row++) {
+        buf.putInt(value(cache, column, row));
+      }
+    }
+    put(buf, cities);
+    put(buf, carriers);
+    put(buf, flightNums);
+
+    ((Buffer) buf).position(HEADER_BYTES);
+    CRC32 crc = new CRC32();
+    crc.update(buf);
+    buf.putInt(0, MAGIC)
+       .putInt(4, VERSION)
+       .putInt(8, source(url, flights))
+       .putInt(12, rows)
+       .putInt(16, rows == 0 ? 0 : cache.fid(0))
+       .putInt(20, rows == 0 ? 0 : cache.fid(rows - 1))
+       .putInt(24, cities.length)
+       .putInt(28, carriers.length)
+       .putInt(32, flightNums.length)
+       .putInt(36, (int) body)
+       .putInt(40, (int) crc.getValue());
+    ((Buffer) buf).rewind();
+
+    Path dir = file.toAbsolutePath().getParent();
+    Path tmp = Files.createTempFile(dir, file.getFileName().toString(), ".tmp");
+    try {
+      try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+        while (buf.hasRemaining()) {
+          ch.write(buf);
+        }
+        ch.force(true);
+      }
+      Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(tmp);
+    }
+  }
+
+  /**
+   * Reads the row count and lowest and highest fid of Flights over
+   * {@code conn}, for {@link #read}
+   */
+  static int[] extent(Connection conn) throws SQLException {
+    try (Statement stmt = conn.createStatement(); ResultSet rs = stmt.executeQuery(EXTENT)) {
+      rs.next();
+      return new int[] { rs.getInt("n"), rs.getInt("lo"), rs.getInt("hi") };
+    }
+  }
+
+  /**
+   * Reads a snapshot written by {@link #write}
+   *
+   * @param extent row count and fid range of Flights now, from
+   *               {@link #extent}
+   * @throws IOException if the file cannot be read, or is not a snapshot of
+   *         this version taken from the database at {@code url} with Flights
+   *         loaded the same way and of the same extent, or is damaged
+   */
+  static FlightCache read(String url, String flights, int[] extent, Path file) throws IOException {
+    try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+      long size = ch.size();
+      if (size < HEADER_BYTES || size > Integer.MAX_VALUE) {
+        throw new IOException("Not a flight snapshot: " + file);
+      }
+      MappedByteBuffer map = ch.map(FileChannel.MapMode.READ_ONLY, 0, size);
+      map.order(ByteOrder.LITTLE_ENDIAN);
+      return read(map, url, flights, extent, file);
+    }
+  }
+
+  /**
+   * Reads {@code file} if it holds a valid snapshot
+   *
+   * @return the cache, or null if there is no file or it cannot be used
+   */
+  static FlightCache readIfValid(String url, String flights, int[] extent, Path file) {
+    if (!Files.isRegularFile(file)) {
+      return null;
+    }
+    try {
+      return read(url, flights, extent, file);
+    } catch (IOException e) {
+      System.err.println("Ignoring flight snapshot " + file + ": " + e.getMessage());
+      return null;
+    }
+  }
+
+  private static FlightCache read(ByteBuffer map, String url, String flights, int[] extent, Path file)
+      throws IOException {
+    if (map.getInt(0) != MAGIC) {
+      throw new IOException("Not a flight snapshot: " + file);
+    }
+    if (map.getInt(4) != VERSION) {
+      throw new IOException("Snapshot version " + map.getInt(4) + " is not " + VERSION + ": " + file);
+    }
+    if (map.getInt(8) != source(url, flights)) {
+      throw new IOException("Snapshot of another database: " + file);
+    }
+    int rows = map.getInt(12);
+    if (rows != extent[0] || map.getInt(16) != extent[1] || map.getInt(20) != extent[2]) {
+      throw new IOException("Flights has changed since the snapshot: " + file);
+    }
+    int body = map.getInt(36);
+    if (rows < 0 || body < 0 || (long) COLUMNS * rows * 4 > body || HEADER_BYTES + (long) body != map.capacity()) {
+      throw new IOException("Truncated flight snapshot: " + file);
+    }
+    ((Buffer) map).position(HEADER_BYTES);
+    CRC32 crc = new CRC32();
+    crc.update(map);
+    if ((int) crc.getValue() != map.getInt(40)) {
+      throw new IOException("Damaged flight snapshot: " + file);
+    }
+
+    // bulk copy of each column out of the mapping
+    ((Buffer) map).position(HEADER_BYTES);
+    IntBuffer ints = map.slice().order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+    int[][] columns = new int[COLUMNS][rows];
+    for (int[] column : columns) {
+      ints.get(column);
+    }
+
+    ((Buffer) map).position(HEADER_BYTES + COLUMNS * rows * 4);
+    FlightCache.Builder b = new FlightCache.Builder();
+    try {
+      intern(map, map.getInt(24), b.cities);
+      intern(map, map.getInt(28), b.carriers);
+      intern(map, map.getInt(32), b.flightNums);
+      for (int row = 0; row < rows; row++) {
+        b.addEncoded(columns[0][row], columns[1][row], columns[2][row], columns[3][row], columns[4][row],
+            columns[5][row], columns[6][row], columns[7][row], columns[8][row], columns[9][row] != 0);
+      }
+    } catch (IllegalArgumentException | BufferUnderflowException e) {
+      throw new IOException("Damaged flight snapshot: " + file, e);
+    }
+    return b.build();
+  }
+
+  /**
+   * Identifies the database a snapshot belongs to, and how its Flights was
+   * loaded, without keeping its URL, which may hold a password
+   */
+  private static int source(String url, String flights) {
+    return (url + '\n' + flights).hashCode();
+  }
+
+  private static int value(FlightCache cache, int column, int row) {
+    switch (column) {
+      case 0: return cache.fid(row);
+      case 1: return cache.day(row);
+      case 2: return cache.carrier(row);
+      case 3: return cache.flightNum(row);
+      case 4: return cache.origin(row);
+      case 5: return cache.dest(row);
+      case 6: return cache.time(row);
+      case 7: return cache.capacity(row);
+      case 8: return cache.price(row);
+      default: return cache.canceled(row) ? 1 : 0;
+    }
+  }
+
+  private static byte[][] encode(FlightCache.Dictionary dictionary) {
+    byte[][] names = new byte[dictionary.size()][];
+    for (int id = 0; id < names.length; id++) {
+      String name = dictionary.name(id);
+      names[id] = name == null ? null : name.getBytes(StandardCharsets.UTF_8);
+    }
+    return names;
+  }
+
+  private static long length(byte[][] names) {
+    long n = 0;
+    for (byte[] name : names) {
+      n += 4 + (name == null ? 0 : name.length);
+    }
+    return n;
+  }
+
+  private static void put(ByteBuffer buf, byte[][] names) {
+    for (byte[] name : names) {
+      if (name == null) {
+        buf.putInt(NULL_NAME);
+      } else {
+        buf.putInt(name.length).put(name);
+      }
+    }
+  }
+
+  /**
+   * Reads {@code count} names into {@code dictionary}, which must give them
+   * the ids they had when written
+   */
+  private static void intern(ByteBuffer buf, int count, FlightCache.Dictionary dictionary) {
+    for (int id = 0; id < count; id++) {
+      int length = buf.getInt();
+      String name = null;
+      if (length != NULL_NAME) {
+        if (length < 0 || length > buf.remaining()) {
+          throw new IllegalArgumentException("Bad name length: " + length);
+        }
+        byte[] bytes = new byte[length];
+        buf.get(bytes);
+        name = new String(bytes, StandardCharsets.UTF_8);
+      }
+      if (dictionary.intern(name) != id) {
+        throw new IllegalArgumentException("Repeated name: " + name);
+      }
+    }
+  }
+}
@@ -0,0 +1,362 @@
+package edu.uw.cs;
+
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Runs the write transactions of many sessions together, so they share one
+ * commit.
+ *
+ * Sessions hand their book, pay and cancel bodies to a single committer
+ * thread, which collects them for up to {@code windowMillis} or until it has
+ * {@code maxGroup}, then runs them one after another in one transaction on a
+ * pooled connection and commits once. Each body runs from its own savepoint,
+ * so a body that rolls back only undoes its own work, and later bodies see
+ * the writes of earlier ones, which keeps the same-day and balance rules
+ * exact within a group. Work a body defers until its commit waits for the
+ * group's commit.
+ *
+ * If any body throws, or the commit fails, the whole group is rolled back and
+ * each body is run again in a transaction of its own, with the usual retries.
+ * Grouped transactions run serializable.
+ *
+ * When the committer thread is stopped, every body it has not run yet gets
+ * its failure response, and so does any body submitted after.
+ */
+class GroupCommitter {
+  // Transaction types that join groups
+  static final Set<TransactionType> GROUPED = EnumSet.of(TransactionType.BOOK, TransactionType.PAY,
+      TransactionType.CANCEL);
+
+  private final ConnectionPool pool;
+  private final TransactionRetry retry;
+  private final long windowNanos;
+  private final int maxGroup;
+  private final BlockingQueue<Op> queue = new LinkedBlockingQueue<>();
+  private final Thread thread;
+  private volatile boolean stopped;
+
+  // Metrics
+  private final AtomicLong groups = new AtomicLong();
+  private final AtomicLong grouped = new AtomicLong();
+  private final AtomicLong fallbacks = new AtomicLong();
+  private final AtomicInteger largest = new AtomicInteger();
+
+  GroupCommitter(ConnectionPool pool, TransactionRetry retry, long windowMillis, int maxGroup) {
+    if (windowMillis < 0 || maxGroup <= 0) {
+      throw new IllegalArgumentException("Bad group commit settings: " + windowMillis + " ms, " + maxGroup + " per group");
+    }
+    this.pool = pool;
+    this.retry = retry;
+    this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+    this.maxGroup = maxGroup;
+    thread = new Thread(this::run, "group-committer");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Runs {@code body} for {@code query} in the next group and waits for its
+   * response. The query's connection and statements point at the group's
+   * connection while the body runs.
+   *
+   * @param failure response if the body cannot complete
+   */
+  String submit(Query query, TransactionType type, String failure, TransactionRetry.Body body) {
+    Op op = new Op(query, type, failure, body);
+    queue.add(op);
+    if (stopped) {
+      // the committer may have drained the queue before op was added
+      failPending();
+    }
+    // The committer uses the query until the result is in, so wait it out
+    boolean interrupted = false;
+    try {
+      while (true) {
+        try {
+          return op.result.get();
+        } catch (InterruptedException e) {
+          interrupted = true;
+        } catch (ExecutionException e) {
+          if (e.getCause() instanceof RuntimeException) {
+            throw (RuntimeException) e.getCause();
+          }
+          throw new IllegalStateException(e.getCause());
+        }
+      }
+    } finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * Stops the committer thread. Bodies not yet run get their failure
+   * response.
+   */
+  void stop() {
+    thread.interrupt();
+  }
+
+  /**
+   * One line summary of the group commit metrics
+   */
+  String metrics() {
+    long n = groups.get();
+    return String.format("groupCommit: groups=%d grouped=%d avgGroup=%.1f maxGroup=%d fallbacks=%d", n,
+        grouped.get(), n == 0 ? 0.0 : (double) grouped.get() / n, largest.get(), fallbacks.get());
+  }
+
+  /**
+   * The committer's MBean
+   */
+  GroupCommitMBean mbean() {
+    return new Stats();
+  }
+
+  /**
+   * Groups committed, the bodies in them and the bodies that ran alone
+   */
+  public interface GroupCommitMBean extends QueryMetrics.ComponentMBean {
+    long getGroups();
+
+    long getGrouped();
+
+    double getMeanGroup();
+
+    int getMaxGroup();
+
+    long getFallbacks();
+  }
+
+  private class Stats implements GroupCommitMBean {
+    public String getSummary() {
+      return metrics();
+    }
+
+    public long getGroups() {
+      return groups.get();
+    }
+
+    public long getGrouped() {
+      return grouped.get();
+    }
+
+    public double getMeanGroup() {
+      long n = groups.get();
+      return n == 0 ? 0.0 : (double) grouped.get() / n;
+    }
+
+    public int getMaxGroup() {
+      return largest.get();
+    }
+
+    public long getFallbacks() {
+      return fallbacks.get();
+    }
+  }
+
+  private void run() {
+    List<Op> group = new ArrayList<>();
+    while (true) {
+      try {
+        group.add(queue.take());
+        long deadline = System.nanoTime() + windowNanos;
+        while (group.size() < maxGroup) {
+          long left = deadline - System.nanoTime();
+          Op op = left > 0 ? queue.poll(left, TimeUnit.NANOSECONDS) : queue.poll();
+          if (op == null) {
+            break;
+          }
+          group.add(op);
+        }
+        runGroup(group);
+      } catch (InterruptedException e) {
+        stopped = true;
+        for (Op op : group) {
+          op.result.complete(op.failure);
+        }
+        failPending();
+        return;
+      } catch (RuntimeException e) {
+        for (Op op : group) {
+          op.result.completeExceptionally(e);
+        }
+      } finally {
+        group.clear();
+      }
+    }
+  }
+
+  /**
+   * Answers every queued body with its failure response
+   */
+  private void failPending() {
+    Op op;
+    while ((op = queue.poll()) != null) {
+      op.result.complete(op.failure);
+    }
+  }
+
+  private void runGroup(List<Op> group) {
+    ConnectionPool.PooledConnection pc;
+    try {
+      pc = pool.borrow();
+    } catch (SQLException e) {
+      e.printStackTrace();
+      for (Op op : group) {
+        op.result.complete(op.failure);
+      }
+      return;
+    }
+    try {
+      if (!runTogether(pc, group)) {
+        fallbacks.incrementAndGet();
+        for (Op op : group) {
+          runAlone(pc, op);
+        }
+      }
+    } finally {
+      pool.release(pc);
+    }
+  }
+
+  /**
+   * Runs the whole group in one transaction
+   *
+   * @return false if it was rolled back
+   */
+  private boolean runTogether(ConnectionPool.PooledConnection pc, List<Op> group) {
+    Connection conn = pc.connection();
+    int started = 0;
+    try {
+      if (pc.isolation != Connection.TRANSACTION_SERIALIZABLE) {
+        conn.rollback();
+        conn.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
+        pc.isolation = Connection.TRANSACTION_SERIALIZABLE;
+      }
+      for (Op op : group) {
+        started++;
+        op.start(conn);
+        op.query.joinGroup(pc, op);
+        try {
+          op.response = op.body.run();
+        } finally {
+          op.query.joinGroup(null, null);
+        }
+      }
+      conn.commit();
+    } catch (SQLException | RuntimeException e) {
+      try {
+        conn.rollback();
+      } catch (SQLException ignored) {
+        // the pool discards it on release if it is broken
+      }
+      for (int i = 0; i < started; i++) {
+        group.get(i).abandon();
+      }
+      return false;
+    }
+    groups.incrementAndGet();
+    grouped.addAndGet(group.size());
+    largest.accumulateAndGet(group.size(), Math::max);
+    for (Op op : group) {
+      try {
+        op.commit();
+      } finally {
+        op.result.complete(op.response);
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Runs one body in a transaction of its own, as it would run without
+   * group commit
+   */
+  private void runAlone(ConnectionPool.PooledConnection pc, Op op) {
+    try {
+      op.query.joinGroup(pc, null);
+      op.result.complete(retry.run(op.type, pc.connection(), op.failure, op.body));
+    } catch (SQLException | RuntimeException e) {
+      op.result.completeExceptionally(e);
+    } finally {
+      try {
+        op.query.joinGroup(null, null);
+      } catch (SQLException e) {
+        // nothing is bound when leaving
+      }
+    }
+  }
+
+  /**
+   * One session's body in a group, and the work it deferred until the group
+   * commits
+   */
+  static class Op {
+    final Query query;
+    final TransactionType type;
+    final String failure;
+    final TransactionRetry.Body body;
+    final CompletableFuture<String> result = new CompletableFuture<>();
+
+    private Connection conn;
+    private Savepoint savepoint;
+    private final List<Runnable> committed = new ArrayList<>();
+    private final List<Runnable> abandoned = new ArrayList<>();
+    String response;
+
+    Op(Query query, TransactionType type, String failure, TransactionRetry.Body body) {
+      this.query = query;
+      this.type = type;
+      this.failure = failure;
+      this.body = body;
+    }
+
+    /**
+     * Records that the body is done, with what to run once the group commits
+     * and, if not null, what to run instead if it does not
+     */
+    void onCommit(Runnable committed, Runnable abandoned) {
+      if (committed != null) {
+        this.committed.add(committed);
+      }
+      if (abandoned != null) {
+        this.abandoned.add(abandoned);
+      }
+    }
+
+    /**
+     * Undoes the body's work back to where it started, leaving the rest of the
+     * group alone
+     */
+    void rollback() throws SQLException {
+      conn.rollback(savepoint);
+      abandon();
+    }
+
+    private void start(Connection conn) throws SQLException {
+      this.conn = conn;
+      this.savepoint = conn.setSavepoint();
+    }
+
+    private void commit() {
+      for (Runnable r : committed) {
+        r.run();
+      }
+      committed.clear();
+      abandoned.clear();
+    }
+
+    private void abandon() {
+      for (Runnable r : abandoned) {
+        r.run();
+      }
+      committed.clear();
+      abandoned.clear();
+    }
+  }
+}
@@ -0,0 +1,179 @@
+package edu.uw.cs;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.sql.*;
+import java.util.*;
+
+/**
+ * Embedded H2 backend for running the application and benchmarks on a local
+ * machine with no network.
+ *
+ * The database runs in H2's SQL Server mode so the T-SQL in Query works as is.
+ * On first use it creates the Flights table, fills it either from a CSV file
+ * in the course's flights-small.csv layout or with {@link SyntheticFlights},
+ * and runs createTables.sql.
+ */
+class H2Storage implements Storage {
+  static final String DEFAULT_URL = "jdbc:h2:mem:flights;MODE=MSSQLServer;NON_KEYWORDS=DAY;DB_CLOSE_DELAY=-1";
+
+  private static final String CREATE_FLIGHTS = "CREATE TABLE FLIGHTS (" +
+                                               "fid int PRIMARY KEY, month_id int, day_of_month int, day_of_week_id int, " +
+                                               "carrier_id varchar(7), flight_num int, origin_city varchar(34), origin_state varchar(47), " +
+                                               "dest_city varchar(34), dest_state varchar(46), departure_delay int, taxi_out int, " +
+                                               "arrival_delay int, canceled int, actual_time int, distance int, capacity int, price int)";
+
+  private static final String INSERT_FLIGHT = "INSERT INTO FLIGHTS VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+  // Databases already set up in this process
+  private static final Set<String> initialized = new HashSet<>();
+
+  private final String url;
+  private final String tablesScript;
+  private final String flightsCsv;
+  private final int syntheticFlights;
+  private final long seed;
+
+  H2Storage(Properties configProps) {
+    url = configProps.getProperty("hw1.h2.url", DEFAULT_URL).trim();
+    tablesScript = configProps.getProperty("hw1.h2.tables_script", "createTables.sql").trim();
+    flightsCsv = configProps.getProperty("hw1.h2.flights_csv", "").trim();
+    syntheticFlights = Integer.parseInt(configProps.getProperty("hw1.h2.synthetic_flights", "100000").trim());
+    seed = Long.parseLong(configProps.getProperty("hw1.h2.seed", "344").trim());
+  }
+
+  @Override
+  public String url() {
+    return url;
+  }
+
+  @Override
+  public String flightsSource() {
+    if (flightsCsv.isEmpty()) {
+      return "synthetic " + syntheticFlights + " " + seed;
+    }
+    Path csv = Paths.get(flightsCsv);
+    try {
+      return "csv " + csv.toAbsolutePath() + " " + Files.size(csv) + " " + Files.getLastModifiedTime(csv).toMillis();
+    } catch (IOException e) {
+      // loading it fails too
+      return "csv " + csv.toAbsolutePath();
+    }
+  }
+
+  @Override
+  public void initialize() throws SQLException {
+    synchronized (initialized) {
+      if (initialized.contains(url)) {
+        return;
+      }
+      // Jars with dependencies merged keep only one java.sql.Driver service
+      // entry, so register the driver explicitly
+      org.h2.Driver.load();
+      try (Connection conn = DriverManager.getConnection(url)) {
+        conn.setAutoCommit(false);
+        if (!hasFlightsTable(conn)) {
+          try (Statement stmt = conn.createStatement()) {
+            stmt.execute(CREATE_FLIGHTS);
+          }
+          if (flightsCsv.isEmpty()) {
+            SyntheticFlights.load(conn, syntheticFlights, seed);
+          } else {
+            loadCsv(conn, flightsCsv);
+          }
+          runScript(conn, tablesScript);
+        }
+        conn.commit();
+      } catch (IOException e) {
+        throw new SQLException("Could not set up " + url, e);
+      }
+      initialized.add(url);
+    }
+  }
+
+  @Override
+  public int snapshotIsolation() {
+    // H2's own value for its SNAPSHOT level
+    return 6;
+  }
+
+  // H2 has no OUTPUT clause; it reads changed rows through data change delta
+  // tables instead
+
+  @Override
+  public String updateReturning(String table, String set, String where, String... columns) {
+    return "SELECT " + Storage.prefixed("", columns) + " FROM FINAL TABLE (UPDATE " + table + " SET " + set +
+        " WHERE " + where + ")";
+  }
+
+  @Override
+  public String deleteReturning(String table, String where, String... columns) {
+    return "SELECT " + Storage.prefixed("", columns) + " FROM OLD TABLE (DELETE FROM " + table + " WHERE " + where +
+        ")";
+  }
+
+  private static boolean hasFlightsTable(Connection conn) throws SQLException {
+    try (ResultSet rs = conn.getMetaData().getTables(null, null, "FLIGHTS", null)) {
+      return rs.next();
+    }
+  }
+
+  /**
+   * Runs a SQL script, one statement per semicolon. Lines starting with "--"
+   * and trailing "--" comments are ignored.
+   */
+  static void runScript(Connection conn, String path) throws IOException, SQLException {
+    StringBuilder sql = new StringBuilder();
+    for (String line : Files.readAllLines(Paths.get(path), StandardCharsets.UTF_8)) {
+      int comment = line.indexOf("--");
+      sql.append(comment >= 0 ? line.substring(0, comment) : line).append('\n');
+    }
+    try (Statement stmt = conn.createStatement()) {
+      for (String s : sql.toString().split(";")) {
+        if (!s.trim().isEmpty()) {
+          stmt.execute(s);
+        }
+      }
+    }
+  }
+
+  /**
+   * Loads Flights from a comma separated file with the columns in table order
+   * and no header.
+   */
+  static void loadCsv(Connection conn, String path) throws IOException, SQLException {
+    try (BufferedReader r = Files.newBufferedReader(Paths.get(path), StandardCharsets.UTF_8);
+        PreparedStatement insert = conn.prepareStatement(INSERT_FLIGHT)) {
+      String line;
+      int batched = 0;
+      while ((line = r.readLine()) != null) {
+        if (line.isEmpty()) {
+          continue;
+        }
+        String[] fields = line.split(",", -1);
+        for (int i = 0; i < 18; i++) {
+          String v = fields[i].trim();
+          if (v.isEmpty()) {
+            insert.setNull(i + 1, Types.VARCHAR);
+          } else {
+            insert.setString(i + 1, v);
+          }
+        }
+        insert.addBatch();
+        if (++batched % 1000 == 0) {
+          insert.executeBatch();
+        }
+      }
+      insert.executeBatch();
+    }
+  }
+
+  /**
+   * Statement that inserts one row into Flights, with the columns in table
+   * order
+   */
+  static PreparedStatement prepareInsert(Connection conn) throws SQLException {
+    return conn.prepareStatement(INSERT_FLIGHT);
+  }
+}
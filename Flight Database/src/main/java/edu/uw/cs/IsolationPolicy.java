@@ -0,0 +1,74 @@
+package edu.uw.cs;
+
+import java.sql.*;
+import java.util.*;
+
+/**
+ * The isolation level each {@link TransactionType} runs at.
+ *
+ * Levels are read from {@code hw1.isolation.<type>}, with the type in lower
+ * case, as one of serializable, repeatable_read, read_committed or snapshot.
+ * Unset, the read-only transactions, login, search and reservations, read
+ * from a snapshot so they neither take nor wait for shared locks, and the
+ * others run at {@code hw1.isolation.default}, serializable unless set.
+ *
+ * On SQL Server, snapshot needs ALLOW_SNAPSHOT_ISOLATION on the database, and
+ * read_committed only reads row versions when READ_COMMITTED_SNAPSHOT is on;
+ * Azure SQL has both on by default.
+ */
+class IsolationPolicy {
+  private static final Set<TransactionType> READ_ONLY =
+      EnumSet.of(TransactionType.LOGIN, TransactionType.SEARCH, TransactionType.RESERVATIONS);
+
+  private final int[] levels = new int[TransactionType.values().length];
+
+  IsolationPolicy(Storage storage, Properties configProps) {
+    String fallback = configProps.getProperty("hw1.isolation.default", "serializable");
+    for (TransactionType type : TransactionType.values()) {
+      String name = configProps.getProperty("hw1.isolation." + type.name().toLowerCase(Locale.ROOT),
+          READ_ONLY.contains(type) ? "snapshot" : fallback);
+      levels[type.ordinal()] = level(storage, name.trim());
+    }
+  }
+
+  /**
+   * JDBC isolation level for transactions of {@code type}
+   */
+  int level(TransactionType type) {
+    return levels[type.ordinal()];
+  }
+
+  /**
+   * Switches {@code conn} to the level for {@code type} unless
+   * {@code current}, the level the caller last set on it, is that already.
+   * Any open transaction on it is rolled back first, since the level can only
+   * change between transactions. The caller keeps the level rather than
+   * asking the driver, because some drivers, H2's over TCP among them, ask
+   * the server.
+   *
+   * @return the level {@code conn} is now at
+   */
+  int apply(Connection conn, int current, TransactionType type) throws SQLException {
+    int level = level(type);
+    if (current != level) {
+      conn.rollback();
+      conn.setTransactionIsolation(level);
+    }
+    return level;
+  }
+
+  private static int level(Storage storage, String name) {
+    switch (name) {
+    case "serializable":
+      return Connection.TRANSACTION_SERIALIZABLE;
+    case "repeatable_read":
+      return Connection.TRANSACTION_REPEATABLE_READ;
+    case "read_committed":
+      return Connection.TRANSACTION_READ_COMMITTED;
+    case "snapshot":
+      return storage.snapshotIsolation();
+    default:
+      throw new IllegalArgumentException("Unknown isolation level: " + name);
+    }
+  }
+}
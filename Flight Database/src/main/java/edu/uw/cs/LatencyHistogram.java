@@ -0,0 +1,99 @@
+package edu.uw.cs;
+
+import java.util.concurrent.atomic.*;
+
+/**
+ * Counts latencies in log-linear buckets, like HdrHistogram, so percentiles
+ * of millions of samples cost a fixed few kilobytes.
+ *
+ * Values below 128 get a bucket each; above that, every power of two is split
+ * into 64 buckets, so a value is reported at most 1/64 (1.6%) above what was
+ * recorded. Any thread may record at any time.
+ */
+class LatencyHistogram {
+  // Sub-buckets per power of two are HALF; values below 2 * HALF are exact
+  private static final int BITS = 7;
+  private static final int HALF = 1 << (BITS - 1);
+  private static final int BUCKETS = HALF * (64 - BITS) + 2 * HALF;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  private final AtomicLong count = new AtomicLong();
+  private final AtomicLong sum = new AtomicLong();
+  private final AtomicLong max = new AtomicLong();
+
+  /**
+   * Records one value; negative values count as 0
+   */
+  void record(long value) {
+    value = Math.max(0, value);
+    counts.incrementAndGet(index(value));
+    count.incrementAndGet();
+    sum.addAndGet(value);
+    max.accumulateAndGet(value, Math::max);
+  }
+
+  long count() {
+    return count.get();
+  }
+
+  long max() {
+    return max.get();
+  }
+
+  double mean() {
+    long n = count.get();
+    return n == 0 ? 0.0 : (double) sum.get() / n;
+  }
+
+  /**
+   * The value that {@code percentile} percent of the recorded values are at or
+   * below, to within the bucket precision, or 0 if nothing was recorded
+   */
+  long percentile(double percentile) {
+    long n = count.get();
+    if (n == 0) {
+      return 0;
+    }
+    long rank = Math.max(1, (long) Math.ceil(percentile / 100 * n));
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += counts.get(i);
+      if (seen >= rank) {
+        return Math.min(highest(i), max.get());
+      }
+    }
+    return max.get();
+  }
+
+  /**
+   * Adds every value recorded in {@code other} to this histogram
+   */
+  void add(LatencyHistogram other) {
+    for (int i = 0; i < BUCKETS; i++) {
+      long c = other.counts.get(i);
+      if (c != 0) {
+        counts.addAndGet(i, c);
+      }
+    }
+    count.addAndGet(other.count.get());
+    sum.addAndGet(other.sum.get());
+    max.accumulateAndGet(other.max.get(), Math::max);
+  }
+
+  static int index(long value) {
+    int shift = Math.max(0, 64 - Long.numberOfLeadingZeros(value) - BITS);
+    return HALF * shift + (int) (value >>> shift);
+  }
+
+  /**
+   * Largest value that falls in bucket {@code index}
+   */
+  static long highest(int index) {
+    if (index < 2 * HALF) {
+      return index;
+    }
+    int shift = index / HALF - 1;
+    long sub = index - (long) HALF * shift;
+    return ((sub + 1) << shift) - 1;
+  }
+}
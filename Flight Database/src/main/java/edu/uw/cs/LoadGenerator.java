@@ -0,0 +1,385 @@
+package edu.uw.cs;
+
+import java.io.*;
+import java.nio.file.*;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.stream.*;
+
+/**
+ * Drives many simulated users through cases/ scenarios and reports latency,
+ * throughput and unexpected responses per command.
+ *
+ * Each run of a scenario starts its users together, one Query session each,
+ * like the autograder does. Scenarios given on the command line are run in
+ * turn, so listing one several times weights the mix towards it. Usernames
+ * get a suffix unique to the run, so runs do not collide with each other or
+ * with earlier load tests, and the reservation IDs that pay and cancel name
+ * are mapped to the ones the run actually booked.
+ *
+ * With {@code --concurrency N}, N runs are in flight at all times. With
+ * {@code --rate R}, runs start R times a second whether or not earlier ones
+ * have finished, and run latency counts from when a run was due to start, so
+ * queueing shows up in it. At most {@code --users} scenario users run at once.
+ *
+ * A response is unexpected if it appears in none of the user's outcomes in
+ * the case file, ignoring numbers.
+ */
+public class LoadGenerator {
+  private static final String USAGE = "Usage: LoadGenerator [--concurrency N | --rate R] [--duration SECONDS] "
+      + "[--users N] [--report FILE] [--clear] SCENARIO...\n"
+      + "Scenarios are case files or directories of them. Defaults: --concurrency 10 --duration 60 --users 200 "
+      + "--report load-report.txt";
+
+  private static final String BOOKED = "Booked flight(s), reservation ID: ";
+
+  private final List<Scenario> scenarios;
+  private final Properties configProps;
+  private final ExecutorService users;
+  // Makes usernames unique to this load test
+  private final String prefix = "_" + Long.toString(System.currentTimeMillis() % 1_000_000_000L, 36) + "_";
+
+  private final AtomicInteger nextRun = new AtomicInteger();
+  private final Map<String, LatencyHistogram> latencies = new ConcurrentSkipListMap<>();
+  private final Map<String, AtomicLong> unexpected = new ConcurrentSkipListMap<>();
+  private final LatencyHistogram runLatency = new LatencyHistogram();
+  private final AtomicLong failedRuns = new AtomicLong();
+
+  /**
+   * @param maxUsers most scenario users that run at once
+   */
+  LoadGenerator(List<Scenario> scenarios, Properties configProps, int maxUsers) {
+    if (scenarios.isEmpty() || maxUsers <= 0) {
+      throw new IllegalArgumentException("Need scenarios and users");
+    }
+    this.scenarios = scenarios;
+    this.configProps = configProps;
+    AtomicInteger n = new AtomicInteger();
+    this.users = Executors.newFixedThreadPool(maxUsers, r -> {
+      Thread t = new Thread(r, "load-user-" + n.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    });
+  }
+
+  public static void main(String[] args) throws Exception {
+    int concurrency = 0;
+    double rate = 0;
+    long seconds = 60;
+    int maxUsers = 200;
+    String report = "load-report.txt";
+    boolean clear = false;
+    List<String> paths = new ArrayList<>();
+    for (int i = 0; i < args.length; i++) {
+      switch (args[i]) {
+      case "--concurrency":
+        concurrency = Integer.parseInt(args[++i]);
+        break;
+      case "--rate":
+        rate = Double.parseDouble(args[++i]);
+        break;
+      case "--duration":
+        seconds = Long.parseLong(args[++i]);
+        break;
+      case "--users":
+        maxUsers = Integer.parseInt(args[++i]);
+        break;
+      case "--report":
+        report = args[++i];
+        break;
+      case "--clear":
+        clear = true;
+        break;
+      default:
+        if (args[i].startsWith("--")) {
+          System.err.println(USAGE);
+          System.exit(2);
+        }
+        paths.add(args[i]);
+      }
+    }
+    if (paths.isEmpty() || (concurrency > 0 && rate > 0)) {
+      System.err.println(USAGE);
+      System.exit(2);
+    }
+    if (concurrency <= 0 && rate <= 0) {
+      concurrency = 10;
+    }
+
+    Properties configProps = new Properties();
+    try (FileInputStream in = new FileInputStream("dbconn.properties")) {
+      configProps.load(in);
+    }
+    List<Scenario> scenarios = new ArrayList<>();
+    for (String path : paths) {
+      scenarios.addAll(load(Paths.get(path)));
+    }
+    if (clear) {
+      Query q = new Query();
+      q.openConnection(configProps);
+      q.prepareStatements();
+      q.clearTables();
+      q.closeConnection();
+    }
+
+    LoadGenerator load = new LoadGenerator(scenarios, configProps, maxUsers);
+    long start = System.nanoTime();
+    if (concurrency > 0) {
+      load.runClosed(concurrency, seconds * 1000);
+    } else {
+      load.runOpen(rate, seconds * 1000);
+    }
+    double elapsed = (System.nanoTime() - start) / 1e9;
+    String mode = concurrency > 0 ? "concurrency=" + concurrency : "rate=" + rate;
+    String text = load.report(mode, elapsed);
+    try (Writer out = new FileWriter(report)) {
+      out.write(text);
+    }
+    System.out.print(text);
+    System.exit(0);
+  }
+
+  /**
+   * Reads the scenario in {@code path}, or every scenario under it if it is a
+   * directory, in name order
+   */
+  static List<Scenario> load(Path path) throws IOException {
+    List<Path> files;
+    try (Stream<Path> paths = Files.walk(path)) {
+      files = paths.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+    }
+    List<Scenario> scenarios = new ArrayList<>();
+    for (Path file : files) {
+      scenarios.add(Scenario.parse(file.toString()));
+    }
+    return scenarios;
+  }
+
+  /**
+   * Keeps {@code concurrency} runs going until {@code durationMillis} is up,
+   * then waits for the runs in flight
+   */
+  void runClosed(int concurrency, long durationMillis) throws InterruptedException {
+    long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(durationMillis);
+    Thread[] drivers = new Thread[concurrency];
+    for (int i = 0; i < concurrency; i++) {
+      drivers[i] = new Thread(() -> {
+        while (System.nanoTime() < end) {
+          run(System.nanoTime());
+        }
+      }, "load-driver-" + i);
+      drivers[i].start();
+    }
+    for (Thread t : drivers) {
+      t.join();
+    }
+  }
+
+  /**
+   * Starts {@code ratePerSecond} runs a second until {@code durationMillis}
+   * is up, then waits for the runs started
+   */
+  void runOpen(double ratePerSecond, long durationMillis) throws InterruptedException {
+    long interval = (long) (1e9 / ratePerSecond);
+    long start = System.nanoTime();
+    long end = start + TimeUnit.MILLISECONDS.toNanos(durationMillis);
+    ExecutorService runs = Executors.newCachedThreadPool(r -> {
+      Thread t = new Thread(r, "load-run");
+      t.setDaemon(true);
+      return t;
+    });
+    for (long due = start; due < end; due += interval) {
+      long wait = due - System.nanoTime();
+      if (wait > 0) {
+        TimeUnit.NANOSECONDS.sleep(wait);
+      }
+      long intended = due;
+      runs.execute(() -> run(intended));
+    }
+    runs.shutdown();
+    runs.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Runs the next scenario in the mix, with all of its users at once
+   *
+   * @param due when the run was meant to start, from System.nanoTime
+   */
+  void run(long due) {
+    int id = nextRun.incrementAndGet();
+    Scenario scenario = scenarios.get((id - 1) % scenarios.size());
+    String suffix = prefix + id + "_";
+    Map<Integer, Integer> reservations = new ConcurrentHashMap<>();
+    List<Future<?>> running = new ArrayList<>();
+    for (Scenario.User user : scenario.users()) {
+      running.add(users.submit(() -> {
+        runUser(user, suffix, reservations);
+        return null;
+      }));
+    }
+    boolean failed = false;
+    for (Future<?> f : running) {
+      try {
+        f.get();
+      } catch (ExecutionException e) {
+        failed = true;
+        e.getCause().printStackTrace();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        failed = true;
+      }
+    }
+    if (failed) {
+      failedRuns.incrementAndGet();
+    }
+    runLatency.record((System.nanoTime() - due) / 1000);
+  }
+
+  private void runUser(Scenario.User user, String suffix, Map<Integer, Integer> reservations) throws SQLException {
+    List<Integer> expectedIds = bookedIds(user.results().get(0));
+    List<String> outcomes = new ArrayList<>();
+    for (String result : user.results()) {
+      outcomes.add(withoutNumbers(result));
+    }
+    Query q = new Query();
+    q.openConnection(configProps);
+    try {
+      q.prepareStatements();
+      int booked = 0;
+      for (String command : user.commands()) {
+        String line = rewrite(command, suffix, reservations);
+        String name = commandName(command);
+        long start = System.nanoTime();
+        String response;
+        try {
+          response = FlightService.execute(q, line);
+        } catch (RuntimeException e) {
+          response = null;
+        }
+        latency(name).record((System.nanoTime() - start) / 1000);
+        if (response != null && response.startsWith(BOOKED) && booked < expectedIds.size()) {
+          reservations.put(expectedIds.get(booked++), Integer.parseInt(response.substring(BOOKED.length()).trim()));
+        }
+        if (response == null || !expected(outcomes, response.replace(suffix, ""))) {
+          unexpected.computeIfAbsent(name, k -> new AtomicLong()).incrementAndGet();
+        }
+        if ("Goodbye\n".equals(response)) {
+          break;
+        }
+      }
+    } finally {
+      q.closeConnection();
+    }
+  }
+
+  private LatencyHistogram latency(String command) {
+    return latencies.computeIfAbsent(command, k -> new LatencyHistogram());
+  }
+
+  /**
+   * Summary of everything run so far: totals, then a line per command with
+   * latencies in milliseconds
+   */
+  String report(String mode, double seconds) {
+    LatencyHistogram all = new LatencyHistogram();
+    long totalUnexpected = 0;
+    for (LatencyHistogram h : latencies.values()) {
+      all.add(h);
+    }
+    for (AtomicLong n : unexpected.values()) {
+      totalUnexpected += n.get();
+    }
+    StringBuilder sb = new StringBuilder();
+    sb.append(String.format("mode=%s duration_s=%.1f scenarios=%d runs=%d failed_runs=%d%n", mode, seconds,
+        scenarios.size(), runLatency.count(), failedRuns.get()));
+    sb.append(String.format("commands=%d commands_per_s=%.1f runs_per_s=%.1f unexpected=%d unexpected_rate=%.4f%n",
+        all.count(), all.count() / seconds, runLatency.count() / seconds, totalUnexpected,
+        all.count() == 0 ? 0.0 : (double) totalUnexpected / all.count()));
+    sb.append(String.format("%-14s %10s %10s %9s %9s %9s %9s %9s %9s%n", "command", "count", "unexpected", "mean_ms",
+        "p50_ms", "p90_ms", "p99_ms", "p99.9_ms", "max_ms"));
+    for (Map.Entry<String, LatencyHistogram> e : latencies.entrySet()) {
+      AtomicLong n = unexpected.get(e.getKey());
+      appendRow(sb, e.getKey(), e.getValue(), n == null ? 0 : n.get());
+    }
+    appendRow(sb, "all", all, totalUnexpected);
+    appendRow(sb, "scenario_run", runLatency, failedRuns.get());
+    return sb.toString();
+  }
+
+  private static void appendRow(StringBuilder sb, String name, LatencyHistogram h, long unexpected) {
+    sb.append(String.format("%-14s %10d %10d %9.2f %9.2f %9.2f %9.2f %9.2f %9.2f%n", name, h.count(), unexpected,
+        h.mean() / 1000, h.percentile(50) / 1000.0, h.percentile(90) / 1000.0, h.percentile(99) / 1000.0,
+        h.percentile(99.9) / 1000.0, h.max() / 1000.0));
+  }
+
+  /**
+   * Gives the username of a create or login command {@code suffix}, and maps
+   * the reservation ID of a pay or cancel command through
+   * {@code reservations}. Other commands are returned as they are.
+   */
+  static String rewrite(String command, String suffix, Map<Integer, Integer> reservations) {
+    CommandParser cmd = new CommandParser();
+    int n = cmd.parse(command.trim());
+    if (n < 2) {
+      return command;
+    }
+    String[] tokens = new String[n];
+    for (int i = 0; i < n; i++) {
+      tokens[i] = cmd.token(i);
+    }
+    if (cmd.tokenEquals(0, "create") || cmd.tokenEquals(0, "login")) {
+      tokens[1] += suffix;
+    } else if ((cmd.tokenEquals(0, "pay") || cmd.tokenEquals(0, "cancel")) && cmd.isInt(1)) {
+      Integer rid = reservations.get(cmd.intToken(1));
+      if (rid == null) {
+        return command;
+      }
+      tokens[1] = rid.toString();
+    } else {
+      return command;
+    }
+    StringBuilder sb = new StringBuilder();
+    for (String token : tokens) {
+      if (sb.length() > 0) {
+        sb.append(' ');
+      }
+      sb.append(token.indexOf(' ') >= 0 ? '"' + token + '"' : token);
+    }
+    return sb.toString();
+  }
+
+  private static String commandName(String command) {
+    String trimmed = command.trim();
+    int space = trimmed.indexOf(' ');
+    return space < 0 ? trimmed : trimmed.substring(0, space);
+  }
+
+  /**
+   * Reservation IDs booked in {@code result}, in order
+   */
+  private static List<Integer> bookedIds(String result) {
+    List<Integer> ids = new ArrayList<>();
+    for (String line : result.split("\n")) {
+      if (line.startsWith(BOOKED)) {
+        ids.add(Integer.parseInt(line.substring(BOOKED.length()).trim()));
+      }
+    }
+    return ids;
+  }
+
+  private static boolean expected(List<String> outcomes, String response) {
+    String normalized = withoutNumbers(response);
+    for (String outcome : outcomes) {
+      if (outcome.contains(normalized)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static String withoutNumbers(String s) {
+    return s.replaceAll("\\d+", "#");
+  }
+}
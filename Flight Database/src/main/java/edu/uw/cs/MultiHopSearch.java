@@ -0,0 +1,251 @@
+package edu.uw.cs;
+
+import java.util.*;
+
+/**
+ * Finds the shortest itineraries of up to {@code maxLegs} connecting flights
+ * on one day, over the adjacency arrays of a {@link FlightIndex}.
+ *
+ * The search is A* over partial itineraries. A partial one is ranked by its
+ * time so far plus the least time needed to reach the destination with the
+ * legs it has left, worked out backwards over the day's flights before the
+ * search starts; partial itineraries that cannot arrive in time are never
+ * queued. No itinerary ranks below one it extends, so complete itineraries
+ * come off the queue in output order: total time, then fids leg by leg, with
+ * an itinerary before the longer ones it starts. For one and two legs that is
+ * the GET_DIRECT and GET_INDIRECT order. Connections never revisit a city. As
+ * in search, a single flight may be canceled but connections only use flights
+ * that are not.
+ *
+ * A search keeps its state in the instance, so an instance is used by one
+ * thread at a time.
+ */
+class MultiHopSearch {
+  private static final int UNREACHABLE = Integer.MAX_VALUE;
+  private static final int NO_NODE = -1;
+
+  private final FlightIndex index;
+  private final FlightCache flights;
+  private final int maxLegs;
+
+  // Queued itineraries by node id: the row of the last leg, the node it
+  // extends, how many legs, the time so far, and the rank it is queued at.
+  // Complete itineraries end at the destination.
+  private int[] row = new int[256];
+  private int[] parent = new int[256];
+  private int[] legs = new int[256];
+  private int[] time = new int[256];
+  private int[] rank = new int[256];
+  private boolean[] complete = new boolean[256];
+  private int nodes;
+
+  // Min-heap of node ids
+  private int[] heap = new int[256];
+  private int heapSize;
+
+  // Rows of two itineraries being compared, first leg first
+  private final int[] rowsA;
+  private final int[] rowsB;
+
+  // least[l][c]: least time from city c to the destination in at most l legs
+  private final int[][] least;
+
+  /**
+   * @param maxLegs most flights in an itinerary, at least 1
+   */
+  MultiHopSearch(FlightIndex index, int maxLegs) {
+    if (maxLegs < 1) {
+      throw new IllegalArgumentException("An itinerary needs at least one leg: " + maxLegs);
+    }
+    this.index = index;
+    this.flights = index.flights();
+    this.maxLegs = maxLegs;
+    rowsA = new int[maxLegs];
+    rowsB = new int[maxLegs];
+    least = new int[maxLegs][flights.cityCount()];
+  }
+
+  /**
+   * Returns up to {@code limit} itineraries from {@code originCity} to
+   * {@code destinationCity} on {@code dayOfMonth}, in output order
+   */
+  List<Query.Itinerary> search(String originCity, String destinationCity, int dayOfMonth, int limit) {
+    List<Query.Itinerary> result = new ArrayList<>();
+    int o = flights.city(originCity);
+    int d = flights.city(destinationCity);
+    if (o < 0 || d < 0 || o == d || !index.hasDay(dayOfMonth) || limit <= 0) {
+      return result;
+    }
+    computeLeast(dayOfMonth, d);
+    nodes = 0;
+    heapSize = 0;
+    // ranks of the best complete itineraries queued; nothing ranked above the
+    // worst of them once there are limit of them can make the answer
+    TopItineraries bound = new TopItineraries(limit);
+
+    for (int i = index.outFrom(dayOfMonth, o); i < index.outTo(dayOfMonth, o); i++) {
+      int r = index.outRow(i);
+      int x = flights.dest(r);
+      if (x == d) {
+        push(bound, r, NO_NODE, 1, flights.time(r), flights.time(r), true);
+      } else if (maxLegs > 1 && !flights.canceled(r) && least[maxLegs - 1][x] != UNREACHABLE) {
+        push(bound, r, NO_NODE, 1, flights.time(r), flights.time(r) + least[maxLegs - 1][x], false);
+      }
+    }
+
+    while (heapSize > 0 && result.size() < limit) {
+      int n = pop();
+      if (complete[n]) {
+        result.add(itinerary(n));
+        continue;
+      }
+      int c = flights.dest(row[n]);
+      int left = maxLegs - legs[n] - 1;
+      for (int i = index.outFrom(dayOfMonth, c); i < index.outTo(dayOfMonth, c); i++) {
+        int r = index.outRow(i);
+        if (flights.canceled(r)) {
+          continue;
+        }
+        int x = flights.dest(r);
+        int t = time[n] + flights.time(r);
+        if (x == d) {
+          push(bound, r, n, legs[n] + 1, t, t, true);
+        } else if (left > 0 && least[left][x] != UNREACHABLE && x != o && !visits(n, x)) {
+          push(bound, r, n, legs[n] + 1, t, t + least[left][x], false);
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Fills {@code least} for destination {@code d}, one more leg at a time
+   */
+  private void computeLeast(int dayOfMonth, int d) {
+    int cities = flights.cityCount();
+    Arrays.fill(least[0], UNREACHABLE);
+    least[0][d] = 0;
+    for (int l = 1; l < maxLegs; l++) {
+      int[] prev = least[l - 1];
+      int[] cur = least[l];
+      System.arraycopy(prev, 0, cur, 0, cities);
+      for (int c = 0; c < cities; c++) {
+        for (int i = index.outFrom(dayOfMonth, c); i < index.outTo(dayOfMonth, c); i++) {
+          int r = index.outRow(i);
+          int x = flights.dest(r);
+          if (prev[x] != UNREACHABLE && !flights.canceled(r)) {
+            cur[c] = Math.min(cur[c], prev[x] + flights.time(r));
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Whether the itinerary ending at node {@code n} lands in {@code city}
+   * anywhere along the way
+   */
+  private boolean visits(int n, int city) {
+    for (; n != NO_NODE; n = parent[n]) {
+      if (flights.dest(row[n]) == city) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private Query.Itinerary itinerary(int n) {
+    Query.Flight[] path = new Query.Flight[legs[n]];
+    for (int i = legs[n] - 1; i >= 0; i--, n = parent[n]) {
+      path[i] = flights.flight(row[n]);
+    }
+    return new Query.Itinerary(path);
+  }
+
+  private void push(TopItineraries bound, int r, int p, int l, int t, int k, boolean done) {
+    if (bound.isFull() && k > bound.max()) {
+      return;
+    }
+    if (done) {
+      bound.offer(k);
+    }
+    if (nodes == row.length) {
+      int size = nodes * 2;
+      row = Arrays.copyOf(row, size);
+      parent = Arrays.copyOf(parent, size);
+      legs = Arrays.copyOf(legs, size);
+      time = Arrays.copyOf(time, size);
+      rank = Arrays.copyOf(rank, size);
+      complete = Arrays.copyOf(complete, size);
+    }
+    int n = nodes++;
+    row[n] = r;
+    parent[n] = p;
+    legs[n] = l;
+    time[n] = t;
+    rank[n] = k;
+    complete[n] = done;
+
+    if (heapSize == heap.length) {
+      heap = Arrays.copyOf(heap, heapSize * 2);
+    }
+    int i = heapSize++;
+    while (i > 0) {
+      int up = (i - 1) >>> 1;
+      if (compare(heap[up], n) <= 0) {
+        break;
+      }
+      heap[i] = heap[up];
+      i = up;
+    }
+    heap[i] = n;
+  }
+
+  private int pop() {
+    int top = heap[0];
+    int last = heap[--heapSize];
+    int i = 0;
+    int half = heapSize >>> 1;
+    while (i < half) {
+      int child = 2 * i + 1;
+      if (child + 1 < heapSize && compare(heap[child + 1], heap[child]) < 0) {
+        child++;
+      }
+      if (compare(last, heap[child]) <= 0) {
+        break;
+      }
+      heap[i] = heap[child];
+      i = child;
+    }
+    if (heapSize > 0) {
+      heap[i] = last;
+    }
+    return top;
+  }
+
+  /**
+   * Orders nodes by rank, then by rows leg by leg, then fewer legs first.
+   * Rows are in fid order, so this is the fid order too.
+   */
+  private int compare(int a, int b) {
+    if (rank[a] != rank[b]) {
+      return Integer.compare(rank[a], rank[b]);
+    }
+    int la = rows(a, rowsA);
+    int lb = rows(b, rowsB);
+    for (int i = 0; i < la && i < lb; i++) {
+      if (rowsA[i] != rowsB[i]) {
+        return Integer.compare(rowsA[i], rowsB[i]);
+      }
+    }
+    return Integer.compare(la, lb);
+  }
+
+  private int rows(int n, int[] into) {
+    int l = legs[n];
+    for (int i = l - 1; i >= 0; i--, n = parent[n]) {
+      into[i] = row[n];
+    }
+    return l;
+  }
+}
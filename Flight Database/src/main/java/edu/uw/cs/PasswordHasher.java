@@ -0,0 +1,229 @@
+package edu.uw.cs;
+
+import java.security.*;
+import java.security.spec.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import javax.crypto.*;
+import javax.crypto.spec.*;
+
+/**
+ * Runs PBKDF2 password hashing on a fixed pool of worker threads shared by
+ * every Query on one {@link Database}.
+ *
+ * Hashing is CPU bound and takes tens of milliseconds, so it is kept off the
+ * threads that serve other requests and limited to {@code threads} at a time.
+ * At most {@code queueSize} hashes wait behind the running ones; a caller that
+ * finds the queue full waits up to {@code submitTimeoutMillis} for room and is
+ * then turned away. Each worker keeps its own SecretKeyFactory.
+ */
+class PasswordHasher {
+  static final int HASH_STRENGTH = 65536;
+  static final int KEY_LENGTH = 128;
+  static final int SALT_LENGTH = 16;
+
+  private static final String ALGORITHM = "PBKDF2WithHmacSHA1";
+
+  private static final ThreadLocal<SecretKeyFactory> factory = ThreadLocal.withInitial(() -> {
+    try {
+      return SecretKeyFactory.getInstance(ALGORITHM);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  });
+
+  private final int threads;
+  private final long submitTimeoutMillis;
+  private final ExecutorService workers;
+  private final Semaphore permits;
+  private final SecureRandom random = new SecureRandom();
+
+  // Metrics
+  private final AtomicInteger queued = new AtomicInteger();
+  private final AtomicInteger peakQueued = new AtomicInteger();
+  private final AtomicLong hashes = new AtomicLong();
+  private final AtomicLong rejections = new AtomicLong();
+  private final AtomicLong queueNanos = new AtomicLong();
+  private final AtomicLong hashNanos = new AtomicLong();
+  private final AtomicLong maxHashNanos = new AtomicLong();
+
+  PasswordHasher(int threads, int queueSize, long submitTimeoutMillis) {
+    if (threads <= 0 || queueSize < 0) {
+      throw new IllegalArgumentException("Bad hasher size: threads " + threads + ", queue " + queueSize);
+    }
+    this.threads = threads;
+    this.submitTimeoutMillis = submitTimeoutMillis;
+    this.permits = new Semaphore(threads + queueSize, true);
+    AtomicInteger n = new AtomicInteger();
+    this.workers = Executors.newFixedThreadPool(threads, r -> {
+      Thread t = new Thread(r, "password-hasher-" + n.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    });
+  }
+
+  /**
+   * Returns a fresh random salt
+   */
+  byte[] newSalt() {
+    byte[] salt = new byte[SALT_LENGTH];
+    random.nextBytes(salt);
+    return salt;
+  }
+
+  /**
+   * Starts hashing {@code password} with {@code salt}. Waits for room if the
+   * queue is full.
+   *
+   * @throws RejectedExecutionException if there was no room within the submit
+   *                                    timeout
+   */
+  Future<byte[]> submit(String password, byte[] salt) {
+    try {
+      if (!permits.tryAcquire(submitTimeoutMillis, TimeUnit.MILLISECONDS)) {
+        rejections.incrementAndGet();
+        throw new RejectedExecutionException("Password hashing queue full");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RejectedExecutionException("Interrupted waiting for the hashing queue", e);
+    }
+    peakQueued.accumulateAndGet(queued.incrementAndGet(), Math::max);
+    long submitted = System.nanoTime();
+    try {
+      return workers.submit(() -> {
+        long start = System.nanoTime();
+        queued.decrementAndGet();
+        queueNanos.addAndGet(start - submitted);
+        try {
+          return hash(password, salt);
+        } finally {
+          long elapsed = System.nanoTime() - start;
+          hashes.incrementAndGet();
+          hashNanos.addAndGet(elapsed);
+          maxHashNanos.accumulateAndGet(elapsed, Math::max);
+          permits.release();
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      queued.decrementAndGet();
+      permits.release();
+      throw e;
+    }
+  }
+
+  /**
+   * Waits for a hash started by {@link #submit}
+   *
+   * @throws IllegalStateException if hashing failed or the wait was interrupted
+   */
+  static byte[] await(Future<byte[]> hash) {
+    try {
+      return hash.get();
+    } catch (ExecutionException e) {
+      throw new IllegalStateException(e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Hashes on the calling thread
+   */
+  static byte[] hash(String password, byte[] salt) {
+    KeySpec spec = new PBEKeySpec(password.toCharArray(), salt, HASH_STRENGTH, KEY_LENGTH);
+    try {
+      return factory.get().generateSecret(spec).getEncoded();
+    } catch (InvalidKeySpecException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Hashes waiting for a worker
+   */
+  int queueDepth() {
+    return queued.get();
+  }
+
+  /**
+   * Stops the workers once the hashes already submitted are done
+   */
+  void shutdown() {
+    workers.shutdown();
+  }
+
+  /**
+   * One line summary of the hasher metrics
+   */
+  String metrics() {
+    long n = hashes.get();
+    return String.format("hasher: threads=%d queued=%d peakQueued=%d hashes=%d rejections=%d avgQueueMicros=%d "
+        + "avgHashMicros=%d maxHashMicros=%d", threads, queued.get(), peakQueued.get(), n, rejections.get(),
+        n == 0 ? 0 : queueNanos.get() / n / 1000, n == 0 ? 0 : hashNanos.get() / n / 1000,
+        maxHashNanos.get() / 1000);
+  }
+
+  /**
+   * The hasher's MBean
+   */
+  HasherMBean mbean() {
+    return new Stats();
+  }
+
+  /**
+   * Hashing queue and latency. Times are in microseconds.
+   */
+  public interface HasherMBean extends QueryMetrics.ComponentMBean {
+    int getQueueDepth();
+
+    int getPeakQueueDepth();
+
+    long getHashes();
+
+    long getRejections();
+
+    long getMeanQueueMicros();
+
+    long getMeanHashMicros();
+
+    long getMaxHashMicros();
+  }
+
+  private class Stats implements HasherMBean {
+    public String getSummary() {
+      return metrics();
+    }
+
+    public int getQueueDepth() {
+      return queued.get();
+    }
+
+    public int getPeakQueueDepth() {
+      return peakQueued.get();
+    }
+
+    public long getHashes() {
+      return hashes.get();
+    }
+
+    public long getRejections() {
+      return rejections.get();
+    }
+
+    public long getMeanQueueMicros() {
+      long n = hashes.get();
+      return n == 0 ? 0 : queueNanos.get() / n / 1000;
+    }
+
+    public long getMeanHashMicros() {
+      long n = hashes.get();
+      return n == 0 ? 0 : hashNanos.get() / n / 1000;
+    }
+
+    public long getMaxHashMicros() {
+      return maxHashNanos.get() / 1000;
+    }
+  }
+}
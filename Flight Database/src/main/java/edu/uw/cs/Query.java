@@ -1,8 +1,11 @@
 package edu.uw.cs;
 
 import java.io.*;
+import java.nio.*;
 import java.sql.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
 import java.security.*;
 import java.security.spec.*;
 import javax.crypto.*;
@@ -13,20 +16,83 @@ import javax.crypto.spec.*;
 public class Query {
   // DB Connection
   private Connection conn;
+  private String connectionUrl;
 
-  // Password hashing parameter constants
-  private static final int HASH_STRENGTH = 65536;
-  private static final int KEY_LENGTH = 128;
+  // What this Query shares with every other on the same database, null once
+  // closed
+  private Database database;
+
+  // Reservation ID blocks, shared by every Query on the same database
+  private ReservationIds reservationIds;
+
+  // Remaining seats per flight, shared by every Query on the same database
+  private SeatInventory seats;
+
+  // Retry policy and counts, shared by every Query on the same database
+  private TransactionRetry retry;
+
+  // Isolation level of each transaction type
+  private IsolationPolicy isolation;
+  // Isolation level last set on this Query's own connection
+  private int connIsolation;
+
+  // Search results shared by every Query on the same database, null when disabled
+  private SearchCache searchCache;
+
+  // Shared connection pool, null when each Query has its own connection
+  private ConnectionPool pool;
+  private ConnectionPool.PooledConnection pooled;
+
+  // Commit groups that book, pay and cancel run in, null when disabled
+  private GroupCommitter groupCommitter;
+  // This session's part of the group now running, null outside a group
+  private GroupCommitter.Op groupOp;
+
+  // In-memory copy of Flights, null when disabled
+  private FlightCache flightCache;
+  private boolean useFlightCache;
+
+  // Search index over the flight cache, null when disabled
+  private FlightIndex flightIndex;
+  private boolean useFlightIndex;
+
+  // Most legs a search-hops itinerary may have
+  private int maxHops;
+  // Most itineraries a page of a paginated search may have
+  private int maxPageSize;
+
+  // Password hashing workers shared by every Query on the same database
+  private PasswordHasher hasher;
+
+  // Counters and latencies shared by every Query on the same database
+  private QueryMetrics metrics;
+  // Type of the transaction now running and the round trips it has made
+  private TransactionType current;
+  private int roundTrips;
 
   // My Fields
   private String username;
-  private List<Itinerary> itineraries;
+  // Last search, packed; flights are rebuilt when one is booked
+  private SessionStore.Itineraries itineraries;
+
+  // Login and search state of sessions between commands, and the session
+  // this Query last resumed
+  private SessionStore sessions;
+  private String sessionId;
+
+  // Reservations rendered inside their transaction, reused across calls;
+  // dropped when a very long listing leaves it larger than KEEP_RENDERED
+  private static final int KEEP_RENDERED = 1 << 16;
+  private StringBuilder rendered = new StringBuilder();
+  // Buffer for copying rendered text into a Writer or CharBuffer
+  private final char[] chunk = new char[4096];
 
   // Canned queries
   private static final String CHECK_FLIGHT_CAPACITY = "SELECT capacity FROM Flights WHERE fid = ?";
   private PreparedStatement checkFlightCapacityStatement;
   // TODO: YOUR CODE HERE
-  private static final String CLEAR_TABLES = "DELETE FROM Reservations; DELETE FROM Users; DELETE FROM ReservationID;";
+  private static final String CLEAR_TABLES = "DELETE FROM ReservationLegs; DELETE FROM Reservations; DELETE FROM Users; " +
+                                             SeatInventory.RESET_SEATS + ";";
   private PreparedStatement clearTablesStmt;
   private static final String CREATE_USER = "INSERT INTO Users VALUES (?,?,?,?)";
   private PreparedStatement createUserStmt;
@@ -39,6 +105,10 @@ public class Query {
                                            "ORDER BY actual_time ASC, fid ASC";
   private PreparedStatement getDirectStmt;
 
+  private static final String GET_FLIGHT = "SELECT fid, day_of_month, carrier_id, flight_num, origin_city, dest_city, actual_time, capacity, price " +
+                                           "FROM Flights WHERE fid = ?";
+  private PreparedStatement getFlightStmt;
+
   private static final String GET_INDIRECT = "SELECT TOP (?) f1.fid AS afid, f1.day_of_month AS aday_of_month, f1.carrier_id AS acarrier_id, f1.flight_num AS aflight_num, f1.origin_city AS aorigin_city, f1.dest_city AS adest_city, f1.actual_time AS aactual_time, f1.capacity AS acapacity, f1.price AS aprice, " +
                                              "f2.fid AS bfid, f2.day_of_month AS bday_of_month, f2.carrier_id AS bcarrier_id, f2.flight_num AS bflight_num, f2.origin_city AS borigin_city, f2.dest_city AS bdest_city, f2.actual_time AS bactual_time, f2.capacity AS bcapacity, f2.price AS bprice " +
                                              "FROM Flights AS f1, Flights AS f2 " +
@@ -46,47 +116,79 @@ public class Query {
                                              "ORDER BY f1.actual_time + f2.actual_time ASC, f1.fid ASC, f2.fid ASC";
   private PreparedStatement getIndirectStmt;
 
+  // The same searches continued past the last itinerary of a page, given as
+  // (total time, fid1, fid2) with -1 as the fid2 of a direct flight
+  private static final String GET_DIRECT_AFTER = GET_DIRECT.replace("ORDER BY",
+      "AND (actual_time > ? OR (actual_time = ? AND fid > ?)) ORDER BY");
+  private PreparedStatement getDirectAfterStmt;
+
+  private static final String GET_INDIRECT_AFTER = GET_INDIRECT.replace("ORDER BY",
+      "AND (f1.actual_time + f2.actual_time > ? OR (f1.actual_time + f2.actual_time = ? AND (f1.fid > ? OR (f1.fid = ? AND f2.fid > ?)))) ORDER BY");
+  private PreparedStatement getIndirectAfterStmt;
+
   private static final String CHECK_DAY_RESERVED = "SELECT count(*) AS count FROM Reservations WHERE username = ? AND day = ?";
   private PreparedStatement checkDayReservedStmt;
 
-  private static final String GET_NEXT_RID = "SELECT rid FROM ReservationID";
-  private PreparedStatement getNextRidStmt;
+  private static final String TAKE_SEAT = SeatInventory.TAKE_SEAT;
+  private PreparedStatement takeSeatStmt;
 
-  private static final String PUT_NEXT_RID = "INSERT INTO ReservationID VALUES (?)";
-  private PreparedStatement insertRidStmt;
+  private static final String GIVE_SEAT = SeatInventory.GIVE_SEAT;
+  private PreparedStatement giveSeatStmt;
 
   private static final String BOOK_RESERVATION = "INSERT INTO Reservations " +
                                                  "VALUES (?, ?, ?, ?, ?, ?, ?)";
   private PreparedStatement bookReservationStmt;
 
-  private static final String RESET_ID = "INSERT INTO ReservationID VALUES(1)";
-  private PreparedStatement resetIDStmt;
+  private static final String BOOK_RESERVATION_LEG = "INSERT INTO ReservationLegs VALUES (?, ?, ?)";
+  private PreparedStatement bookReservationLegStmt;
 
-  private static final String GET_RESERVATION = "SELECT price FROM Reservations WHERE rid = ? AND username = ? AND paid = 0";
-  private PreparedStatement getReservationStmt;
+  private static final String RESET_ID = ReservationIds.RESET_BLOCKS;
+  private PreparedStatement resetIDStmt;
 
   private static final String GET_BALANCE = "SELECT balance FROM Users WHERE username = ?";
   private PreparedStatement getBalanceStmt;
 
-  private static final String UPDATE_RESERVATION = "UPDATE Reservations SET paid = 1 WHERE username = ? AND rid = ?";
-  private PreparedStatement updatePaidReservationStmt;
+  // Money moves with conditional updates that return what they changed, so no
+  // read lock is held between statements. These are written per dialect in
+  // openConnection.
+  private String payReservationSql;
+  private PreparedStatement payReservationStmt;
+
+  private String debitBalanceSql;
+  private PreparedStatement debitBalanceStmt;
 
-  private static final String UPDATE_BALANCE = "UPDATE Users SET balance = ? WHERE username = ?";
-  private PreparedStatement updateBalanceStmt;
+  private String cancelReservationSql;
+  private PreparedStatement cancelReservationStmt;
 
-  private static final String FIND_RESERVATIONS_ON_USERNAME = "SELECT rid, fid1, fid2, day, price, paid FROM Reservations WHERE username =?";
+  // Deletes the legs after the second of the user's reservation, before the
+  // reservation itself
+  private String cancelReservationLegsSql;
+  private PreparedStatement cancelReservationLegsStmt;
+
+  private static final String CREDIT_BALANCE = "UPDATE Users SET balance = balance + ? WHERE username = ?";
+  private PreparedStatement creditBalanceStmt;
+
+  // One row per leg after the second, or one row if there are none, each with
+  // the first two flights; f2 is null for a direct flight and f3 for an
+  // itinerary of at most two
+  private static final String FIND_RESERVATIONS_ON_USERNAME = "SELECT r.rid, r.paid, " +
+                                             "f1.fid AS afid, f1.day_of_month AS aday_of_month, f1.carrier_id AS acarrier_id, f1.flight_num AS aflight_num, f1.origin_city AS aorigin_city, f1.dest_city AS adest_city, f1.actual_time AS aactual_time, f1.capacity AS acapacity, f1.price AS aprice, " +
+                                             "f2.fid AS bfid, f2.day_of_month AS bday_of_month, f2.carrier_id AS bcarrier_id, f2.flight_num AS bflight_num, f2.origin_city AS borigin_city, f2.dest_city AS bdest_city, f2.actual_time AS bactual_time, f2.capacity AS bcapacity, f2.price AS bprice, " +
+                                             "f3.fid AS cfid, f3.day_of_month AS cday_of_month, f3.carrier_id AS ccarrier_id, f3.flight_num AS cflight_num, f3.origin_city AS corigin_city, f3.dest_city AS cdest_city, f3.actual_time AS cactual_time, f3.capacity AS ccapacity, f3.price AS cprice " +
+                                             "FROM Reservations AS r JOIN Flights AS f1 ON f1.fid = r.fid1 LEFT JOIN Flights AS f2 ON f2.fid = r.fid2 " +
+                                             "LEFT JOIN ReservationLegs AS l ON l.rid = r.rid LEFT JOIN Flights AS f3 ON f3.fid = l.fid " +
+                                             "WHERE r.username = ? ORDER BY r.rid, l.leg";
   private PreparedStatement findReservationsOnUsernameStmt;
-  
-  private static final String GET_FLIGHT_ON_FID = "SELECT fid, day_of_month, carrier_id, flight_num, origin_city, dest_city, actual_time, capacity, price " +
-                                           "FROM flights where fid = ?";
-  private PreparedStatement findFlightStmt;            
-  
-  private static final String FIND_RESERVATION_TO_CANCEL = "SELECT price, paid FROM Reservations WHERE username =? AND rid =?";
-  private PreparedStatement findReservationToCancelStmt;    
-  
-  private static final String DELETE_RESERVATION = "DELETE FROM Reservations WHERE rid=?;";
-  private PreparedStatement deletReservationStmt;
-  
+
+  // The same rows with only the capacities, the static columns come from the
+  // flight cache
+  private static final String FIND_RESERVATION_FIDS = "SELECT r.rid, r.paid, r.fid1, r.fid2, l.fid AS fid3, " +
+                                             "f1.capacity AS acapacity, f2.capacity AS bcapacity, f3.capacity AS ccapacity " +
+                                             "FROM Reservations AS r JOIN Flights AS f1 ON f1.fid = r.fid1 LEFT JOIN Flights AS f2 ON f2.fid = r.fid2 " +
+                                             "LEFT JOIN ReservationLegs AS l ON l.rid = r.rid LEFT JOIN Flights AS f3 ON f3.fid = l.fid " +
+                                             "WHERE r.username = ? ORDER BY r.rid, l.leg";
+  private PreparedStatement findReservationFidsStmt;
+
   private static final String CHECK_USERNAME_EXISTS = "SELECT count(*) as count from Users where username = ?";
   private PreparedStatement checkUsernameStmt;
                       
@@ -100,27 +202,257 @@ public class Query {
   public void openConnection() throws IOException, SQLException {
     // Connect to the database with the provided connection configuration
     Properties configProps = new Properties();
-    configProps.load(new FileInputStream("dbconn.properties"));
-    String serverURL = configProps.getProperty("hw1.server_url");
-    String dbName = configProps.getProperty("hw1.database_name");
-    String adminName = configProps.getProperty("hw1.username");
-    String password = configProps.getProperty("hw1.password");
-    String connectionUrl = String.format("jdbc:sqlserver://%s:1433;databaseName=%s;user=%s;password=%s", serverURL,
-        dbName, adminName, password);
-    conn = DriverManager.getConnection(connectionUrl);
+    try (FileInputStream in = new FileInputStream("dbconn.properties")) {
+      configProps.load(in);
+    }
+    openConnection(configProps);
+  }
+
+  /**
+   * Establishes a new application-to-database connection with the given
+   * configuration settings, in the same format as dbconn.properties
+   *
+   * @throws SQLException
+   */
+  public void openConnection(Properties configProps) throws SQLException {
+    useFlightIndex = Boolean.parseBoolean(configProps.getProperty("hw1.flight_index", "true"));
+    // The index is built over the cache, so it needs the cache
+    useFlightCache = useFlightIndex || Boolean.parseBoolean(configProps.getProperty("hw1.flight_cache", "true"));
+    maxHops = Integer.parseInt(configProps.getProperty("hw1.multi_hop.max_legs", "4").trim());
+    maxPageSize = Integer.parseInt(configProps.getProperty("hw1.search_page.max_size", "1000").trim());
+    Storage storage = Storage.fromConfig(configProps);
+    storage.initialize();
+    connectionUrl = storage.url();
+    payReservationSql = storage.updateReturning("Reservations", "paid = 1", "rid = ? AND username = ? AND paid = 0",
+        "price");
+    debitBalanceSql = storage.updateReturning("Users", "balance = balance - ?", "username = ? AND balance >= ?",
+        "balance");
+    cancelReservationSql = storage.deleteReturning("Reservations", "rid = ? AND username = ?", "paid", "price",
+        "fid1", "fid2");
+    cancelReservationLegsSql = storage.deleteReturning("ReservationLegs",
+        "rid = ? AND rid IN (SELECT rid FROM Reservations WHERE rid = ? AND username = ?)", "fid");
+    isolation = new IsolationPolicy(storage, configProps);
+    database = Database.open(storage, configProps);
+    reservationIds = database.reservationIds();
+    metrics = database.metrics();
+    seats = database.seats();
+    sessions = database.sessions();
+    retry = database.retry();
+    hasher = database.hasher();
+    searchCache = database.searchCache();
+    // Borrow from the shared pool for each transaction unless pooling is off
+    pool = database.pool();
+    groupCommitter = database.groupCommitter();
+    metrics.sessionOpened();
+    if (pool != null) {
+      return;
+    }
+    try {
+      conn = DriverManager.getConnection(connectionUrl);
+    } catch (SQLException e) {
+      closeDatabase();
+      throw e;
+    }
 
     // By default, automatically commit after each statement
     conn.setAutoCommit(false);
 
     // By default, set the transaction isolation level to serializable
     conn.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
+    connIsolation = Connection.TRANSACTION_SERIALIZABLE;
     }
 
   /**
-   * Closes the application-to-database connection
+   * Closes the application-to-database connection. A pooled Query only gives
+   * back the connection it may still hold; the pool is shut down with the
+   * database context, when the last Query on it closes.
    */
   public void closeConnection() throws SQLException {
-    conn.close();
+    if (database == null) {
+      return;
+    }
+    try {
+      if (pool != null) {
+        releaseConnection();
+      } else {
+        conn.close();
+      }
+    } finally {
+      closeDatabase();
+    }
+  }
+
+  private void closeDatabase() {
+    metrics.sessionClosed();
+    database.close();
+    database = null;
+  }
+
+  /**
+   * Runs {@code transaction} on a connection borrowed from the pool, with the
+   * statements of that connection bound to the statement fields. Without a
+   * pool it runs on this Query's own connection.
+   *
+   * @param failure response to return if no connection can be borrowed
+   */
+  private String withConnection(String failure, Supplier<String> transaction) {
+    if (pool == null || pooled != null) {
+      return transaction.get();
+    }
+    try {
+      borrowConnection();
+    } catch (SQLException e) {
+      e.printStackTrace();
+      return failure;
+    }
+    try {
+      return transaction.get();
+    } finally {
+      releaseConnection();
+    }
+  }
+
+  /**
+   * Runs {@code body} as a transaction of the given type on a borrowed
+   * connection, at the type's isolation level, retrying it if it loses a
+   * deadlock
+   *
+   * @param failure response if the body cannot complete
+   */
+  private String transaction(TransactionType type, String failure, TransactionRetry.Body body) {
+    long start = begin(type);
+    try {
+      if (groupCommitter != null && GroupCommitter.GROUPED.contains(type)) {
+        return groupCommitter.submit(this, type, failure, body);
+      }
+      return withConnection(failure, () -> retry.run(type, conn, failure, () -> {
+        if (pooled != null) {
+          pooled.isolation = isolation.apply(conn, pooled.isolation, type);
+        } else {
+          connIsolation = isolation.apply(conn, connIsolation, type);
+        }
+        try {
+          return body.run();
+        } catch (SQLException e) {
+          // retry rolls it back
+          metrics.rollback(type);
+          roundTrips++;
+          throw e;
+        }
+      }));
+    } finally {
+      metrics.end(type, start, roundTrips);
+    }
+  }
+
+  /**
+   * Starts counting a transaction of the given type
+   *
+   * @return the start time for {@link QueryMetrics#end}
+   */
+  private long begin(TransactionType type) {
+    current = type;
+    roundTrips = 0;
+    return metrics.begin();
+  }
+
+  /**
+   * Runs {@code stmt}, one of the canned statements, timing it as {@code name}
+   */
+  private ResultSet executeQuery(CannedStatement name, PreparedStatement stmt) throws SQLException {
+    roundTrips++;
+    long start = System.nanoTime();
+    try {
+      ResultSet results = stmt.executeQuery();
+      metrics.statement(name, System.nanoTime() - start);
+      return results;
+    } catch (SQLException e) {
+      metrics.statementFailed(name);
+      throw e;
+    }
+  }
+
+  /**
+   * Runs {@code stmt}, one of the canned statements, timing it as {@code name}
+   */
+  private int executeUpdate(CannedStatement name, PreparedStatement stmt) throws SQLException {
+    roundTrips++;
+    long start = System.nanoTime();
+    try {
+      int rows = stmt.executeUpdate();
+      metrics.statement(name, System.nanoTime() - start);
+      return rows;
+    } catch (SQLException e) {
+      metrics.statementFailed(name);
+      throw e;
+    }
+  }
+
+  /**
+   * Points this session at a commit group's connection while the group runs
+   * one of its bodies, with {@code op} the body's part of the group, or null
+   * when it runs on its own. Nulls leave the group.
+   */
+  void joinGroup(ConnectionPool.PooledConnection pc, GroupCommitter.Op op) throws SQLException {
+    pooled = pc;
+    conn = pc == null ? null : pc.connection();
+    groupOp = op;
+    if (pc != null) {
+      bindStatements();
+    }
+  }
+
+  /**
+   * Commits the current transaction, then runs {@code committed} if not null.
+   * In a commit group the work is only durable once the group commits, so
+   * {@code committed} waits for that, and {@code abandoned}, if not null, runs
+   * instead if the group does not commit.
+   */
+  private void commit(Runnable committed, Runnable abandoned) throws SQLException {
+    if (groupOp != null) {
+      groupOp.onCommit(committed, abandoned);
+      metrics.commit(current);
+      return;
+    }
+    roundTrips++;
+    conn.commit();
+    metrics.commit(current);
+    if (committed != null) {
+      committed.run();
+    }
+  }
+
+  /**
+   * Rolls back the current transaction, or in a commit group only this
+   * session's part of it
+   */
+  private void rollback() throws SQLException {
+    if (groupOp != null) {
+      groupOp.rollback();
+    } else {
+      roundTrips++;
+      conn.rollback();
+    }
+    metrics.rollback(current);
+  }
+
+  private void borrowConnection() throws SQLException {
+    pooled = pool.borrow();
+    conn = pooled.connection();
+    try {
+      bindStatements();
+    } catch (SQLException e) {
+      releaseConnection();
+      throw e;
+    }
+  }
+
+  private void releaseConnection() {
+    if (pooled != null) {
+      pool.release(pooled);
+      pooled = null;
+      conn = null;
+    }
   }
 
   /**
@@ -129,12 +461,64 @@ public class Query {
    * WARNING! Do not drop any tables and do not clear the flights table.
    */
   public void clearTables() {
-    try {
+    transaction(TransactionType.CLEAR_TABLES, null, () -> {
       // TODO: YOUR CODE HERE
-      clearTablesStmt.executeUpdate();
-      resetIDStmt.executeUpdate();
-    } catch (Exception e) {
-      e.printStackTrace();
+      executeUpdate(CannedStatement.CLEAR_TABLES, clearTablesStmt);
+      executeUpdate(CannedStatement.RESET_ID, resetIDStmt);
+      commit(() -> {
+        reservationIds.reset();
+        seats.reset();
+      }, null);
+      return null;
+    });
+  }
+
+  /**
+   * Runs this Query as session {@code sessionId}: the session's login and last
+   * search, as last saved with {@link #saveSession}, replace this Query's. A
+   * session that was never saved, has expired or was evicted starts logged
+   * out, with no search.
+   */
+  public void resumeSession(String sessionId) {
+    SessionStore.State state = sessions.get(sessionId);
+    this.sessionId = sessionId;
+    username = state == null ? null : state.username;
+    itineraries = state == null ? null : state.itineraries;
+  }
+
+  /**
+   * Saves this Query's login and last search as the state of the session it
+   * last resumed
+   */
+  public void saveSession() {
+    if (sessionId == null) {
+      throw new IllegalStateException("No session resumed");
+    }
+    if (username == null && itineraries == null) {
+      // nothing to keep
+      sessions.remove(sessionId);
+    } else {
+      sessions.put(sessionId, new SessionStore.State(username, itineraries));
+    }
+  }
+
+  /**
+   * The store this Query keeps session state in
+   */
+  SessionStore sessionStore() {
+    return sessions;
+  }
+
+  /**
+   * Drops the state of session {@code sessionId}, logging it out, and this
+   * Query's too if it is running that session
+   */
+  public void endSession(String sessionId) {
+    sessions.remove(sessionId);
+    if (sessionId.equals(this.sessionId)) {
+      this.sessionId = null;
+      username = null;
+      itineraries = null;
     }
   }
 
@@ -142,27 +526,63 @@ public class Query {
    * prepare all the SQL statements in this method.
    */
   public void prepareStatements() throws SQLException {
-    checkFlightCapacityStatement = conn.prepareStatement(CHECK_FLIGHT_CAPACITY);
+    if (pool == null) {
+      bindStatements();
+    }
+
+    if (useFlightCache) {
+      if (pool != null) {
+        borrowConnection();
+      }
+      try {
+        flightCache = database.flightCache(conn);
+        if (useFlightIndex) {
+          flightIndex = database.flightIndex(conn);
+        }
+        conn.commit();
+      } finally {
+        if (pool != null) {
+          releaseConnection();
+        }
+      }
+    }
+  }
+
+  /**
+   * Points the statement fields at statements prepared on {@code conn}. Pooled
+   * connections keep their statements, so this only prepares once per physical
+   * connection.
+   */
+  private void bindStatements() throws SQLException {
+    checkFlightCapacityStatement = prepare(CHECK_FLIGHT_CAPACITY);
+    getFlightStmt = prepare(GET_FLIGHT);
     // TODO: YOUR CODE HERE
-    clearTablesStmt = conn.prepareStatement(CLEAR_TABLES);
-    createUserStmt = conn.prepareStatement(CREATE_USER);
-    checkUsernameStmt = conn.prepareStatement(CHECK_USERNAME_EXISTS);
-    getHashSaltStmt = conn.prepareStatement(GET_HASHSALT);
-    getDirectStmt = conn.prepareStatement(GET_DIRECT);
-    getIndirectStmt = conn.prepareStatement(GET_INDIRECT);
-    getNextRidStmt = conn.prepareStatement(GET_NEXT_RID);
-    insertRidStmt = conn.prepareStatement(PUT_NEXT_RID);
-    bookReservationStmt = conn.prepareStatement(BOOK_RESERVATION);
-    resetIDStmt = conn.prepareStatement(RESET_ID);
-    getReservationStmt = conn.prepareStatement(GET_RESERVATION);
-    getBalanceStmt = conn.prepareStatement(GET_BALANCE);
-    updatePaidReservationStmt = conn.prepareStatement(UPDATE_RESERVATION);
-    updateBalanceStmt = conn.prepareStatement(UPDATE_BALANCE);
-    findReservationsOnUsernameStmt = conn.prepareStatement(FIND_RESERVATIONS_ON_USERNAME);
-    findFlightStmt = conn.prepareStatement(GET_FLIGHT_ON_FID);
-    findReservationToCancelStmt = conn.prepareStatement(FIND_RESERVATION_TO_CANCEL);
-    deletReservationStmt = conn.prepareStatement(DELETE_RESERVATION);
-    checkDayReservedStmt = conn.prepareStatement(CHECK_DAY_RESERVED);
+    clearTablesStmt = prepare(CLEAR_TABLES);
+    createUserStmt = prepare(CREATE_USER);
+    checkUsernameStmt = prepare(CHECK_USERNAME_EXISTS);
+    getHashSaltStmt = prepare(GET_HASHSALT);
+    getDirectStmt = prepare(GET_DIRECT);
+    getIndirectStmt = prepare(GET_INDIRECT);
+    getDirectAfterStmt = prepare(GET_DIRECT_AFTER);
+    getIndirectAfterStmt = prepare(GET_INDIRECT_AFTER);
+    bookReservationStmt = prepare(BOOK_RESERVATION);
+    bookReservationLegStmt = prepare(BOOK_RESERVATION_LEG);
+    resetIDStmt = prepare(RESET_ID);
+    getBalanceStmt = prepare(GET_BALANCE);
+    payReservationStmt = prepare(payReservationSql);
+    debitBalanceStmt = prepare(debitBalanceSql);
+    creditBalanceStmt = prepare(CREDIT_BALANCE);
+    findReservationsOnUsernameStmt = prepare(FIND_RESERVATIONS_ON_USERNAME);
+    findReservationFidsStmt = prepare(FIND_RESERVATION_FIDS);
+    cancelReservationStmt = prepare(cancelReservationSql);
+    cancelReservationLegsStmt = prepare(cancelReservationLegsSql);
+    checkDayReservedStmt = prepare(CHECK_DAY_RESERVED);
+    takeSeatStmt = prepare(TAKE_SEAT);
+    giveSeatStmt = prepare(GIVE_SEAT);
+  }
+
+  private PreparedStatement prepare(String sql) throws SQLException {
+    return pooled != null ? pooled.prepare(sql) : conn.prepareStatement(sql);
   }
 
   /**
@@ -177,55 +597,47 @@ public class Query {
    */
   public String transaction_login(String username, String password) {
     // TODO: YOUR CODE HERE
-    //System.out.println("here");
     if (this.username != null) {
-        return "User already logged in\n";
-    } else {
-      try {
-        getHashSaltStmt.clearParameters();
-        getHashSaltStmt.setString(1, username);
-        ResultSet results = getHashSaltStmt.executeQuery();
-        results.next();
-        byte[] salt = results.getBytes("salt");
-        byte[] retrievedHash = results.getBytes("hash");
-        results.close();
-
-        //System.out.println("Salt is: " + Arrays.toString(salt));
-        //System.out.println("Retrieved Hash is: " + Arrays.toString(retrievedHash));
-
-        // Specify the hash parameters
-        KeySpec spec = new PBEKeySpec(password.toCharArray(), salt, HASH_STRENGTH, KEY_LENGTH);
-
-        // Generate the hash
-        SecretKeyFactory factory = null;
-        byte[] hash = null;
-        try {
-          factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
-          hash = factory.generateSecret(spec).getEncoded();
-        } catch (NoSuchAlgorithmException | InvalidKeySpecException ex) {
-          throw new IllegalStateException();
-        }
-        //System.out.println("hash is: " + Arrays.toString(hash));
-        if (Arrays.equals(retrievedHash, hash)) {
-          this.username = username;
-          conn.commit();
-          return "Logged in as " + username + "\n";
-        }
-      } catch (SQLException ex) {
-        
-        try {
-            conn.rollback();
-            return "Login failed\n";
-        } catch (SQLException e) {
-            e.printStackTrace();
-            return "Login failed\n";
-        }
-        
+      return "User already logged in\n";
+    }
+    // The salt comes from the database, so the hash can only start once the
+    // lookup is done; hash without holding a connection
+    byte[][] saltAndHash = new byte[2][];
+    String failure = transaction(TransactionType.LOGIN, "Login failed\n", () -> findSaltAndHash(username, saltAndHash));
+    if (failure != null) {
+      return failure;
+    }
+    try {
+      byte[] hash = PasswordHasher.await(hasher.submit(password, saltAndHash[0]));
+      if (Arrays.equals(saltAndHash[1], hash)) {
+        this.username = username;
+        return "Logged in as " + username + "\n";
       }
+    } catch (RejectedExecutionException | IllegalStateException e) {
+      // queue full, interrupted or hashing failed
+      e.printStackTrace();
     }
     return "Login failed\n";
   }
 
+  /**
+   * Reads the salt and hash of {@code username} into {@code saltAndHash}.
+   * Returns null if the user exists, or the failure response.
+   */
+  private String findSaltAndHash(String username, byte[][] saltAndHash) throws SQLException {
+    getHashSaltStmt.clearParameters();
+    getHashSaltStmt.setString(1, username);
+    ResultSet results = executeQuery(CannedStatement.GET_HASHSALT, getHashSaltStmt);
+    boolean found = results.next();
+    if (found) {
+      saltAndHash[0] = results.getBytes("salt");
+      saltAndHash[1] = results.getBytes("hash");
+    }
+    results.close();
+    commit(null, null);
+    return found ? null : "Login failed\n";
+  }
+
   /**
    * Implement the create user function.
    *
@@ -238,47 +650,47 @@ public class Query {
    *         if failed.
    */
   public String transaction_createCustomer(String username, String password, int initAmount) {
+    if (initAmount < 0) {
+      return "Failed to create user\n";
+    }
+    // Start the hash first, so the username check's round trip runs while it
+    // computes
+    byte[] salt = hasher.newSalt();
+    Future<byte[]> pending;
+    try {
+      pending = hasher.submit(password, salt);
+    } catch (RejectedExecutionException e) {
+      e.printStackTrace();
+      return "Failed to create user\n";
+    }
+    String response = transaction(TransactionType.CREATE_CUSTOMER, "Failed to create user\n",
+        () -> createCustomer(username, salt, pending, initAmount));
+    // stops the hash if the check turned the user down before it finished
+    pending.cancel(true);
+    return response;
+  }
+
+  private String createCustomer(String username, byte[] salt, Future<byte[]> pending, int initAmount)
+      throws SQLException {
     // TODO: YOUR CODE HERE
-    if (usernameExists(username) || initAmount < 0)
+    if (usernameExists(username)) {
+      return "Failed to create user\n";
+    }
+    byte[] hash;
+    try {
+      hash = PasswordHasher.await(pending);
+    } catch (IllegalStateException e) {
+      e.printStackTrace();
       return "Failed to create user\n";
-    else {
-      try {
-        createUserStmt.clearParameters();
-        createUserStmt.setString(1, username);
-        // Generate a random cryptographic salt
-        SecureRandom random = new SecureRandom();
-        byte[] salt = new byte[16];
-        random.nextBytes(salt);
-        createUserStmt.setBytes(3, salt);
-
-        // Specify the hash parameters
-        KeySpec spec = new PBEKeySpec(password.toCharArray(), salt, HASH_STRENGTH, KEY_LENGTH);
-
-        // Generate the hash
-        SecretKeyFactory factory = null;
-        byte[] hash = null;
-        try {
-          factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
-          hash = factory.generateSecret(spec).getEncoded();
-        } catch (NoSuchAlgorithmException | InvalidKeySpecException ex) {
-          throw new IllegalStateException();
-        }
-        createUserStmt.setBytes(2, hash);
-        createUserStmt.setInt(4, initAmount);
-        createUserStmt.executeUpdate();
-        conn.commit();
-      } catch (SQLException ex) {
-        try {
-           conn.rollback();
-           return "Failed to create user\n";
-        } catch (SQLException e) {
-           e.printStackTrace();
-           return "Failed to create user\n";
-        }
-        
-      }
-      return "Created user " + username + "\n";
     }
+    createUserStmt.clearParameters();
+    createUserStmt.setString(1, username);
+    createUserStmt.setBytes(2, hash);
+    createUserStmt.setBytes(3, salt);
+    createUserStmt.setInt(4, initAmount);
+    executeUpdate(CannedStatement.CREATE_USER, createUserStmt);
+    commit(null, null);
+    return "Created user " + username + "\n";
   }
 
 
@@ -317,105 +729,518 @@ public class Query {
    */
   public String transaction_search(String originCity, String destinationCity, boolean directFlight, int dayOfMonth,
       int numberOfItineraries) {
+    List<Itinerary> found = new ArrayList<>();
+    String response = search(originCity, destinationCity, directFlight, dayOfMonth, numberOfItineraries, found);
+    if (response != null) {
+      return response;
+    }
+    StringBuilder sb = new StringBuilder(128 * found.size());
+    try {
+      appendItineraries(sb, found);
+    } catch (IOException e) {
+      // a StringBuilder does not throw
+      throw new UncheckedIOException(e);
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Same as {@link #transaction_search(String, String, boolean, int, int)},
+   * writing the response to {@code out} as it is rendered
+   *
+   * @throws IOException if {@code out} does
+   */
+  public void transaction_search(String originCity, String destinationCity, boolean directFlight, int dayOfMonth,
+      int numberOfItineraries, Appendable out) throws IOException {
+    List<Itinerary> found = new ArrayList<>();
+    String response = search(originCity, destinationCity, directFlight, dayOfMonth, numberOfItineraries, found);
+    if (response != null) {
+      out.append(response);
+    } else {
+      appendItineraries(out, found);
+    }
+  }
+
+  /**
+   * Runs a search, leaving its itineraries in {@code found} and packed in
+   * {@code itineraries}
+   *
+   * @return null if there is at least one itinerary, or else the response
+   */
+  private String search(String originCity, String destinationCity, boolean directFlight, int dayOfMonth,
+      int numberOfItineraries, List<Itinerary> found) {
+    SearchResult cached = searchCache == null ? null
+        : searchCache.get(originCity, destinationCity, directFlight, dayOfMonth, numberOfItineraries);
+    // cached results and the flight index answer without touching the database
+    if (cached != null || flightIndex != null) {
+      long start = begin(TransactionType.SEARCH);
+      try {
+        return retry.run(TransactionType.SEARCH, null, "Failed to search\n",
+            () -> search(originCity, destinationCity, directFlight, dayOfMonth, numberOfItineraries, cached, found));
+      } finally {
+        metrics.end(TransactionType.SEARCH, start, roundTrips);
+      }
+    }
+    return transaction(TransactionType.SEARCH, "Failed to search\n",
+        () -> search(originCity, destinationCity, directFlight, dayOfMonth, numberOfItineraries, null, found));
+  }
+
+  private String search(String originCity, String destinationCity, boolean directFlight, int dayOfMonth,
+      int numberOfItineraries, SearchResult result, List<Itinerary> found) throws SQLException {
     // WARNING the below code is unsafe and only handles searches for direct flights
     // You can use the below code as a starting reference point or you can get rid
     // of it all and replace it with your own implementation.
     //
     // TODO: YOUR CODE HERE
-    itineraries = new ArrayList<Itinerary>();
-    StringBuffer sb = new StringBuffer();
+    itineraries = null;
+    found.clear();
+
+    if (result == null) {
+      if (flightIndex != null) {
+        result = searchFlightIndex(originCity, destinationCity, directFlight, dayOfMonth, numberOfItineraries);
+      } else {
+        result = searchDatabase(originCity, destinationCity, directFlight, dayOfMonth, numberOfItineraries);
+      }
+      if (searchCache != null) {
+        searchCache.put(originCity, destinationCity, directFlight, dayOfMonth, result);
+      }
+    }
+    found.addAll(result.top(numberOfItineraries));
+    itineraries = SessionStore.Itineraries.of(found);
+    if (found.isEmpty()) {
+      return "No flights match your selection\n";
+    }
+    // rendered after the transaction, so a retried attempt writes nothing
+    return null;
+  }
+
+  /**
+   * Appends numbered itineraries in the search output format
+   */
+  static void appendItineraries(Appendable out, List<Itinerary> itineraries) throws IOException {
+    appendItineraries(out, itineraries, 0);
+  }
+
+  /**
+   * Appends itineraries in the search output format, numbered from
+   * {@code first}
+   */
+  static void appendItineraries(Appendable out, List<Itinerary> itineraries, int first) throws IOException {
+    for (int i = 0; i < itineraries.size(); i++) {
+      Itinerary temp = itineraries.get(i);
+      out.append("Itinerary ");
+      appendInt(out, first + i);
+      out.append(": ");
+      appendInt(out, temp.count);
+      out.append(" flight(s), ");
+      appendInt(out, temp.totalTime);
+      out.append(" minutes\n");
+      temp.appendTo(out);
+    }
+  }
+
+  /**
+   * Appends {@code value} in decimal without making a String of it
+   */
+  static void appendInt(Appendable out, int value) throws IOException {
+    if (out instanceof StringBuilder) {
+      ((StringBuilder) out).append(value);
+      return;
+    }
+    long v = value;
+    if (v < 0) {
+      out.append('-');
+      v = -v;
+    }
+    long div = 1;
+    while (div * 10 <= v) {
+      div *= 10;
+    }
+    for (; div > 0; div /= 10) {
+      out.append((char) ('0' + v / div % 10));
+    }
+  }
+
+  /**
+   * Collects the search candidates from the in-memory flight index
+   */
+  private SearchResult searchFlightIndex(String originCity, String destinationCity, boolean directFlight,
+      int dayOfMonth, int numberOfItineraries) {
+    long[] direct = flightIndex.direct(originCity, destinationCity, dayOfMonth, numberOfItineraries);
+    long[] indirect = new long[0];
+    if (direct.length > 0 && !directFlight && direct.length < numberOfItineraries) {
+      indirect = flightIndex.indirect(originCity, destinationCity, dayOfMonth, numberOfItineraries - direct.length);
+    }
+    return new SearchResult(flightIndex.itineraries(direct), flightIndex.itineraries(indirect), numberOfItineraries,
+        directFlight);
+  }
+
+  /**
+   * Collects the search candidates with the GET_DIRECT and GET_INDIRECT queries
+   */
+  private SearchResult searchDatabase(String originCity, String destinationCity, boolean directFlight, int dayOfMonth,
+      int numberOfItineraries) throws SQLException {
+    getDirectStmt.clearParameters();
+    getDirectStmt.setInt(1, numberOfItineraries);
+    getDirectStmt.setString(2, originCity);
+    getDirectStmt.setString(3, destinationCity);
+    getDirectStmt.setInt(4, dayOfMonth);
 
+    List<Itinerary> direct = new ArrayList<Itinerary>();
+    List<Itinerary> indirect = new ArrayList<Itinerary>();
+    readDirect(executeQuery(CannedStatement.GET_DIRECT, getDirectStmt), direct);
+    if (direct.isEmpty()) {
+      return new SearchResult(direct, indirect, numberOfItineraries, directFlight);
+    }
+
+    if (!directFlight) {
+      int itinerariesRemaining = numberOfItineraries - direct.size();
+      if (itinerariesRemaining > 0) {
+        getIndirectStmt.clearParameters();
+        getIndirectStmt.setInt(1, itinerariesRemaining);
+        getIndirectStmt.setString(2, originCity);
+        getIndirectStmt.setString(3, destinationCity);
+        getIndirectStmt.setInt(4, dayOfMonth);
+        readIndirect(executeQuery(CannedStatement.GET_INDIRECT, getIndirectStmt), indirect);
+      }
+    }
+    return new SearchResult(direct, indirect, numberOfItineraries, directFlight);
+  }
+
+  /**
+   * Reads the rows of a GET_DIRECT style query into {@code direct}, then
+   * closes them
+   */
+  private static void readDirect(ResultSet oneHopResults, List<Itinerary> direct) throws SQLException {
+    while (oneHopResults.next()) {
+      int result_fid = oneHopResults.getInt("fid");
+      int result_dayOfMonth = oneHopResults.getInt("day_of_month");
+      String result_carrierId = oneHopResults.getString("carrier_id");
+      String result_flightNum = oneHopResults.getString("flight_num");
+      String result_originCity = oneHopResults.getString("origin_city");
+      String result_destCity = oneHopResults.getString("dest_city");
+      int result_time = oneHopResults.getInt("actual_time");
+      int result_capacity = oneHopResults.getInt("capacity");
+      int result_price = oneHopResults.getInt("price");
+
+      direct.add(new Itinerary(new Flight(result_fid, result_dayOfMonth, result_carrierId, result_flightNum, result_originCity, result_destCity, result_time, result_capacity, result_price)));
+    }
+    oneHopResults.close();
+  }
+
+  /**
+   * Reads the rows of a GET_INDIRECT style query into {@code indirect}, then
+   * closes them
+   */
+  private static void readIndirect(ResultSet twoHopResults, List<Itinerary> indirect) throws SQLException {
+    while (twoHopResults.next()) {
+      int afid = twoHopResults.getInt("afid");
+      int adayOfMonth = twoHopResults.getInt("aday_of_month");
+      String acarrierId = twoHopResults.getString("acarrier_id");
+      String aflightNum = twoHopResults.getString("aflight_num");
+      String aoriginCity = twoHopResults.getString("aorigin_city");
+      String adestCity = twoHopResults.getString("adest_city");
+      int atime = twoHopResults.getInt("aactual_time");
+      int acapacity = twoHopResults.getInt("acapacity");
+      int aprice = twoHopResults.getInt("aprice");
+
+      int bfid = twoHopResults.getInt("bfid");
+      int bdayOfMonth = twoHopResults.getInt("bday_of_month");
+      String bcarrierId = twoHopResults.getString("bcarrier_id");
+      String bflightNum = twoHopResults.getString("bflight_num");
+      String boriginCity = twoHopResults.getString("borigin_city");
+      String bdestCity = twoHopResults.getString("bdest_city");
+      int btime = twoHopResults.getInt("bactual_time");
+      int bcapacity = twoHopResults.getInt("bcapacity");
+      int bprice = twoHopResults.getInt("bprice");
+
+      Flight firstF = new Flight(afid, adayOfMonth, acarrierId, aflightNum, aoriginCity, adestCity, atime, acapacity, aprice);
+
+      Flight secondF = new Flight(bfid, bdayOfMonth, bcarrierId, bflightNum, boriginCity, bdestCity, btime, bcapacity, bprice);
+
+      indirect.add(new Itinerary(firstF, secondF));
+    }
+    twoHopResults.close();
+  }
+
+  /**
+   * Starts a paginated search. Pages walk every itinerary a search for
+   * arbitrarily many itineraries would print, in the same order, at most
+   * {@code pageSize} at a time, or {@code hw1.search_page.max_size} if that is
+   * fewer.
+   *
+   * @return the first page in the search output format, followed by "Next page:
+   *         [cursor]\n" if there are more, where the cursor is a token to pass
+   *         to {@link #transaction_searchNext}. Otherwise the same responses as
+   *         {@link #transaction_search}. Itinerary numbers continue from page
+   *         to page and all of them stay bookable until the next search.
+   */
+  public String transaction_searchPage(String originCity, String destinationCity, boolean directFlight,
+      int dayOfMonth, int pageSize) {
+    StringBuilder sb = new StringBuilder();
     try {
+      transaction_searchPage(originCity, destinationCity, directFlight, dayOfMonth, pageSize, sb);
+    } catch (IOException e) {
+      // a StringBuilder does not throw
+      throw new UncheckedIOException(e);
+    }
+    return sb.toString();
+  }
 
-      getDirectStmt.clearParameters();
-      getDirectStmt.setInt(1, numberOfItineraries);
-      getDirectStmt.setString(2, originCity);
-      getDirectStmt.setString(3, destinationCity);
-      getDirectStmt.setInt(4, dayOfMonth);
-
-      ResultSet oneHopResults = getDirectStmt.executeQuery();
-
-      int index = 0; // itinerary id
-      if (!oneHopResults.next()) {
-         return "No flights match your selection\n";
-      }
-      do {
-        int result_fid = oneHopResults.getInt("fid");
-        int result_dayOfMonth = oneHopResults.getInt("day_of_month");
-        String result_carrierId = oneHopResults.getString("carrier_id");
-        String result_flightNum = oneHopResults.getString("flight_num");
-        String result_originCity = oneHopResults.getString("origin_city");
-        String result_destCity = oneHopResults.getString("dest_city");
-        int result_time = oneHopResults.getInt("actual_time");
-        int result_capacity = oneHopResults.getInt("capacity");
-        int result_price = oneHopResults.getInt("price");
-
-        itineraries.add(new Itinerary(new Flight(result_fid, result_dayOfMonth, result_carrierId, result_flightNum, result_originCity, result_destCity, result_time, result_capacity, result_price)));
-        index++;
-      } while (oneHopResults.next());
-      oneHopResults.close();
-
-      if (!directFlight) {
-        int itinerariesRemaining = numberOfItineraries - index;
-        if (itinerariesRemaining > 0) {
-          getIndirectStmt.clearParameters();
-          getIndirectStmt.setInt(1, itinerariesRemaining);
-          getIndirectStmt.setString(2, originCity);
-          getIndirectStmt.setString(3, destinationCity);
-          getIndirectStmt.setInt(4, dayOfMonth);
-
-          ResultSet twoHopResults = getIndirectStmt.executeQuery();
-
-          while (twoHopResults.next()) {
-            int afid = twoHopResults.getInt("afid");
-            int adayOfMonth = twoHopResults.getInt("aday_of_month");
-            String acarrierId = twoHopResults.getString("acarrier_id");
-            String aflightNum = twoHopResults.getString("aflight_num");
-            String aoriginCity = twoHopResults.getString("aorigin_city");
-            String adestCity = twoHopResults.getString("adest_city");
-            int atime = twoHopResults.getInt("aactual_time");
-            int acapacity = twoHopResults.getInt("acapacity");
-            int aprice = twoHopResults.getInt("aprice");
-
-            int bfid = twoHopResults.getInt("bfid");
-            int bdayOfMonth = twoHopResults.getInt("bday_of_month");
-            String bcarrierId = twoHopResults.getString("bcarrier_id");
-            String bflightNum = twoHopResults.getString("bflight_num");
-            String boriginCity = twoHopResults.getString("borigin_city");
-            String bdestCity = twoHopResults.getString("bdest_city");
-            int btime = twoHopResults.getInt("bactual_time");
-            int bcapacity = twoHopResults.getInt("bcapacity");
-            int bprice = twoHopResults.getInt("bprice");
-            
-            Flight firstF = new Flight(afid, adayOfMonth, acarrierId, aflightNum, aoriginCity, adestCity, atime, acapacity, aprice);
-
-            Flight secondF = new Flight(bfid, bdayOfMonth, bcarrierId, bflightNum, boriginCity, bdestCity, btime, bcapacity, bprice);
-
-            itineraries.add(new Itinerary(firstF, secondF));
-          }
-          twoHopResults.close();
-        }
+  /**
+   * Same as {@link #transaction_searchPage(String, String, boolean, int, int)},
+   * writing the response to {@code out}
+   *
+   * @throws IOException if {@code out} does
+   */
+  public void transaction_searchPage(String originCity, String destinationCity, boolean directFlight,
+      int dayOfMonth, int pageSize, Appendable out) throws IOException {
+    searchPage(SearchCursor.first(originCity, destinationCity, directFlight, dayOfMonth,
+        Math.min(pageSize, maxPageSize)), out);
+  }
+
+  /**
+   * Continues a paginated search with the page after {@code cursor}
+   *
+   * @return the page as {@link #transaction_searchPage} prints it, or "Invalid
+   *         search cursor\n" if {@code cursor} is not one it gave out
+   */
+  public String transaction_searchNext(String cursor) {
+    StringBuilder sb = new StringBuilder();
+    try {
+      transaction_searchNext(cursor, sb);
+    } catch (IOException e) {
+      // a StringBuilder does not throw
+      throw new UncheckedIOException(e);
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Same as {@link #transaction_searchNext(String)}, writing the response to
+   * {@code out}
+   *
+   * @throws IOException if {@code out} does
+   */
+  public void transaction_searchNext(String cursor, Appendable out) throws IOException {
+    SearchCursor c = SearchCursor.decode(cursor, maxPageSize);
+    if (c == null) {
+      out.append("Invalid search cursor\n");
+      return;
+    }
+    searchPage(c, out);
+  }
+
+  private void searchPage(SearchCursor cursor, Appendable out) throws IOException {
+    if (cursor.pageSize <= 0) {
+      out.append("No flights match your selection\n");
+      return;
+    }
+    // one more than a page tells whether there is a next one
+    List<Itinerary> page = new ArrayList<>();
+    String response;
+    if (flightIndex != null) {
+      long start = begin(TransactionType.SEARCH);
+      try {
+        response = retry.run(TransactionType.SEARCH, null, "Failed to search\n", () -> pageFlightIndex(cursor, page));
+      } finally {
+        metrics.end(TransactionType.SEARCH, start, roundTrips);
       }
-      Collections.sort(itineraries);
-      for (int i = 0; i < itineraries.size(); i++) {
-        Itinerary temp = itineraries.get(i);
-        sb.append("Itinerary " + i + ": " + temp.count + " flight(s), " + temp.totalTime + " minutes" + "\n");
-        sb.append(temp.toString());
+    } else {
+      response = transaction(TransactionType.SEARCH, "Failed to search\n", () -> pageDatabase(cursor, page));
+    }
+    if (response != null) {
+      out.append(response);
+      return;
+    }
+    boolean more = page.size() > cursor.pageSize;
+    if (more) {
+      page.remove(cursor.pageSize);
+    }
+    int first = 0;
+    if (cursor.isFirst() || itineraries == null) {
+      itineraries = SessionStore.Itineraries.of(page);
+    } else {
+      first = itineraries.size();
+      itineraries = itineraries.append(page);
+    }
+    appendItineraries(out, page, first);
+    if (more) {
+      out.append("Next page: ").append(cursor.after(page.get(page.size() - 1)).encode()).append('\n');
+    }
+  }
+
+  /**
+   * Collects the page after {@code cursor}, and one more, from the flight index
+   *
+   * @return null if there is at least one itinerary, or else the response
+   */
+  private String pageFlightIndex(SearchCursor cursor, List<Itinerary> page) {
+    page.clear();
+    long after = -1;
+    if (!cursor.isFirst()) {
+      after = flightIndex.key(cursor.totalTime, cursor.fid1, cursor.fid2);
+      if (after < 0) {
+        return "Invalid search cursor\n";
       }
-    } catch (SQLException ex) {
-      try {
-         // recursive retry
-         return transaction_search(originCity, destinationCity, directFlight, dayOfMonth, numberOfItineraries);
-         
-      } catch (SQLException e) {
-         e.printStackTrace();
-         return "Failed to search\n";
+    }
+    int limit = cursor.pageSize + 1;
+    long[] direct = flightIndex.direct(cursor.originCity, cursor.destinationCity, cursor.dayOfMonth, after, limit);
+    // as in a full search, there are no itineraries without a direct flight
+    if (direct.length == 0 && cursor.isFirst()) {
+      return "No flights match your selection\n";
+    }
+    long[] indirect = cursor.directFlight ? new long[0]
+        : flightIndex.indirect(cursor.originCity, cursor.destinationCity, cursor.dayOfMonth, after, limit);
+    merge(flightIndex.itineraries(direct), flightIndex.itineraries(indirect), limit, page);
+    return page.isEmpty() ? "No flights match your selection\n" : null;
+  }
+
+  /**
+   * Collects the page after {@code cursor}, and one more, with the
+   * GET_DIRECT_AFTER and GET_INDIRECT_AFTER queries
+   *
+   * @return null if there is at least one itinerary, or else the response
+   */
+  private String pageDatabase(SearchCursor cursor, List<Itinerary> page) throws SQLException {
+    page.clear();
+    int limit = cursor.pageSize + 1;
+    getDirectAfterStmt.clearParameters();
+    getDirectAfterStmt.setInt(1, limit);
+    getDirectAfterStmt.setString(2, cursor.originCity);
+    getDirectAfterStmt.setString(3, cursor.destinationCity);
+    getDirectAfterStmt.setInt(4, cursor.dayOfMonth);
+    getDirectAfterStmt.setInt(5, cursor.totalTime);
+    getDirectAfterStmt.setInt(6, cursor.totalTime);
+    getDirectAfterStmt.setInt(7, cursor.fid1);
+    List<Itinerary> direct = new ArrayList<Itinerary>();
+    readDirect(executeQuery(CannedStatement.GET_DIRECT_AFTER, getDirectAfterStmt), direct);
+    // as in a full search, there are no itineraries without a direct flight
+    if (direct.isEmpty() && cursor.isFirst()) {
+      return "No flights match your selection\n";
+    }
+    List<Itinerary> indirect = new ArrayList<Itinerary>();
+    if (!cursor.directFlight) {
+      getIndirectAfterStmt.clearParameters();
+      getIndirectAfterStmt.setInt(1, limit);
+      getIndirectAfterStmt.setString(2, cursor.originCity);
+      getIndirectAfterStmt.setString(3, cursor.destinationCity);
+      getIndirectAfterStmt.setInt(4, cursor.dayOfMonth);
+      getIndirectAfterStmt.setInt(5, cursor.totalTime);
+      getIndirectAfterStmt.setInt(6, cursor.totalTime);
+      getIndirectAfterStmt.setInt(7, cursor.fid1);
+      getIndirectAfterStmt.setInt(8, cursor.fid1);
+      getIndirectAfterStmt.setInt(9, cursor.fid2);
+      readIndirect(executeQuery(CannedStatement.GET_INDIRECT_AFTER, getIndirectAfterStmt), indirect);
+    }
+    merge(direct, indirect, limit, page);
+    return page.isEmpty() ? "No flights match your selection\n" : null;
+  }
+
+  /**
+   * Merges two lists in output order into {@code into}, up to {@code limit};
+   * ties keep the direct flight first, as {@link SearchResult#top} does
+   */
+  private static void merge(List<Itinerary> direct, List<Itinerary> indirect, int limit, List<Itinerary> into) {
+    int i = 0;
+    int j = 0;
+    while (into.size() < limit && (i < direct.size() || j < indirect.size())) {
+      if (j == indirect.size() || (i < direct.size() && direct.get(i).compareTo(indirect.get(j)) <= 0)) {
+        into.add(direct.get(i++));
+      } else {
+        into.add(indirect.get(j++));
       }
-      
+    }
+  }
+
+  /**
+   * Searches for itineraries of up to {@code maxLegs} flights, at most
+   * hw1.multi_hop.max_legs, from {@code originCity} to {@code destinationCity}
+   * on {@code dayOfMonth}. Unlike search, an itinerary may connect more than
+   * once and there need not be a direct flight.
+   *
+   * @return the {@code numberOfItineraries} shortest itineraries in the search
+   *         output format and order, each taking no city twice. "No flights
+   *         match your selection\n" if there are none, and "Failed to
+   *         search\n" if the flight index is disabled. The itineraries are
+   *         bookable until the next search.
+   */
+  public String transaction_searchHops(String originCity, String destinationCity, int maxLegs, int dayOfMonth,
+      int numberOfItineraries) {
+    StringBuilder sb = new StringBuilder();
+    try {
+      transaction_searchHops(originCity, destinationCity, maxLegs, dayOfMonth, numberOfItineraries, sb);
+    } catch (IOException e) {
+      // a StringBuilder does not throw
+      throw new UncheckedIOException(e);
     }
     return sb.toString();
   }
 
+  /**
+   * Same as {@link #transaction_searchHops(String, String, int, int, int)},
+   * writing the response to {@code out}
+   *
+   * @throws IOException if {@code out} does
+   */
+  public void transaction_searchHops(String originCity, String destinationCity, int maxLegs, int dayOfMonth,
+      int numberOfItineraries, Appendable out) throws IOException {
+    // the whole day's graph is only at hand in the flight index
+    if (flightIndex == null) {
+      out.append("Failed to search\n");
+      return;
+    }
+    int legs = Math.min(maxLegs, maxHops);
+    if (legs < 1 || numberOfItineraries <= 0) {
+      out.append("No flights match your selection\n");
+      return;
+    }
+    List<Itinerary> found = new ArrayList<>();
+    long start = begin(TransactionType.SEARCH);
+    String response;
+    try {
+      response = retry.run(TransactionType.SEARCH, null, "Failed to search\n", () -> {
+        found.clear();
+        found.addAll(new MultiHopSearch(flightIndex, legs).search(originCity, destinationCity, dayOfMonth,
+            numberOfItineraries));
+        return found.isEmpty() ? "No flights match your selection\n" : null;
+      });
+    } finally {
+      metrics.end(TransactionType.SEARCH, start, roundTrips);
+    }
+    itineraries = SessionStore.Itineraries.of(found);
+    if (response != null) {
+      out.append(response);
+      return;
+    }
+    appendItineraries(out, found);
+  }
+
+  /**
+   * Rebuilds itinerary {@code i} of the last search from its fids, with the
+   * flights from the flight cache or else from the database
+   */
+  private Itinerary itinerary(int i) throws SQLException {
+    Flight[] legs = new Flight[itineraries.legs(i)];
+    for (int leg = 0; leg < legs.length; leg++) {
+      int fid = itineraries.fid(i, leg);
+      int row = flightCache == null ? -1 : flightCache.row(fid);
+      if (row >= 0) {
+        legs[leg] = flightCache.flight(row);
+        continue;
+      }
+      getFlightStmt.clearParameters();
+      getFlightStmt.setInt(1, fid);
+      List<Itinerary> flight = new ArrayList<>(1);
+      readDirect(executeQuery(CannedStatement.GET_FLIGHT, getFlightStmt), flight);
+      if (flight.isEmpty()) {
+        throw new SQLException("Flight " + fid + " is gone");
+      }
+      legs[leg] = flight.get(0).f1;
+    }
+    return new Itinerary(legs);
+  }
+
   /**
    * Implements the book itinerary function.
    *
@@ -435,6 +1260,10 @@ public class Query {
    *         successful reservation is made by any user in the system.
    */
   public String transaction_book(int itineraryId) {
+    return transaction(TransactionType.BOOK, "Booking failed\n", () -> book(itineraryId));
+  }
+
+  private String book(int itineraryId) throws SQLException {
     // TODO: YOUR CODE HERE
     if (this.username == null) {
       return "Cannot book reservations, not logged in\n";
@@ -444,27 +1273,30 @@ public class Query {
     } else if (itineraryId < 0 || itineraryId >= itineraries.size()) { 
       return "No such itinerary " + itineraryId + "\n";
     } else {
+      Itinerary targetBook = itinerary(itineraryId);
+      int[] fids = targetBook.fids();
+      boolean seatsTaken = false;
       try {
-        Itinerary targetBook = itineraries.get(itineraryId);
         
         checkDayReservedStmt.clearParameters();
         checkDayReservedStmt.setString(1, this.username);
         checkDayReservedStmt.setInt(2, targetBook.f1.dayOfMonth);
         // check if user already has a reservation on the same day
-        ResultSet results = checkDayReservedStmt.executeQuery();
+        ResultSet results = executeQuery(CannedStatement.CHECK_DAY_RESERVED, checkDayReservedStmt);
         results.next();
         int count = results.getInt("count");
         results.close();
         if (count != 0) {
           return "You cannot book two flights in the same day\n";
         }
+        // Take the seats before the insert; they go back unless it commits
+        if (!seats.reserve(fids)) {
+          rollback();
+          return "Booking failed\n";
+        }
+        seatsTaken = true;
         // Get the next reservation ID
-        results = getNextRidStmt.executeQuery();
-        results.next();
-        
-        int reservationID = results.getInt("rid");
-        results.close();
-        int price = targetBook.f1.price;
+        int reservationID = reservationIds.next(conn);
         bookReservationStmt.clearParameters();
         bookReservationStmt.setInt(1, reservationID);
         bookReservationStmt.setInt(2, 0);
@@ -472,35 +1304,79 @@ public class Query {
         bookReservationStmt.setInt(4, targetBook.f1.fid);
         if (targetBook.f2 != null) {
           bookReservationStmt.setInt(5, targetBook.f2.fid);
-          price += targetBook.f2.price;
         } else {
           bookReservationStmt.setNull(5, java.sql.Types.INTEGER);
         }
-        bookReservationStmt.setInt(6, price);
+        bookReservationStmt.setInt(6, itineraries.price(itineraryId));
         bookReservationStmt.setInt(7, targetBook.f1.dayOfMonth);
         
         
-        bookReservationStmt.executeUpdate();
-
-        // update the new reservation ID
-        insertRidStmt.clearParameters();
-        insertRidStmt.setInt(1, reservationID + 1);
-        insertRidStmt.executeUpdate();
-        conn.commit();
+        executeUpdate(CannedStatement.BOOK_RESERVATION, bookReservationStmt);
+        // flights after the second go in a table of their own
+        for (int leg = 3; leg <= fids.length; leg++) {
+          bookReservationLegStmt.clearParameters();
+          bookReservationLegStmt.setInt(1, reservationID);
+          bookReservationLegStmt.setInt(2, leg);
+          bookReservationLegStmt.setInt(3, fids[leg - 1]);
+          executeUpdate(CannedStatement.BOOK_RESERVATION_LEG, bookReservationLegStmt);
+        }
+        // The database has the last word on capacity; if the counts let an
+        // overbooking through, they are off, so seed them again
+        if (!takeSeats(fids)) {
+          rollback();
+          seats.release(fids);
+          seatsTaken = false;
+          seats.reseed(fids);
+          return "Booking failed\n";
+        }
+        commit(() -> {
+          for (int fid : fids) {
+            invalidateFlight(fid);
+          }
+        }, () -> seats.release(fids));
+        seatsTaken = false;
         return "Booked flight(s), reservation ID: " + reservationID + "\n";
-      } catch (SQLException ex) {
-        try {
-         conn.rollback();
-         return "Booking failed\n";
-        } catch (SQLException e) {
-         e.printStackTrace();
-         return "Booking failed\n";
+      } finally {
+        if (seatsTaken) {
+          seats.release(fids);
         }
-        
       }
     }
   }
 
+  /**
+   * Takes a seat on every flight in {@code fids} from its row in FlightSeats,
+   * in fid order so two bookings cannot deadlock on the rows
+   *
+   * @return false if any flight has no seats left
+   */
+  private boolean takeSeats(int[] fids) throws SQLException {
+    int[] sorted = fids.clone();
+    Arrays.sort(sorted);
+    for (int fid : sorted) {
+      takeSeatStmt.clearParameters();
+      takeSeatStmt.setInt(1, fid);
+      if (executeUpdate(CannedStatement.TAKE_SEAT, takeSeatStmt) != 1) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Gives a seat on every flight in {@code fids} back to its row in
+   * FlightSeats, in the same order {@link #takeSeats} takes them
+   */
+  private void giveSeats(int[] fids) throws SQLException {
+    int[] sorted = fids.clone();
+    Arrays.sort(sorted);
+    for (int fid : sorted) {
+      giveSeatStmt.clearParameters();
+      giveSeatStmt.setInt(1, fid);
+      executeUpdate(CannedStatement.GIVE_SEAT, giveSeatStmt);
+    }
+  }
+
   /**
    * Implements the pay function.
    *
@@ -519,57 +1395,58 @@ public class Query {
    *         user's account.
    */
   public String transaction_pay(int reservationId) {
+    return transaction(TransactionType.PAY, "Failed to pay for reservation " + reservationId + "\n",
+        () -> pay(reservationId));
+  }
+
+  private String pay(int reservationId) throws SQLException {
     // TODO: YOUR CODE HERE
     if (username == null) {
       return "Cannot pay, not logged in\n";
-    } else {
-      try {
-      
-        getReservationStmt.clearParameters();
-        getReservationStmt.setString(2, this.username);
-        getReservationStmt.setInt(1, reservationId);
-        
-        ResultSet results = getReservationStmt.executeQuery();
-        if (!results.next()) {
-          return "Cannot find unpaid reservation " + reservationId + " under user: " + this.username + "\n";
-        }
-        int price = results.getInt("price");
-        //System.out.println("found ticket price: "+ price);
-        results.close();
-        getBalanceStmt.clearParameters();
-        getBalanceStmt.setString(1, this.username);
-        ResultSet checkBalance = getBalanceStmt.executeQuery();
-        checkBalance.next();
-        int balance = checkBalance.getInt("balance");
-        checkBalance.close();
-        
-        if (price > balance) {
-          return "User has only " + balance + " in account but itinerary costs " + price + "\n";
-        }
-        
-        updatePaidReservationStmt.clearParameters();
-        updatePaidReservationStmt.setString(1, this.username);
-        updatePaidReservationStmt.setInt(2, reservationId);
-        updatePaidReservationStmt.executeUpdate();
-        updateBalanceStmt.clearParameters();
-        updateBalanceStmt.setInt(1, balance - price);
-        updateBalanceStmt.setString(2, this.username);
-        updateBalanceStmt.executeUpdate();
-        balance = balance - price;
-        conn.commit();
-        return "Paid reservation: " + reservationId + " remaining balance: " + balance + "\n";
-      } catch (SQLException ex) {
-         try {
-            conn.rollback();
-            return "Failed to pay for reservation " + reservationId + "\n";
-         } catch (SQLException e) {
-            e.printStackTrace();
-            return "Failed to pay for reservation " + reservationId + "\n";
-         }
-        
+    }
+    // Mark the reservation paid, which also locks it against a concurrent pay
+    // or cancel
+    payReservationStmt.clearParameters();
+    payReservationStmt.setInt(1, reservationId);
+    payReservationStmt.setString(2, this.username);
+    int price;
+    try (ResultSet results = executeQuery(CannedStatement.PAY_RESERVATION, payReservationStmt)) {
+      if (!results.next()) {
+        rollback();
+        return "Cannot find unpaid reservation " + reservationId + " under user: " + this.username + "\n";
+      }
+      price = results.getInt("price");
+    }
+
+    // Debit only if the balance covers it
+    debitBalanceStmt.clearParameters();
+    debitBalanceStmt.setInt(1, price);
+    debitBalanceStmt.setString(2, this.username);
+    debitBalanceStmt.setInt(3, price);
+    int balance;
+    try (ResultSet results = executeQuery(CannedStatement.DEBIT_BALANCE, debitBalanceStmt)) {
+      if (!results.next()) {
+        rollback();
+        return "User has only " + balance() + " in account but itinerary costs " + price + "\n";
       }
+      balance = results.getInt("balance");
     }
+    commit(null, null);
+    return "Paid reservation: " + reservationId + " remaining balance: " + balance + "\n";
+  }
 
+  /**
+   * Reads the logged in user's balance and ends the transaction
+   */
+  private int balance() throws SQLException {
+    getBalanceStmt.clearParameters();
+    getBalanceStmt.setString(1, this.username);
+    try (ResultSet results = executeQuery(CannedStatement.GET_BALANCE, getBalanceStmt)) {
+      results.next();
+      int balance = results.getInt("balance");
+      commit(null, null);
+      return balance;
+    }
   }
 
   /**
@@ -593,99 +1470,160 @@ public class Query {
    * @see Flight#toString()
    */
   public String transaction_reservations() {
-    StringBuffer sb = new StringBuffer();
+    String response = transaction(TransactionType.RESERVATIONS, "Failed to retrieve reservations\n",
+        () -> reservations());
+    if (response == null) {
+      response = rendered.toString();
+      trimRendered();
+    }
+    return response;
+  }
+
+  /**
+   * Same as {@link #transaction_reservations()}, writing the response to
+   * {@code out}
+   *
+   * @throws IOException if {@code out} does
+   */
+  public void transaction_reservations(Appendable out) throws IOException {
+    String response = transaction(TransactionType.RESERVATIONS, "Failed to retrieve reservations\n",
+        () -> reservations());
+    if (response != null) {
+      out.append(response);
+      return;
+    }
+    try {
+      copy(rendered, out);
+    } finally {
+      trimRendered();
+    }
+  }
+
+  /**
+   * Renders the reservations into {@code rendered}
+   *
+   * @return null if there are any, or else the response
+   */
+  private String reservations() throws SQLException {
     if (username == null) {
       return "Cannot view reservations, not logged in\n";
+    }
+    // rows are only final once the transaction ends, so render them into a
+    // buffer each attempt starts over
+    StringBuilder sb = rendered;
+    sb.setLength(0);
+    PreparedStatement stmt = flightCache != null ? findReservationFidsStmt : findReservationsOnUsernameStmt;
+    stmt.clearParameters();
+    stmt.setString(1, this.username);
+    ResultSet results = executeQuery(flightCache != null ? CannedStatement.FIND_RESERVATION_FIDS
+        : CannedStatement.FIND_RESERVATIONS_ON_USERNAME, stmt);
+    if (!results.next()) {
+      results.close();
+      commit(null, null);
+      return "No reservations found\n";
+    }
+    // Write each row out as it is read; the rows of one reservation are
+    // adjacent, and only the first of them starts it
+    int lastRid = 0;
+    do {
+      int rid = results.getInt("rid");
+      if (rid != lastRid) {
+        lastRid = rid;
+        sb.append("Reservation ").append(rid).append(" paid: ")
+          .append(results.getInt("paid") == 1 ? "true" : "false").append(":\n");
+        if (flightCache != null) {
+          appendFlight(sb, results.getInt("fid1"), results.getInt("acapacity"));
+          int fid2 = results.getInt("fid2");
+          if (!results.wasNull()) {
+            appendFlight(sb, fid2, results.getInt("bcapacity"));
+          }
+        } else {
+          appendFlight(sb, results, "a");
+          results.getInt("bfid");
+          if (!results.wasNull()) {
+            appendFlight(sb, results, "b");
+          }
+        }
+      }
+      if (flightCache != null) {
+        int fid3 = results.getInt("fid3");
+        if (!results.wasNull()) {
+          appendFlight(sb, fid3, results.getInt("ccapacity"));
+        }
+      } else {
+        results.getInt("cfid");
+        if (!results.wasNull()) {
+          appendFlight(sb, results, "c");
+        }
+      }
+    } while (results.next());
+    results.close();
+    commit(null, null);
+    return null;
+  }
+
+  private void trimRendered() {
+    if (rendered.capacity() > KEEP_RENDERED) {
+      rendered = new StringBuilder();
     } else {
-      try {
-         findReservationsOnUsernameStmt.clearParameters();
-         findReservationsOnUsernameStmt.setString(1, this.username);
-         ResultSet results = findReservationsOnUsernameStmt.executeQuery();
-         if (!results.next()) {
-            return "No reservations found\n";
-         }
-         //results.beforeFirst(); 
-         
-         do {
-            
-            int rid = results.getInt("rid");
-            //System.out.println("found rid is: " + rid);
-            int fid1 = results.getInt("fid1");
-            //System.out.println("fid1 is: " + fid1);
-            int fid2 = results.getInt("fid2");
-            //System.out.println("fid2 is: " + fid2);
-            //int day = results.getInt("day");
-            int price = results.getInt("price");
-            int paid = results.getInt("paid");
-            String resPaid = (paid == 1 ) ? "true"  : "false";
-            
-            //get flights info from fid
-            //fid, day_of_month, carrier_id, flight_num, origin_city, dest_city, actual_time, capacity, price
-            findFlightStmt.clearParameters();
-            findFlightStmt.setInt(1, fid1);
-            ResultSet firstResult = findFlightStmt.executeQuery();
-            firstResult.next();
-            
-            //collect info for 1st flight
-            int output_dayOfMonth1 = firstResult.getInt("day_of_month");
-            String output_carrierId1 = firstResult.getString("carrier_id");
-            String output_flightNum1 = firstResult.getString("flight_num");
-            String output_originCity1 = firstResult.getString("origin_city");
-            String output_destCity1 = firstResult.getString("dest_city");
-            int output_time1 = firstResult.getInt("actual_time");
-            int output_capacity1 = firstResult.getInt("capacity");
-            int output_price1 = firstResult.getInt("price");
-            //System.out.println("found flight flightNum1: " + output_flightNum1);
-            Itinerary reservation;
-            //one flight reservation
-            if (fid2 == 0) {
-               reservation = new Itinerary(new Flight(fid1, output_dayOfMonth1,
-                                                         output_carrierId1,output_flightNum1,output_originCity1,
-                                                         output_destCity1,output_time1,output_capacity1,output_price1)); 
-            } else {//two flight reservation
-            
-               //collect info for 2nd flight
-               findFlightStmt.clearParameters();
-               findFlightStmt.setInt(1, fid2);
-               ResultSet secondResult = findFlightStmt.executeQuery();
-               secondResult.next();
-               int output_dayOfMonth2 = secondResult.getInt("day_of_month");
-               String output_carrierId2 = secondResult.getString("carrier_id");
-               String output_flightNum2 = secondResult.getString("flight_num");
-               String output_originCity2 = secondResult.getString("origin_city");
-               String output_destCity2 = secondResult.getString("dest_city");
-               int output_time2 = secondResult.getInt("actual_time");
-               int output_capacity2 = secondResult.getInt("capacity");
-               int output_price2 = secondResult.getInt("price");
-               reservation = new Itinerary(new Flight(fid1, output_dayOfMonth1,
-                                                         output_carrierId1,output_flightNum1,output_originCity1,
-                                                         output_destCity1,output_time1,output_capacity1,output_price1), 
-                                                     new Flight(fid2, output_dayOfMonth2,
-                                                         output_carrierId2,output_flightNum2,output_originCity2,
-                                                         output_destCity2,output_time2,output_capacity2,output_price2));
-                                                         
-            }
-            
-            sb.append("Reservation " + rid+ " paid: " + resPaid + ":\n" + reservation.toString());
-            
-            
-         } while (results.next()); 
-         conn.commit();
-         return sb.toString();    
-      } catch (SQLException ex) {
-         try {
-            // recursive retry
-            return transaction_reservations();
-         } catch (SQLException e) {
-            e.printStackTrace();
-            return "Failed to retrieve reservations\n";
-         }
-        
+      rendered.setLength(0);
+    }
+  }
+
+  /**
+   * Writes {@code sb} to {@code out}, through {@code chunk} for sinks that
+   * would otherwise copy it into a String
+   */
+  private void copy(StringBuilder sb, Appendable out) throws IOException {
+    if (!(out instanceof Writer) && !(out instanceof CharBuffer)) {
+      out.append(sb);
+      return;
+    }
+    for (int i = 0; i < sb.length(); i += chunk.length) {
+      int n = Math.min(chunk.length, sb.length() - i);
+      sb.getChars(i, i + n, chunk, 0);
+      if (out instanceof Writer) {
+        ((Writer) out).write(chunk, 0, n);
+      } else {
+        ((CharBuffer) out).put(chunk, 0, n);
       }
-      
     }
   }
 
+  /**
+   * Appends flight {@code fid} from the flight cache in the same format as
+   * {@link Flight#toString()}, followed by a newline
+   */
+  private void appendFlight(StringBuilder sb, int fid, int capacity) {
+    int row = flightCache.row(fid);
+    if (row < 0) {
+      throw new IllegalStateException("Flight " + fid + " is not in the flight cache");
+    }
+    try {
+      flightCache.appendFlight(sb, row, capacity);
+    } catch (IOException e) {
+      // a StringBuilder does not throw
+      throw new UncheckedIOException(e);
+    }
+    sb.append('\n');
+  }
+
+  /**
+   * Appends the flight in the columns named with {@code prefix} in the same
+   * format as {@link Flight#toString()}, followed by a newline
+   */
+  private static void appendFlight(StringBuilder sb, ResultSet results, String prefix) throws SQLException {
+    sb.append("ID: ").append(results.getInt(prefix + "fid"))
+      .append(" Day: ").append(results.getInt(prefix + "day_of_month"))
+      .append(" Carrier: ").append(results.getString(prefix + "carrier_id"))
+      .append(" Number: ").append(results.getString(prefix + "flight_num"))
+      .append(" Origin: ").append(results.getString(prefix + "origin_city"))
+      .append(" Dest: ").append(results.getString(prefix + "dest_city"))
+      .append(" Duration: ").append(results.getInt(prefix + "actual_time"))
+      .append(" Capacity: ").append(results.getInt(prefix + "capacity"))
+      .append(" Price: ").append(results.getInt(prefix + "price")).append('\n');
+  }
+
   /**
    * Implements the cancel operation.
    *
@@ -701,59 +1639,73 @@ public class Query {
    *         reused by the system.
    */
   public String transaction_cancel(int reservationId) {
+    return transaction(TransactionType.CANCEL, "Failed to cancel reservation " + reservationId + "\n",
+        () -> cancel(reservationId));
+  }
+
+  private String cancel(int reservationId) throws SQLException {
     // TODO: YOUR CODE HERE
     if (username == null) {
-    return "Cannot cancel reservations, not logged in\n";
+      return "Cannot cancel reservations, not logged in\n";
     }
-    
-    try {
-      // find reservation to cancel
-      findReservationToCancelStmt.clearParameters();
-      findReservationToCancelStmt.setString(1, this.username);
-      findReservationToCancelStmt.setInt(2, reservationId);
-      ResultSet result = findReservationToCancelStmt.executeQuery();
+
+    // Delete the reservation, reading back what it held; a concurrent cancel
+    // that got there first leaves nothing to delete. Legs after the second go
+    // first, they reference the reservation.
+    cancelReservationLegsStmt.clearParameters();
+    cancelReservationLegsStmt.setInt(1, reservationId);
+    cancelReservationLegsStmt.setInt(2, reservationId);
+    cancelReservationLegsStmt.setString(3, this.username);
+    List<Integer> legs = new ArrayList<>();
+    try (ResultSet result = executeQuery(CannedStatement.CANCEL_RESERVATION_LEGS, cancelReservationLegsStmt)) {
+      while (result.next()) {
+        legs.add(result.getInt("fid"));
+      }
+    }
+    cancelReservationStmt.clearParameters();
+    cancelReservationStmt.setInt(1, reservationId);
+    cancelReservationStmt.setString(2, this.username);
+    int paid;
+    int price;
+    int fid1;
+    int fid2;
+    try (ResultSet result = executeQuery(CannedStatement.CANCEL_RESERVATION, cancelReservationStmt)) {
       if (!result.next()) {
-         return "Failed to cancel reservation " + reservationId + "\n";
-      }
-      
-      int price = result.getInt("price");
-      int paid = result.getInt("paid");
-      
-      //delete reservation
-      deletReservationStmt.clearParameters();
-      deletReservationStmt.setInt(1,reservationId);
-      deletReservationStmt.executeUpdate();
-      
-      //refund if paid
-      if (paid == 1) {
-         // get balance
-         getBalanceStmt.clearParameters();
-         getBalanceStmt.setString(1, this.username);
-         ResultSet checkBalance = getBalanceStmt.executeQuery();
-         checkBalance.next();
-         int balance = checkBalance.getInt("balance");
-         checkBalance.close();
-         
-         // update balance
-         updateBalanceStmt.clearParameters();
-         updateBalanceStmt.setInt(1, balance + price);
-         updateBalanceStmt.setString(2, this.username);
-         updateBalanceStmt.executeUpdate();
-
-         
+        rollback();
+        return "Failed to cancel reservation " + reservationId + "\n";
       }
-    conn.commit();
-    return "Canceled reservation "+ reservationId + "\n";
-    } catch (SQLException ex) {
-      try {
-         conn.rollback();
-         return "Failed to cancel reservation " + reservationId + "\n";
-      } catch (SQLException e) {
-         e.printStackTrace();
-         return "Failed to cancel reservation " + reservationId + "\n";
+      paid = result.getInt("paid");
+      price = result.getInt("price");
+      fid1 = result.getInt("fid1");
+      fid2 = result.getInt("fid2");
+    }
+
+    // Refund if paid
+    if (paid == 1) {
+      creditBalanceStmt.clearParameters();
+      creditBalanceStmt.setInt(1, price);
+      creditBalanceStmt.setString(2, this.username);
+      if (executeUpdate(CannedStatement.CREDIT_BALANCE, creditBalanceStmt) != 1) {
+        rollback();
+        return "Failed to cancel reservation " + reservationId + "\n";
       }
     }
-    
+    int[] fids = new int[(fid2 != 0 ? 2 : 1) + legs.size()];
+    fids[0] = fid1;
+    if (fid2 != 0) {
+      fids[1] = fid2;
+    }
+    for (int i = 0; i < legs.size(); i++) {
+      fids[fids.length - legs.size() + i] = legs.get(i);
+    }
+    giveSeats(fids);
+    commit(() -> {
+      seats.release(fids);
+      for (int fid : fids) {
+        invalidateFlight(fid);
+      }
+    }, null);
+    return "Canceled reservation "+ reservationId + "\n";
   }
 
   /**
@@ -762,7 +1714,7 @@ public class Query {
   private int checkFlightCapacity(int fid) throws SQLException {
     checkFlightCapacityStatement.clearParameters();
     checkFlightCapacityStatement.setInt(1, fid);
-    ResultSet results = checkFlightCapacityStatement.executeQuery();
+    ResultSet results = executeQuery(CannedStatement.CHECK_FLIGHT_CAPACITY, checkFlightCapacityStatement);
     results.next();
     int capacity = results.getInt("capacity");
     results.close();
@@ -770,26 +1722,30 @@ public class Query {
     return capacity;
   }
    
-  private boolean usernameExists(String username) {
-    try {
-      checkUsernameStmt.clearParameters();
-      checkUsernameStmt.setString(1, username);
-      ResultSet results = checkUsernameStmt.executeQuery();
-      results.next();
-      int count = results.getInt("count");
-      //System.out.println("count is :" + count);
-      results.close();
-      return count != 0;
-    } catch (SQLException e) {
-      e.printStackTrace();
+  /**
+   * Drops cached searches that show a flight whose bookings just changed
+   */
+  private void invalidateFlight(int fid) {
+    if (searchCache != null) {
+      searchCache.invalidateFlight(fid);
     }
-    return false;
+  }
+
+  private boolean usernameExists(String username) throws SQLException {
+    checkUsernameStmt.clearParameters();
+    checkUsernameStmt.setString(1, username);
+    ResultSet results = executeQuery(CannedStatement.CHECK_USERNAME_EXISTS, checkUsernameStmt);
+    results.next();
+    int count = results.getInt("count");
+    //System.out.println("count is :" + count);
+    results.close();
+    return count != 0;
   }
   
   /**
    * A class to store flight information.
    */
-  class Flight {
+  static class Flight {
     public int fid;
     public int dayOfMonth;
     public String carrierId;
@@ -814,59 +1770,125 @@ public class Query {
 
     @Override
     public String toString() {
-      return "ID: " + fid + " Day: " + dayOfMonth + " Carrier: " + carrierId + " Number: " + flightNum + " Origin: "
-          + originCity + " Dest: " + destCity + " Duration: " + time + " Capacity: " + capacity + " Price: " + price;
+      StringBuilder sb = new StringBuilder(128);
+      try {
+        appendTo(sb);
+      } catch (IOException e) {
+        // a StringBuilder does not throw
+        throw new UncheckedIOException(e);
+      }
+      return sb.toString();
+    }
+
+    /**
+     * Appends the flight in the {@link #toString()} format
+     */
+    public void appendTo(Appendable out) throws IOException {
+      out.append("ID: ");
+      appendInt(out, fid);
+      out.append(" Day: ");
+      appendInt(out, dayOfMonth);
+      out.append(" Carrier: ").append(carrierId).append(" Number: ").append(flightNum)
+        .append(" Origin: ").append(originCity).append(" Dest: ").append(destCity).append(" Duration: ");
+      appendInt(out, time);
+      out.append(" Capacity: ");
+      appendInt(out, capacity);
+      out.append(" Price: ");
+      appendInt(out, price);
     }
   }
   
-  class Itinerary implements Comparable<Itinerary> {
+  static class Itinerary implements Comparable<Itinerary> {
     public Flight f1;
     public Flight f2;
+    // Every flight in order; f1 and f2 are the first two
+    public Flight[] legs;
     public int totalTime;
     public int count;
     
     public Itinerary(Flight f1, Flight f2) {
-      this.f1 = f1;
-      this.f2 = f2;
-      this.totalTime = f1.time + f2.time;
-      this.count = 2;
+      this(new Flight[] { f1, f2 });
     }
     
     public Itinerary(Flight f1) {
-      this.f1 = f1;
-      this.totalTime = f1.time;
-      this.count = 1;
+      this(new Flight[] { f1 });
+    }
+
+    /**
+     * An itinerary of one or more connecting flights
+     */
+    public Itinerary(Flight[] legs) {
+      this.legs = legs;
+      this.f1 = legs[0];
+      this.f2 = legs.length > 1 ? legs[1] : null;
+      for (Flight leg : legs) {
+        this.totalTime += leg.time;
+      }
+      this.count = legs.length;
+    }
+
+    /**
+     * The fids of the flights, in order
+     */
+    int[] fids() {
+      int[] fids = new int[count];
+      for (int i = 0; i < count; i++) {
+        fids[i] = legs[i].fid;
+      }
+      return fids;
+    }
+
+    /**
+     * Total price of the flights
+     */
+    int price() {
+      int price = 0;
+      for (Flight leg : legs) {
+        price += leg.price;
+      }
+      return price;
     }
     
     @Override
     public String toString() {
-      if (count == 1) {
-         return this.f1.toString() + "\n";
-      } else {
-         return this.f1.toString() + "\n" + this.f2.toString() + "\n";
+      StringBuilder sb = new StringBuilder(128 * count);
+      try {
+        appendTo(sb);
+      } catch (IOException e) {
+        // a StringBuilder does not throw
+        throw new UncheckedIOException(e);
       }
+      return sb.toString();
     }
-    
 
+    /**
+     * Appends the flights in the {@link #toString()} format, one per line
+     */
+    public void appendTo(Appendable out) throws IOException {
+      for (Flight leg : legs) {
+        leg.appendTo(out);
+        out.append('\n');
+      }
+    }
 
+    /**
+     * Orders by total time, then by the fids leg by leg; an itinerary comes
+     * before the longer ones it starts
+     */
     @Override
     public int compareTo(Itinerary other) {
       int time = this.totalTime - other.totalTime;
       if (time != 0) {
-         return time;
-      } else {
-           int fid1 = this.f1.fid - other.f1.fid;
-           if (fid1 == 0 && this.f2 != null && other.f2 != null) {
-             return this.f2.fid - other.f2.fid;
-           }
-           return fid1;
+        return time;
+      }
+      for (int i = 0; i < this.count && i < other.count; i++) {
+        int fid = this.legs[i].fid - other.legs[i].fid;
+        if (fid != 0) {
+          return fid;
+        }
       }
-      
+      return this.count - other.count;
     }
   }
-  
-  
-
-
 
 }
@@ -0,0 +1,375 @@
+package edu.uw.cs;
+
+import java.lang.management.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import javax.management.*;
+
+/**
+ * Counts and times what every Query on one database does: each transaction
+ * type's runs, latency, database round trips, commits and rollbacks, each
+ * canned statement's executions, errors and latency, and the sessions open
+ * and transactions in flight.
+ *
+ * Recording only touches preallocated atomic counters and histograms, with no
+ * locks and no allocation, so it can stay on. When published, the numbers are
+ * MBeans under {@code edu.uw.cs}: one {@code type=Transaction} per
+ * transaction type, one {@code type=Statement} per statement and one
+ * {@code type=Sessions}, each with a {@code db} key numbering the databases
+ * in the order they were opened. The components a database shares add their
+ * own, one {@code type=Component} each, with {@link #component}.
+ */
+class QueryMetrics {
+  static final String DOMAIN = "edu.uw.cs";
+
+  private static final int TYPES = TransactionType.values().length;
+  private static final int STATEMENTS = CannedStatement.values().length;
+
+  private final String db;
+
+  private final AtomicLongArray transactions = new AtomicLongArray(TYPES);
+  private final AtomicLongArray commits = new AtomicLongArray(TYPES);
+  private final AtomicLongArray rollbacks = new AtomicLongArray(TYPES);
+  private final LatencyHistogram[] latency = new LatencyHistogram[TYPES];
+  private final LatencyHistogram[] roundTrips = new LatencyHistogram[TYPES];
+
+  private final AtomicLongArray executions = new AtomicLongArray(STATEMENTS);
+  private final AtomicLongArray errors = new AtomicLongArray(STATEMENTS);
+  private final LatencyHistogram[] statementLatency = new LatencyHistogram[STATEMENTS];
+
+  private final AtomicInteger sessions = new AtomicInteger();
+  private final AtomicInteger inFlight = new AtomicInteger();
+
+  // Guarded by this: component MBeans by name, and the server they are
+  // published on, null until register
+  private final Map<String, StandardMBean> components = new LinkedHashMap<>();
+  private MBeanServer server;
+
+  QueryMetrics(String db) {
+    this.db = db;
+    for (int i = 0; i < TYPES; i++) {
+      latency[i] = new LatencyHistogram();
+      roundTrips[i] = new LatencyHistogram();
+    }
+    for (int i = 0; i < STATEMENTS; i++) {
+      statementLatency[i] = new LatencyHistogram();
+    }
+  }
+
+  void sessionOpened() {
+    sessions.incrementAndGet();
+  }
+
+  void sessionClosed() {
+    sessions.decrementAndGet();
+  }
+
+  /**
+   * Marks a transaction as started
+   *
+   * @return the start time to pass to {@link #end}
+   */
+  long begin() {
+    inFlight.incrementAndGet();
+    return System.nanoTime();
+  }
+
+  /**
+   * Records a finished transaction of {@code type} that made {@code trips}
+   * round trips to the database
+   */
+  void end(TransactionType type, long start, int trips) {
+    int t = type.ordinal();
+    latency[t].record((System.nanoTime() - start) / 1000);
+    roundTrips[t].record(trips);
+    transactions.incrementAndGet(t);
+    inFlight.decrementAndGet();
+  }
+
+  void commit(TransactionType type) {
+    commits.incrementAndGet(type.ordinal());
+  }
+
+  void rollback(TransactionType type) {
+    rollbacks.incrementAndGet(type.ordinal());
+  }
+
+  /**
+   * Records one execution of {@code statement} that took {@code nanos}
+   */
+  void statement(CannedStatement statement, long nanos) {
+    int s = statement.ordinal();
+    executions.incrementAndGet(s);
+    statementLatency[s].record(nanos / 1000);
+  }
+
+  void statementFailed(CannedStatement statement) {
+    errors.incrementAndGet(statement.ordinal());
+  }
+
+  long transactions(TransactionType type) {
+    return transactions.get(type.ordinal());
+  }
+
+  long commits(TransactionType type) {
+    return commits.get(type.ordinal());
+  }
+
+  long rollbacks(TransactionType type) {
+    return rollbacks.get(type.ordinal());
+  }
+
+  long executions(CannedStatement statement) {
+    return executions.get(statement.ordinal());
+  }
+
+  int sessions() {
+    return sessions.get();
+  }
+
+  int inFlight() {
+    return inFlight.get();
+  }
+
+  /**
+   * One line summary of the session and transaction counts
+   */
+  String metrics() {
+    long n = 0;
+    long c = 0;
+    long r = 0;
+    for (int i = 0; i < TYPES; i++) {
+      n += transactions.get(i);
+      c += commits.get(i);
+      r += rollbacks.get(i);
+    }
+    return String.format("queryMetrics: sessions=%d inFlight=%d transactions=%d commits=%d rollbacks=%d",
+        sessions.get(), inFlight.get(), n, c, r);
+  }
+
+  /**
+   * Adds the MBean of a shared component, published as {@code type=Component}
+   * under {@code name} along with the rest, or right away if they already are
+   *
+   * @param type the MBean interface {@code mbean} implements
+   */
+  synchronized <T extends ComponentMBean> void component(String name, T mbean, Class<T> type) {
+    try {
+      StandardMBean bean = new StandardMBean(mbean, type);
+      components.put(name, bean);
+      if (server != null) {
+        publish(server, "Component", name, bean);
+      }
+    } catch (JMException e) {
+      throw new IllegalStateException("Could not publish " + name, e);
+    }
+  }
+
+  /**
+   * Publishes the metrics as MBeans on {@code server}, replacing any already
+   * there under the same names
+   */
+  synchronized void register(MBeanServer server) {
+    this.server = server;
+    try {
+      for (TransactionType type : TransactionType.values()) {
+        publish(server, "Transaction", type.name().toLowerCase(Locale.ROOT),
+            new StandardMBean(new Transaction(type.ordinal()), TransactionMBean.class));
+      }
+      for (CannedStatement statement : CannedStatement.values()) {
+        publish(server, "Statement", statement.name(),
+            new StandardMBean(new Statement(statement.ordinal()), StatementMBean.class));
+      }
+      publish(server, "Sessions", null, new StandardMBean(new Sessions(), SessionsMBean.class));
+      for (Map.Entry<String, StandardMBean> component : components.entrySet()) {
+        publish(server, "Component", component.getKey(), component.getValue());
+      }
+    } catch (JMException e) {
+      throw new IllegalStateException("Could not publish metrics", e);
+    }
+  }
+
+  /**
+   * Takes the MBeans published by {@link #register} off {@code server}
+   */
+  synchronized void unregister(MBeanServer server) {
+    this.server = null;
+    try {
+      for (TransactionType type : TransactionType.values()) {
+        unpublish(server, name("Transaction", type.name().toLowerCase(Locale.ROOT)));
+      }
+      for (CannedStatement statement : CannedStatement.values()) {
+        unpublish(server, name("Statement", statement.name()));
+      }
+      unpublish(server, name("Sessions", null));
+      for (String component : components.keySet()) {
+        unpublish(server, name("Component", component));
+      }
+    } catch (JMException e) {
+      throw new IllegalStateException("Could not unpublish metrics", e);
+    }
+  }
+
+  ObjectName name(String type, String name) throws MalformedObjectNameException {
+    return new ObjectName(DOMAIN + ":type=" + type + ",db=" + db + (name == null ? "" : ",name=" + name));
+  }
+
+  private void publish(MBeanServer server, String type, String name, Object mbean) throws JMException {
+    ObjectName objectName = name(type, name);
+    if (server.isRegistered(objectName)) {
+      server.unregisterMBean(objectName);
+    }
+    server.registerMBean(mbean, objectName);
+  }
+
+  private static void unpublish(MBeanServer server, ObjectName objectName) throws JMException {
+    if (server.isRegistered(objectName)) {
+      server.unregisterMBean(objectName);
+    }
+  }
+
+  /**
+   * One transaction type. Latencies are in microseconds.
+   */
+  public interface TransactionMBean {
+    long getCount();
+
+    long getCommits();
+
+    long getRollbacks();
+
+    double getMeanMicros();
+
+    long getP50Micros();
+
+    long getP99Micros();
+
+    long getMaxMicros();
+
+    double getMeanRoundTrips();
+
+    long getMaxRoundTrips();
+  }
+
+  /**
+   * One canned statement. Latencies are in microseconds.
+   */
+  public interface StatementMBean {
+    long getCount();
+
+    long getErrors();
+
+    double getMeanMicros();
+
+    long getP50Micros();
+
+    long getP99Micros();
+
+    long getMaxMicros();
+  }
+
+  /**
+   * A shared component. Each one's interface adds its own numbers to this.
+   */
+  public interface ComponentMBean {
+    /**
+     * The component's one line summary
+     */
+    String getSummary();
+  }
+
+  /**
+   * Sessions open and transactions running on the database
+   */
+  public interface SessionsMBean {
+    int getOpenSessions();
+
+    int getInFlightTransactions();
+  }
+
+  private class Transaction implements TransactionMBean {
+    private final int t;
+
+    Transaction(int t) {
+      this.t = t;
+    }
+
+    public long getCount() {
+      return transactions.get(t);
+    }
+
+    public long getCommits() {
+      return commits.get(t);
+    }
+
+    public long getRollbacks() {
+      return rollbacks.get(t);
+    }
+
+    public double getMeanMicros() {
+      return latency[t].mean();
+    }
+
+    public long getP50Micros() {
+      return latency[t].percentile(50);
+    }
+
+    public long getP99Micros() {
+      return latency[t].percentile(99);
+    }
+
+    public long getMaxMicros() {
+      return latency[t].max();
+    }
+
+    public double getMeanRoundTrips() {
+      return roundTrips[t].mean();
+    }
+
+    public long getMaxRoundTrips() {
+      return roundTrips[t].max();
+    }
+  }
+
+  private class Statement implements StatementMBean {
+    private final int s;
+
+    Statement(int s) {
+      this.s = s;
+    }
+
+    public long getCount() {
+      return executions.get(s);
+    }
+
+    public long getErrors() {
+      return errors.get(s);
+    }
+
+    public double getMeanMicros() {
+      return statementLatency[s].mean();
+    }
+
+    public long getP50Micros() {
+      return statementLatency[s].percentile(50);
+    }
+
+    public long getP99Micros() {
+      return statementLatency[s].percentile(99);
+    }
+
+    public long getMaxMicros() {
+      return statementLatency[s].max();
+    }
+  }
+
+  private class Sessions implements SessionsMBean {
+    public int getOpenSessions() {
+      return sessions.get();
+    }
+
+    public int getInFlightTransactions() {
+      return inFlight.get();
+    }
+  }
+}
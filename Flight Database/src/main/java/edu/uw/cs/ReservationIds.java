@@ -0,0 +1,82 @@
+package edu.uw.cs;
+
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Hands out reservation IDs from blocks reserved in the database.
+ *
+ * Each value of the ReservationBlocks sequence reserves {@code blockSize} IDs:
+ * block b covers b * blockSize + 1 to (b + 1) * blockSize. IDs within the
+ * current block are taken with a single atomic increment, and the database is
+ * only visited when a block runs out. Sequence values are never rolled back,
+ * so IDs stay unique across sessions and processes and are never reused, but a
+ * booking that fails after taking an ID leaves a gap.
+ */
+class ReservationIds {
+  static final String NEXT_BLOCK = "SELECT NEXT VALUE FOR ReservationBlocks";
+  static final String RESET_BLOCKS = "ALTER SEQUENCE ReservationBlocks RESTART WITH 0";
+
+  private static final Block EMPTY = new Block(0, 0);
+
+  private final int blockSize;
+  private final AtomicReference<Block> block = new AtomicReference<>(EMPTY);
+
+  ReservationIds(int blockSize) {
+    if (blockSize <= 0) {
+      throw new IllegalArgumentException("Bad reservation ID block size: " + blockSize);
+    }
+    this.blockSize = blockSize;
+  }
+
+  /**
+   * Returns an ID no one else has been given, reserving a new block over
+   * {@code conn} if the current one is used up.
+   */
+  int next(Connection conn) throws SQLException {
+    while (true) {
+      Block b = block.get();
+      long id = b.next.getAndIncrement();
+      if (id < b.end) {
+        return (int) id;
+      }
+      synchronized (this) {
+        if (block.get() == b) {
+          block.set(reserveBlock(conn));
+        }
+      }
+    }
+  }
+
+  /**
+   * Forgets the current block, after the sequence has been restarted
+   */
+  void reset() {
+    block.set(EMPTY);
+  }
+
+  private Block reserveBlock(Connection conn) throws SQLException {
+    try (Statement stmt = conn.createStatement(); ResultSet rs = stmt.executeQuery(NEXT_BLOCK)) {
+      rs.next();
+      long first = rs.getLong(1) * blockSize + 1;
+      if (first + blockSize - 1 > Integer.MAX_VALUE) {
+        throw new SQLException("Reservation IDs exhausted");
+      }
+      return new Block(first, first + blockSize);
+    }
+  }
+
+  /**
+   * IDs from {@code next} up to but not including {@code end}
+   */
+  private static class Block {
+    final AtomicLong next;
+    final long end;
+
+    Block(long first, long end) {
+      this.next = new AtomicLong(first);
+      this.end = end;
+    }
+  }
+}
@@ -0,0 +1,165 @@
+package edu.uw.cs;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * A scenario in the cases/ format: a few users, each with the commands it runs
+ * and the output it may print, one per possible outcome of running the users
+ * concurrently.
+ *
+ * A user's commands come first, one per line, then a line starting with
+ * {@value #DELIMITER}, then its expected output. Alternative outputs are
+ * separated by lines starting with {@value #SEPARATOR}, and another
+ * {@value #DELIMITER} line ends the user. Lines starting with
+ * {@value #COMMENTS} are skipped, and so is anything after {@value #COMMENTS}
+ * on a line. Every user must list the same number of outcomes.
+ */
+class Scenario {
+  /** Denotes a comment */
+  static final String COMMENTS = "#";
+  /** Denotes information mode change */
+  static final String DELIMITER = "*";
+  /** Denotes alternate result */
+  static final String SEPARATOR = "|";
+
+  private final String name;
+  private final List<User> users;
+
+  private Scenario(String name, List<User> users) {
+    this.name = name;
+    this.users = users;
+  }
+
+  /**
+   * Reads the scenario in {@code filename}
+   *
+   * @throws IllegalArgumentException if the file is malformed
+   */
+  static Scenario parse(String filename) throws IOException {
+    try (BufferedReader reader = new BufferedReader(new FileReader(filename))) {
+      return parse(new File(filename).getName(), reader);
+    }
+  }
+
+  /**
+   * Reads a scenario from {@code reader}
+   *
+   * @throws IllegalArgumentException if the input is malformed
+   */
+  static Scenario parse(String name, BufferedReader reader) throws IOException {
+    List<User> users = new ArrayList<>();
+    List<String> cmds = new ArrayList<>();
+    List<String> results = new ArrayList<>();
+    String r = "";
+    boolean isCmd = true;
+    String l;
+    int lineNumber = 0;
+    while ((l = reader.readLine()) != null) {
+      lineNumber++;
+
+      // Skip comment lines
+      if (l.startsWith(COMMENTS)) {
+        continue;
+
+        // Switch between recording commands and recording results
+      } else if (l.startsWith(DELIMITER)) {
+        if (isCmd) {
+          isCmd = false;
+        } else {
+          // Result recordings finished for a user so user is fully specified
+          results.add(r);
+          users.add(new User(cmds, results));
+          cmds = new ArrayList<>();
+          results = new ArrayList<>();
+          r = "";
+          isCmd = true;
+        }
+
+        // Record an alternate outcome result
+      } else if (l.startsWith(SEPARATOR)) {
+        if (isCmd) {
+          throw new IllegalArgumentException("ERROR: input file is malformatted on line: " + lineNumber);
+        } else {
+          results.add(r);
+          r = "";
+        }
+
+        // Build command list or result string
+      } else {
+        // Ignore trailing comments
+        l = l.split(COMMENTS, 2)[0];
+        // Add new command or build current result
+        if (isCmd) {
+          cmds.add(l);
+        } else {
+          r = r + l + "\n";
+        }
+      }
+    }
+
+    // Everything should be parsed by now and put into user objects
+    if (cmds.size() > 0 || r.length() > 0 || results.size() > 0) {
+      throw new IllegalArgumentException(String.format(
+          "ERROR: input file is malformatted, extra information found #commands=%s, len(result)=%s, #results=%s",
+          cmds.size(), r.length(), results.size()));
+    }
+    if (users.isEmpty()) {
+      throw new IllegalArgumentException("ERROR: input file has no users");
+    }
+
+    // check that all users have the same number of possible scenarios
+    int n = users.get(0).results().size();
+    for (int i = 1; i < users.size(); ++i) {
+      int m = users.get(i).results().size();
+      if (m != n) {
+        throw new IllegalArgumentException(String.format(
+            "ERROR: input file is malformatted, user %s should have %s possible results rather than %s", i, n, m));
+      }
+    }
+
+    return new Scenario(name, Collections.unmodifiableList(users));
+  }
+
+  String name() {
+    return name;
+  }
+
+  List<User> users() {
+    return users;
+  }
+
+  /**
+   * Number of possible outcomes, the same for every user
+   */
+  int outcomes() {
+    return users.get(0).results().size();
+  }
+
+  /**
+   * One user of a scenario
+   */
+  static class User {
+    private final List<String> commands;
+    private final List<String> results;
+
+    User(List<String> commands, List<String> results) {
+      this.commands = Collections.unmodifiableList(commands);
+      this.results = Collections.unmodifiableList(results);
+    }
+
+    /**
+     * The commands, in the order they run
+     */
+    List<String> commands() {
+      return commands;
+    }
+
+    /**
+     * The whole output of the user, one entry per outcome
+     */
+    List<String> results() {
+      return results;
+    }
+  }
+}
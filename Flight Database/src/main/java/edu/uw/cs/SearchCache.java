@@ -0,0 +1,235 @@
+package edu.uw.cs;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Cache of search results, shared by every session on one {@link Database}.
+ *
+ * Entries are keyed by (origin, destination, direct, day). An entry fetched
+ * for k itineraries answers any request for up to k, see
+ * {@link SearchResult#covers}. The cache holds at most {@code maxEntries}
+ * entries, evicting the least recently used, and each entry expires
+ * {@code ttlMillis} after it was stored. {@link #invalidateFlight} drops every
+ * entry that shows a given flight.
+ */
+class SearchCache {
+  private final int maxEntries;
+  private final long ttlMillis;
+
+  // Guarded by this
+  private final LinkedHashMap<Key, CachedSearch> entries;
+  private final Map<Integer, Set<Key>> keysByFid = new HashMap<>();
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+  private final AtomicLong expirations = new AtomicLong();
+  private final AtomicLong invalidations = new AtomicLong();
+
+  SearchCache(int maxEntries, long ttlMillis) {
+    this.maxEntries = maxEntries;
+    this.ttlMillis = ttlMillis;
+    this.entries = new LinkedHashMap<Key, CachedSearch>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Key, CachedSearch> eldest) {
+        if (size() > SearchCache.this.maxEntries) {
+          evictions.incrementAndGet();
+          unindex(eldest.getKey(), eldest.getValue());
+          return true;
+        }
+        return false;
+      }
+    };
+  }
+
+  /**
+   * Returns a cached result that can answer a search for {@code k}
+   * itineraries, or null
+   */
+  SearchResult get(String originCity, String destinationCity, boolean directFlight, int dayOfMonth, int k) {
+    Key key = new Key(originCity, destinationCity, directFlight, dayOfMonth);
+    synchronized (this) {
+      CachedSearch e = entries.get(key);
+      if (e != null && System.currentTimeMillis() - e.storedAt > ttlMillis) {
+        entries.remove(key);
+        unindex(key, e);
+        expirations.incrementAndGet();
+        e = null;
+      }
+      if (e != null && e.result.covers(k)) {
+        hits.incrementAndGet();
+        return e.result;
+      }
+    }
+    misses.incrementAndGet();
+    return null;
+  }
+
+  void put(String originCity, String destinationCity, boolean directFlight, int dayOfMonth, SearchResult result) {
+    Key key = new Key(originCity, destinationCity, directFlight, dayOfMonth);
+    CachedSearch e = new CachedSearch(result, System.currentTimeMillis());
+    synchronized (this) {
+      CachedSearch old = entries.put(key, e);
+      if (old != null) {
+        unindex(key, old);
+      }
+      for (int fid : e.fids) {
+        keysByFid.computeIfAbsent(fid, f -> new HashSet<>()).add(key);
+      }
+    }
+  }
+
+  /**
+   * Drops every entry that shows flight {@code fid}
+   */
+  synchronized void invalidateFlight(int fid) {
+    Set<Key> keys = keysByFid.remove(fid);
+    if (keys == null) {
+      return;
+    }
+    for (Key key : keys) {
+      CachedSearch e = entries.remove(key);
+      if (e != null) {
+        unindex(key, e);
+        invalidations.incrementAndGet();
+      }
+    }
+  }
+
+  synchronized void clear() {
+    entries.clear();
+    keysByFid.clear();
+  }
+
+  synchronized int size() {
+    return entries.size();
+  }
+
+  long hitCount() {
+    return hits.get();
+  }
+
+  long missCount() {
+    return misses.get();
+  }
+
+  long evictionCount() {
+    return evictions.get();
+  }
+
+  /**
+   * One line summary of the cache metrics
+   */
+  String metrics() {
+    return String.format("searchCache: size=%d max=%d hits=%d misses=%d evictions=%d expirations=%d invalidations=%d",
+        size(), maxEntries, hits.get(), misses.get(), evictions.get(), expirations.get(), invalidations.get());
+  }
+
+  /**
+   * The cache's MBean
+   */
+  CacheMBean mbean() {
+    return new Stats();
+  }
+
+  private void unindex(Key key, CachedSearch e) {
+    for (int fid : e.fids) {
+      Set<Key> keys = keysByFid.get(fid);
+      if (keys != null) {
+        keys.remove(key);
+        if (keys.isEmpty()) {
+          keysByFid.remove(fid);
+        }
+      }
+    }
+  }
+
+  /**
+   * Cache size and how lookups went
+   */
+  public interface CacheMBean extends QueryMetrics.ComponentMBean {
+    int getSize();
+
+    long getHits();
+
+    long getMisses();
+
+    long getEvictions();
+
+    long getExpirations();
+
+    long getInvalidations();
+  }
+
+  private class Stats implements CacheMBean {
+    public String getSummary() {
+      return metrics();
+    }
+
+    public int getSize() {
+      return size();
+    }
+
+    public long getHits() {
+      return hits.get();
+    }
+
+    public long getMisses() {
+      return misses.get();
+    }
+
+    public long getEvictions() {
+      return evictions.get();
+    }
+
+    public long getExpirations() {
+      return expirations.get();
+    }
+
+    public long getInvalidations() {
+      return invalidations.get();
+    }
+  }
+
+  private static class CachedSearch {
+    final SearchResult result;
+    final int[] fids;
+    final long storedAt;
+
+    CachedSearch(SearchResult result, long storedAt) {
+      this.result = result;
+      this.fids = result.fids();
+      this.storedAt = storedAt;
+    }
+  }
+
+  private static class Key {
+    final String originCity;
+    final String destinationCity;
+    final boolean directFlight;
+    final int dayOfMonth;
+
+    Key(String originCity, String destinationCity, boolean directFlight, int dayOfMonth) {
+      this.originCity = originCity;
+      this.destinationCity = destinationCity;
+      this.directFlight = directFlight;
+      this.dayOfMonth = dayOfMonth;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) o;
+      return directFlight == other.directFlight && dayOfMonth == other.dayOfMonth
+          && originCity.equals(other.originCity) && destinationCity.equals(other.destinationCity);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(originCity, destinationCity, directFlight, dayOfMonth);
+    }
+  }
+}
@@ -0,0 +1,104 @@
+package edu.uw.cs;
+
+import java.nio.charset.*;
+import java.util.*;
+
+/**
+ * Where a paginated search left off: the search itself and the key of the
+ * last itinerary shown, as (total time, first fid, second fid), with
+ * {@link #NO_FLIGHT} as the second fid of a direct flight.
+ *
+ * That key orders itineraries the same way search output does, so the next
+ * page is everything after it, found with a keyset seek rather than by
+ * skipping over the pages before. A cursor travels as one URL-safe token
+ * that holds everything needed to continue.
+ */
+class SearchCursor {
+  static final int NO_FLIGHT = -1;
+
+  // Key of a cursor before the first page; every itinerary sorts after it
+  private static final int BEFORE_ALL = -1;
+
+  private static final char SEPARATOR = '\n';
+
+  final String originCity;
+  final String destinationCity;
+  final boolean directFlight;
+  final int dayOfMonth;
+  final int pageSize;
+  final int totalTime;
+  final int fid1;
+  final int fid2;
+
+  SearchCursor(String originCity, String destinationCity, boolean directFlight, int dayOfMonth, int pageSize,
+      int totalTime, int fid1, int fid2) {
+    this.originCity = originCity;
+    this.destinationCity = destinationCity;
+    this.directFlight = directFlight;
+    this.dayOfMonth = dayOfMonth;
+    this.pageSize = pageSize;
+    this.totalTime = totalTime;
+    this.fid1 = fid1;
+    this.fid2 = fid2;
+  }
+
+  /**
+   * A cursor before the first page of a search
+   */
+  static SearchCursor first(String originCity, String destinationCity, boolean directFlight, int dayOfMonth,
+      int pageSize) {
+    return new SearchCursor(originCity, destinationCity, directFlight, dayOfMonth, pageSize, BEFORE_ALL, BEFORE_ALL,
+        BEFORE_ALL);
+  }
+
+  /**
+   * Whether this cursor is before the first page
+   */
+  boolean isFirst() {
+    return totalTime == BEFORE_ALL;
+  }
+
+  /**
+   * The cursor after {@code last}, the last itinerary of this page
+   */
+  SearchCursor after(Query.Itinerary last) {
+    return new SearchCursor(originCity, destinationCity, directFlight, dayOfMonth, pageSize, last.totalTime,
+        last.f1.fid, last.f2 == null ? NO_FLIGHT : last.f2.fid);
+  }
+
+  /**
+   * The cursor as a token without whitespace
+   */
+  String encode() {
+    String s = originCity + SEPARATOR + destinationCity + SEPARATOR + (directFlight ? 1 : 0) + SEPARATOR + dayOfMonth
+        + SEPARATOR + pageSize + SEPARATOR + totalTime + SEPARATOR + fid1 + SEPARATOR + fid2;
+    return Base64.getUrlEncoder().withoutPadding().encodeToString(s.getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Reads a token made by {@link #encode}, with its page size cut to
+   * {@code maxPageSize}
+   *
+   * @return the cursor, or null if {@code token} is not one
+   */
+  static SearchCursor decode(String token, int maxPageSize) {
+    try {
+      String[] fields = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8)
+          .split(String.valueOf(SEPARATOR), -1);
+      if (fields.length != 8) {
+        return null;
+      }
+      SearchCursor cursor = new SearchCursor(fields[0], fields[1], fields[2].equals("1"), Integer.parseInt(fields[3]),
+          Math.min(Integer.parseInt(fields[4]), maxPageSize), Integer.parseInt(fields[5]), Integer.parseInt(fields[6]),
+          Integer.parseInt(fields[7]));
+      if (cursor.pageSize <= 0 || cursor.isFirst() || cursor.totalTime < 0 || cursor.fid1 < 0
+          || cursor.fid2 < NO_FLIGHT) {
+        return null;
+      }
+      return cursor;
+    } catch (IllegalArgumentException e) {
+      // bad Base64 and bad numbers both land here
+      return null;
+    }
+  }
+}
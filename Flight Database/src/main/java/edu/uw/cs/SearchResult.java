@@ -0,0 +1,88 @@
+package edu.uw.cs;
+
+import java.util.*;
+
+/**
+ * The candidates behind one search: the best direct flights and the best
+ * one-hop itineraries, each in output order, fetched for a given limit.
+ *
+ * A search for k itineraries prints every direct flight up to k and fills the
+ * remaining slots with the best one-hops, so the answer for a smaller k is not
+ * a prefix of the answer for a larger one. Keeping the two lists apart lets one
+ * result answer any k up to the limit it was fetched for, or any k at all once
+ * both lists are known to be exhausted.
+ */
+class SearchResult {
+  private final List<Query.Itinerary> direct;
+  private final List<Query.Itinerary> indirect;
+  private final int limit;
+  private final boolean directOnly;
+
+  /**
+   * @param direct     up to {@code limit} direct flights, in output order
+   * @param indirect   up to {@code limit - direct.size()} one-hop itineraries, in
+   *                   output order; empty for a direct-only search
+   * @param limit      number of itineraries the candidates were fetched for
+   * @param directOnly whether one-hop itineraries were left out
+   */
+  SearchResult(List<Query.Itinerary> direct, List<Query.Itinerary> indirect, int limit, boolean directOnly) {
+    this.direct = direct;
+    this.indirect = indirect;
+    this.limit = limit;
+    this.directOnly = directOnly;
+  }
+
+  /**
+   * Whether {@link #top} is exact for {@code k}
+   */
+  boolean covers(int k) {
+    if (k <= limit) {
+      return true;
+    }
+    // fewer rows than asked for means the lists hold everything there is
+    return direct.size() < limit && (directOnly || direct.isEmpty() || indirect.size() < limit - direct.size());
+  }
+
+  /**
+   * The itineraries a search for {@code k} prints, in order. Empty when there
+   * is no direct flight. Only valid if {@link #covers} is true for {@code k}.
+   */
+  List<Query.Itinerary> top(int k) {
+    int nd = Math.min(Math.max(k, 0), direct.size());
+    if (nd == 0) {
+      return new ArrayList<>();
+    }
+    int ni = directOnly ? 0 : Math.min(k - nd, indirect.size());
+    List<Query.Itinerary> out = new ArrayList<>(nd + ni);
+    int i = 0;
+    int j = 0;
+    // ties keep the direct flight first, as a stable sort of directs then
+    // one-hops would
+    while (i < nd && j < ni) {
+      out.add(direct.get(i).compareTo(indirect.get(j)) <= 0 ? direct.get(i++) : indirect.get(j++));
+    }
+    while (i < nd) {
+      out.add(direct.get(i++));
+    }
+    while (j < ni) {
+      out.add(indirect.get(j++));
+    }
+    return out;
+  }
+
+  /**
+   * Every flight id that appears in the candidates
+   */
+  int[] fids() {
+    int[] fids = new int[direct.size() + 2 * indirect.size()];
+    int n = 0;
+    for (Query.Itinerary it : direct) {
+      fids[n++] = it.f1.fid;
+    }
+    for (Query.Itinerary it : indirect) {
+      fids[n++] = it.f1.fid;
+      fids[n++] = it.f2.fid;
+    }
+    return fids;
+  }
+}
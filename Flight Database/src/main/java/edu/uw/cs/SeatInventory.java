@@ -0,0 +1,323 @@
+package edu.uw.cs;
+
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Remaining seats per flight, shared by every Query on one {@link Database}, so a
+ * booking of a full flight is turned down before it touches the database.
+ *
+ * A flight's count is seeded the first time it is booked, from its row in
+ * FlightSeats. After that, bookings take seats here before they insert their
+ * reservation and give them back if the transaction does not commit, and
+ * cancellations give seats back once their delete commits.
+ *
+ * Seeds are read on a connection of the inventory's own, each in a short
+ * snapshot transaction, so they never wait on an open booking, even one in
+ * the same group commit. The counts are only a first check: in the booking's
+ * own transaction, before it commits, {@link #TAKE_SEAT} takes the seat from
+ * the flight's row, which locks that row and nothing else. If a row has no
+ * seats left, because another process booked the flight or a count drifted,
+ * the booking rolls back and the flight is seeded again with {@link #reseed}.
+ * A cancellation gives its seats back to the rows with {@link #GIVE_SEAT}.
+ */
+class SeatInventory {
+  static final int NO_FLIGHT = -1;
+
+  // A flight's seats left; FlightSeats has a row for every flight
+  private static final String SEATS_LEFT = "SELECT seats_left FROM FlightSeats WHERE fid = ?";
+  // Takes a seat from a flight's row if it has one left, and gives one back
+  static final String TAKE_SEAT = "UPDATE FlightSeats SET seats_left = seats_left - 1 WHERE fid = ? AND seats_left > 0";
+  static final String GIVE_SEAT = "UPDATE FlightSeats SET seats_left = seats_left + 1 WHERE fid = ?";
+  // Every flight back to its capacity, after the reservations are cleared
+  static final String RESET_SEATS = "UPDATE FlightSeats SET seats_left = capacity WHERE seats_left <> capacity";
+
+  // Lock stripes; an itinerary locks the stripes of both of its flights
+  private static final int STRIPES = 64;
+
+  private final ConcurrentHashMap<Integer, AtomicInteger> seats = new ConcurrentHashMap<>();
+  private final Object[] locks = new Object[STRIPES];
+
+  private final String url;
+  private final int seedIsolation;
+  // Guarded by itself; opened on the first seed
+  private final Object seedLock = new Object();
+  private Connection seedConn;
+  private PreparedStatement seedStmt;
+
+  private final AtomicLong reseeds = new AtomicLong();
+
+  /**
+   * @param seedIsolation JDBC isolation level of the snapshot reads seeds
+   *                      come from
+   */
+  SeatInventory(String url, int seedIsolation) {
+    this.url = url;
+    this.seedIsolation = seedIsolation;
+    for (int i = 0; i < STRIPES; i++) {
+      locks[i] = new Object();
+    }
+  }
+
+  /**
+   * Takes a seat on {@code fid1} and, unless it is {@link #NO_FLIGHT}, one on
+   * {@code fid2}. Either both seats are taken or neither is. Flights seen for
+   * the first time are seeded.
+   *
+   * @return false if either flight is full
+   */
+  boolean reserve(int fid1, int fid2) throws SQLException {
+    AtomicInteger first = counter(fid1);
+    if (fid2 == NO_FLIGHT) {
+      synchronized (lock(fid1)) {
+        return take(first, 1);
+      }
+    }
+    AtomicInteger second = counter(fid2);
+    // lock stripes in a fixed order so two itineraries cannot deadlock
+    Object a = lock(Math.min(fid1, fid2));
+    Object b = lock(Math.max(fid1, fid2));
+    synchronized (a) {
+      synchronized (b) {
+        // the same flight twice needs two seats on it
+        if (first == second) {
+          return take(first, 2);
+        }
+        if (first.get() < 1 || second.get() < 1) {
+          return false;
+        }
+        first.decrementAndGet();
+        second.decrementAndGet();
+        return true;
+      }
+    }
+  }
+
+  /**
+   * Takes a seat on every flight in {@code fids}, all or none, like
+   * {@link #reserve(int, int)} for any number of flights
+   *
+   * @return false if any flight is full
+   */
+  boolean reserve(int[] fids) throws SQLException {
+    if (fids.length <= 2) {
+      return reserve(fids[0], fids.length == 2 ? fids[1] : NO_FLIGHT);
+    }
+    AtomicInteger[] counts = new AtomicInteger[fids.length];
+    int[] stripes = new int[fids.length];
+    for (int i = 0; i < fids.length; i++) {
+      counts[i] = counter(fids[i]);
+      stripes[i] = stripe(fids[i]);
+    }
+    // lock stripes in a fixed order so two itineraries cannot deadlock
+    Arrays.sort(stripes);
+    return reserveLocked(stripes, 0, counts);
+  }
+
+  private boolean reserveLocked(int[] stripes, int i, AtomicInteger[] counts) {
+    if (i < stripes.length) {
+      if (i > 0 && stripes[i] == stripes[i - 1]) {
+        return reserveLocked(stripes, i + 1, counts);
+      }
+      synchronized (locks[stripes[i]]) {
+        return reserveLocked(stripes, i + 1, counts);
+      }
+    }
+    // a flight that appears more than once needs a seat each time
+    for (AtomicInteger count : counts) {
+      int needed = 0;
+      for (AtomicInteger other : counts) {
+        if (other == count) {
+          needed++;
+        }
+      }
+      if (count.get() < needed) {
+        return false;
+      }
+    }
+    for (AtomicInteger count : counts) {
+      count.decrementAndGet();
+    }
+    return true;
+  }
+
+  /**
+   * Gives back seats taken by {@link #reserve}, or freed by a cancellation
+   */
+  void release(int fid1, int fid2) {
+    give(fid1);
+    if (fid2 != NO_FLIGHT) {
+      give(fid2);
+    }
+  }
+
+  /**
+   * Gives back a seat on every flight in {@code fids}
+   */
+  void release(int[] fids) {
+    for (int fid : fids) {
+      give(fid);
+    }
+  }
+
+  /**
+   * Remaining seats on {@code fid}, or -1 if it has not been seeded
+   */
+  int remaining(int fid) {
+    AtomicInteger count = seats.get(fid);
+    return count == null ? -1 : count.get();
+  }
+
+  /**
+   * Forgets every count, after the reservations have been cleared
+   */
+  void reset() {
+    seats.clear();
+  }
+
+  /**
+   * Seeds every flight in {@code fids} again from its committed row, after a
+   * booking found one with no seats left. Seats held by bookings still open
+   * are not in the new count; taking their seats from the rows before they
+   * commit catches any overbooking that lets through.
+   */
+  void reseed(int[] fids) throws SQLException {
+    for (int fid : fids) {
+      int remaining = seed(fid);
+      // reset the counter in place, so bookings holding it see the new count
+      // and their release lands on it
+      AtomicInteger count = seats.get(fid);
+      if (count == null) {
+        count = seats.putIfAbsent(fid, new AtomicInteger(remaining));
+      }
+      if (count != null) {
+        synchronized (lock(fid)) {
+          count.set(remaining);
+        }
+      }
+      reseeds.incrementAndGet();
+    }
+  }
+
+  /**
+   * Closes the connection seeds are read on
+   */
+  void close() {
+    synchronized (seedLock) {
+      closeSeedConnection();
+    }
+  }
+
+  /**
+   * One line summary of the inventory
+   */
+  String metrics() {
+    return String.format("seats: flights=%d reseeds=%d", seats.size(), reseeds.get());
+  }
+
+  /**
+   * The inventory's MBean
+   */
+  SeatsMBean mbean() {
+    return new Stats();
+  }
+
+  /**
+   * Flights with a count and how often counts were seeded again
+   */
+  public interface SeatsMBean extends QueryMetrics.ComponentMBean {
+    int getFlights();
+
+    long getReseeds();
+  }
+
+  private class Stats implements SeatsMBean {
+    public String getSummary() {
+      return metrics();
+    }
+
+    public int getFlights() {
+      return seats.size();
+    }
+
+    public long getReseeds() {
+      return reseeds.get();
+    }
+  }
+
+  private AtomicInteger counter(int fid) throws SQLException {
+    AtomicInteger count = seats.get(fid);
+    if (count != null) {
+      return count;
+    }
+    // Seed outside any lock; if another session seeded first, its count is the
+    // one everyone uses
+    AtomicInteger seeded = new AtomicInteger(seed(fid));
+    count = seats.putIfAbsent(fid, seeded);
+    return count == null ? seeded : count;
+  }
+
+  private int seed(int fid) throws SQLException {
+    synchronized (seedLock) {
+      try {
+        if (seedConn == null) {
+          seedConn = DriverManager.getConnection(url);
+          seedConn.setTransactionIsolation(seedIsolation);
+          seedConn.setAutoCommit(true);
+          seedStmt = seedConn.prepareStatement(SEATS_LEFT);
+        }
+        seedStmt.setInt(1, fid);
+        try (ResultSet rs = seedStmt.executeQuery()) {
+          if (!rs.next()) {
+            throw new SQLException("No such flight: " + fid);
+          }
+          return rs.getInt("seats_left");
+        }
+      } catch (SQLException e) {
+        if (seedConn != null && !seedConn.isValid(1)) {
+          closeSeedConnection();
+        }
+        throw e;
+      }
+    }
+  }
+
+  private void closeSeedConnection() {
+    if (seedConn != null) {
+      try {
+        seedConn.close();
+      } catch (SQLException e) {
+        // closing anyway
+      }
+      seedConn = null;
+      seedStmt = null;
+    }
+  }
+
+  private void give(int fid) {
+    AtomicInteger count = seats.get(fid);
+    if (count != null) {
+      synchronized (lock(fid)) {
+        count.incrementAndGet();
+      }
+    }
+  }
+
+  private static boolean take(AtomicInteger count, int n) {
+    if (count.get() < n) {
+      return false;
+    }
+    count.addAndGet(-n);
+    return true;
+  }
+
+  private Object lock(int fid) {
+    return locks[stripe(fid)];
+  }
+
+  private static int stripe(int fid) {
+    return Math.floorMod(fid, STRIPES);
+  }
+}
@@ -0,0 +1,266 @@
+package edu.uw.cs;
+
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Login and search state of the sessions on one {@link Database}, by session
+ * ID, kept apart from Query objects and database connections.
+ *
+ * A Query runs one session at a time and moves its state in and out with
+ * {@link Query#resumeSession} and {@link Query#saveSession}, so a few Query
+ * objects can serve any number of mostly idle sessions. A session expires
+ * {@code ttlMillis} after it was last used, and when the sessions together
+ * take more than {@code maxBytes} the least recently used ones are dropped.
+ * Either way its user is logged out.
+ */
+class SessionStore {
+  // Rough cost of a session beyond its state: the map entry, the ID, the
+  // entry and state objects and their array headers
+  private static final int ENTRY_OVERHEAD = 48 + 64 + 32 + 24 + 2 * 16;
+
+  private static final SecureRandom random = new SecureRandom();
+
+  private final long ttlMillis;
+  private final long maxBytes;
+
+  // Guarded by this; in least recently used order
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+  private long bytes;
+
+  private final AtomicLong expirations = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+
+  SessionStore(long ttlMillis, long maxBytes) {
+    this.ttlMillis = ttlMillis;
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * A new random session ID
+   */
+  static String newId() {
+    byte[] id = new byte[16];
+    random.nextBytes(id);
+    return Base64.getUrlEncoder().withoutPadding().encodeToString(id);
+  }
+
+  /**
+   * Returns the state of session {@code id}, or null if there is none or it
+   * has expired
+   */
+  synchronized State get(String id) {
+    long now = System.currentTimeMillis();
+    expire(now);
+    Entry e = entries.get(id);
+    if (e == null) {
+      return null;
+    }
+    e.usedAt = now;
+    return e.state;
+  }
+
+  /**
+   * Stores {@code state} as the state of session {@code id}
+   */
+  synchronized void put(String id, State state) {
+    long now = System.currentTimeMillis();
+    Entry e = new Entry(state, now, ENTRY_OVERHEAD + 2 * id.length() + state.footprintBytes());
+    Entry old = entries.put(id, e);
+    if (old != null) {
+      bytes -= old.bytes;
+    }
+    bytes += e.bytes;
+    expire(now);
+    // the session just stored is the most recently used, so it goes last
+    Iterator<Entry> it = entries.values().iterator();
+    while (bytes > maxBytes && entries.size() > 1) {
+      bytes -= it.next().bytes;
+      it.remove();
+      evictions.incrementAndGet();
+    }
+  }
+
+  /**
+   * Ends session {@code id}
+   */
+  synchronized void remove(String id) {
+    Entry e = entries.remove(id);
+    if (e != null) {
+      bytes -= e.bytes;
+    }
+  }
+
+  synchronized int size() {
+    return entries.size();
+  }
+
+  synchronized long footprintBytes() {
+    return bytes;
+  }
+
+  /**
+   * Drops sessions idle for longer than the TTL; they are the first ones in
+   * use order
+   */
+  private void expire(long now) {
+    Iterator<Entry> it = entries.values().iterator();
+    while (it.hasNext()) {
+      Entry e = it.next();
+      if (now - e.usedAt <= ttlMillis) {
+        return;
+      }
+      bytes -= e.bytes;
+      it.remove();
+      expirations.incrementAndGet();
+    }
+  }
+
+  /**
+   * One line summary of the store
+   */
+  synchronized String metrics() {
+    return String.format("sessions: live=%d bytes=%d expirations=%d evictions=%d", entries.size(), bytes,
+        expirations.get(), evictions.get());
+  }
+
+  /**
+   * The store's MBean
+   */
+  StoreMBean mbean() {
+    return new Stats();
+  }
+
+  /**
+   * Live sessions, the bytes they take and how many were dropped
+   */
+  public interface StoreMBean extends QueryMetrics.ComponentMBean {
+    int getLive();
+
+    long getBytes();
+
+    long getExpirations();
+
+    long getEvictions();
+  }
+
+  private class Stats implements StoreMBean {
+    public String getSummary() {
+      return metrics();
+    }
+
+    public int getLive() {
+      return size();
+    }
+
+    public long getBytes() {
+      return footprintBytes();
+    }
+
+    public long getExpirations() {
+      return expirations.get();
+    }
+
+    public long getEvictions() {
+      return evictions.get();
+    }
+  }
+
+  private static class Entry {
+    final State state;
+    final long bytes;
+    long usedAt;
+
+    Entry(State state, long usedAt, long bytes) {
+      this.state = state;
+      this.usedAt = usedAt;
+      this.bytes = bytes;
+    }
+  }
+
+  /**
+   * What a session keeps between commands: who is logged in, null if nobody,
+   * and the itineraries of the last search, null if there was none
+   */
+  static class State {
+    final String username;
+    final Itineraries itineraries;
+
+    State(String username, Itineraries itineraries) {
+      this.username = username;
+      this.itineraries = itineraries;
+    }
+
+    long footprintBytes() {
+      return (username == null ? 0 : 2 * username.length()) + (itineraries == null ? 0 : itineraries.footprintBytes());
+    }
+  }
+
+  /**
+   * Search results packed into ints, without the flights: for each itinerary
+   * its number of legs, total time, total price and fids.
+   */
+  static class Itineraries {
+    // Offsets of each itinerary in data, and one past the last
+    private final int[] starts;
+    private final int[] data;
+
+    private Itineraries(int[] starts, int[] data) {
+      this.starts = starts;
+      this.data = data;
+    }
+
+    static Itineraries of(List<Query.Itinerary> itineraries) {
+      return new Itineraries(new int[] { 0 }, new int[0]).append(itineraries);
+    }
+
+    /**
+     * These itineraries followed by {@code more}
+     */
+    Itineraries append(List<Query.Itinerary> more) {
+      int n = size();
+      int length = starts[n];
+      for (Query.Itinerary it : more) {
+        length += 3 + it.count;
+      }
+      int[] s = Arrays.copyOf(starts, n + more.size() + 1);
+      int[] d = Arrays.copyOf(data, length);
+      int at = starts[n];
+      for (Query.Itinerary it : more) {
+        d[at++] = it.count;
+        d[at++] = it.totalTime;
+        d[at++] = it.price();
+        for (int fid : it.fids()) {
+          d[at++] = fid;
+        }
+        s[++n] = at;
+      }
+      return new Itineraries(s, d);
+    }
+
+    int size() {
+      return starts.length - 1;
+    }
+
+    int legs(int i) {
+      return data[starts[i]];
+    }
+
+    int totalTime(int i) {
+      return data[starts[i] + 1];
+    }
+
+    int price(int i) {
+      return data[starts[i] + 2];
+    }
+
+    int fid(int i, int leg) {
+      return data[starts[i] + 3 + leg];
+    }
+
+    long footprintBytes() {
+      return 4L * (starts.length + data.length);
+    }
+  }
+}
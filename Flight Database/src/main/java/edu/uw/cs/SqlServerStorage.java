@@ -0,0 +1,29 @@
+package edu.uw.cs;
+
+import java.util.*;
+
+/**
+ * SQL Server (Azure SQL) backend. The tables are created with createTables.sql
+ * and Flights is loaded ahead of time, so there is nothing to set up here.
+ */
+class SqlServerStorage implements Storage {
+  private final String url;
+
+  SqlServerStorage(Properties configProps) {
+    String serverURL = configProps.getProperty("hw1.server_url");
+    String dbName = configProps.getProperty("hw1.database_name");
+    String adminName = configProps.getProperty("hw1.username");
+    String password = configProps.getProperty("hw1.password");
+    url = String.format("jdbc:sqlserver://%s:1433;databaseName=%s;user=%s;password=%s", serverURL, dbName, adminName,
+        password);
+  }
+
+  @Override
+  public String url() {
+    return url;
+  }
+
+  @Override
+  public void initialize() {
+  }
+}
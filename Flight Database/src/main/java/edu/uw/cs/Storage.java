@@ -0,0 +1,88 @@
+package edu.uw.cs;
+
+import java.sql.*;
+import java.util.*;
+
+/**
+ * A database backend for {@link Query}: where to connect and how to set the
+ * database up. There is one implementation per SQL dialect.
+ *
+ * The canned queries in Query are written in T-SQL. Backends for other
+ * databases run them in a SQL Server compatibility mode or override the
+ * dialect hooks here.
+ */
+interface Storage {
+
+  /**
+   * JDBC URL, including credentials, that connections are opened with
+   */
+  String url();
+
+  /**
+   * Prepares the database before the first connection is handed out. Must be
+   * safe to call more than once.
+   */
+  void initialize() throws SQLException;
+
+  /**
+   * Describes how this backend loaded Flights, so a flight snapshot of one
+   * load is not read for another; empty if the table is loaded outside the
+   * application
+   */
+  default String flightsSource() {
+    return "";
+  }
+
+  /**
+   * JDBC isolation level value for snapshot isolation, which JDBC has no
+   * constant for. This is SQLServerConnection.TRANSACTION_SNAPSHOT.
+   */
+  default int snapshotIsolation() {
+    return 4096;
+  }
+
+  /**
+   * Statement that runs {@code UPDATE table SET set WHERE where} and returns
+   * {@code columns} of each updated row as they are after the update, so a
+   * conditional update and the read of its result are one round trip. Run it
+   * with executeQuery; no rows means the condition did not hold.
+   */
+  default String updateReturning(String table, String set, String where, String... columns) {
+    return "UPDATE " + table + " SET " + set + " OUTPUT " + prefixed("inserted.", columns) + " WHERE " + where;
+  }
+
+  /**
+   * Statement that runs {@code DELETE FROM table WHERE where} and returns
+   * {@code columns} of each deleted row. Run it with executeQuery.
+   */
+  default String deleteReturning(String table, String where, String... columns) {
+    return "DELETE FROM " + table + " OUTPUT " + prefixed("deleted.", columns) + " WHERE " + where;
+  }
+
+  static String prefixed(String prefix, String... columns) {
+    StringBuilder sb = new StringBuilder();
+    for (String column : columns) {
+      if (sb.length() > 0) {
+        sb.append(", ");
+      }
+      sb.append(prefix).append(column);
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Picks the backend named by {@code hw1.storage} in the configuration,
+   * SQL Server by default.
+   */
+  static Storage fromConfig(Properties configProps) {
+    String name = configProps.getProperty("hw1.storage", "sqlserver").trim();
+    switch (name) {
+    case "sqlserver":
+      return new SqlServerStorage(configProps);
+    case "h2":
+      return new H2Storage(configProps);
+    default:
+      throw new IllegalArgumentException("Unknown storage backend: " + name);
+    }
+  }
+}
@@ -0,0 +1,97 @@
+package edu.uw.cs;
+
+import java.sql.*;
+import java.util.*;
+
+/**
+ * Generates a reproducible Flights table for local testing and benchmarking.
+ *
+ * Rows look like the course data set: one month of flights between US cities,
+ * a few large hubs that most routes touch, about 2% canceled flights (with no
+ * actual_time), capacities from 1 to 20 and prices from 100 to 1000. The same
+ * seed always gives the same table.
+ */
+class SyntheticFlights {
+  static final String[] CITIES = { "Seattle WA", "Boston MA", "Chicago IL", "Atlanta GA", "Dallas/Fort Worth TX",
+      "Denver CO", "Los Angeles CA", "New York NY", "San Francisco CA", "Phoenix AZ", "Houston TX", "Las Vegas NV",
+      "Minneapolis MN", "Detroit MI", "Orlando FL", "Miami FL", "Charlotte NC", "Philadelphia PA", "Newark NJ",
+      "Salt Lake City UT", "Portland OR", "St. Louis MO", "Baltimore MD", "San Diego CA", "Tampa FL", "Nashville TN",
+      "Austin TX", "Kansas City MO", "Raleigh/Durham NC", "Sacramento CA", "San Jose CA", "Cleveland OH",
+      "Pittsburgh PA", "Indianapolis IN", "Columbus OH", "Milwaukee WI", "New Orleans LA", "Honolulu HI",
+      "Anchorage AK", "Boise ID", "Spokane WA", "Albuquerque NM", "Omaha NE", "Tucson AZ", "Oklahoma City OK",
+      "Memphis TN", "Louisville KY", "Buffalo NY", "Hartford CT", "Reno NV" };
+
+  static final String[] CARRIERS = { "AS", "AA", "B6", "DL", "UA", "WN", "OO", "NK", "F9", "HA" };
+
+  static final int DAYS = 31;
+
+  /**
+   * Inserts {@code count} flights with fids 1 to {@code count}. Does not commit.
+   */
+  static void load(Connection conn, int count, long seed) throws SQLException {
+    Random random = new Random(seed);
+    // Earlier cities are busier, so the first few act as hubs
+    double[] weight = new double[CITIES.length];
+    double total = 0;
+    for (int i = 0; i < CITIES.length; i++) {
+      weight[i] = 1.0 / (i + 1);
+      total += weight[i];
+    }
+
+    try (PreparedStatement insert = H2Storage.prepareInsert(conn)) {
+      for (int fid = 1; fid <= count; fid++) {
+        int origin = pick(random, weight, total);
+        int dest = origin;
+        while (dest == origin) {
+          dest = pick(random, weight, total);
+        }
+        int day = 1 + random.nextInt(DAYS);
+        boolean canceled = random.nextInt(50) == 0;
+        int time = 40 + random.nextInt(360);
+
+        insert.setInt(1, fid);
+        insert.setInt(2, 7);
+        insert.setInt(3, day);
+        insert.setInt(4, 1 + (day + 2) % 7);
+        insert.setString(5, CARRIERS[random.nextInt(CARRIERS.length)]);
+        insert.setInt(6, 1 + random.nextInt(9999));
+        insert.setString(7, CITIES[origin]);
+        insert.setString(8, state(CITIES[origin]));
+        insert.setString(9, CITIES[dest]);
+        insert.setString(10, state(CITIES[dest]));
+        insert.setInt(11, random.nextInt(30));
+        insert.setInt(12, 5 + random.nextInt(20));
+        insert.setInt(13, random.nextInt(30));
+        insert.setInt(14, canceled ? 1 : 0);
+        if (canceled) {
+          insert.setNull(15, Types.INTEGER);
+        } else {
+          insert.setInt(15, time);
+        }
+        insert.setInt(16, time * 8);
+        insert.setInt(17, 1 + random.nextInt(20));
+        insert.setInt(18, 100 + random.nextInt(901));
+        insert.addBatch();
+        if (fid % 1000 == 0) {
+          insert.executeBatch();
+        }
+      }
+      insert.executeBatch();
+    }
+  }
+
+  private static int pick(Random random, double[] weight, double total) {
+    double x = random.nextDouble() * total;
+    for (int i = 0; i < weight.length; i++) {
+      x -= weight[i];
+      if (x < 0) {
+        return i;
+      }
+    }
+    return weight.length - 1;
+  }
+
+  private static String state(String city) {
+    return city.substring(city.lastIndexOf(' ') + 1);
+  }
+}
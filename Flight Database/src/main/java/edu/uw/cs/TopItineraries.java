@@ -0,0 +1,140 @@
+package edu.uw.cs;
+
+import java.util.*;
+
+/**
+ * Bounded max-heap that keeps the k smallest itinerary keys offered to it.
+ *
+ * An itinerary key packs (total time, first leg, second leg) into one long, so
+ * comparing two keys orders itineraries by total time, then first leg, then
+ * second leg. Legs are non-negative ids in the same order as fid; a direct
+ * flight has no second leg and sorts before any one-hop itinerary with the same
+ * time and first leg, which is where a stable sort of "directs, then one-hops"
+ * puts it too.
+ */
+class TopItineraries {
+  static final int LEG_BITS = 22;
+  static final int TIME_BITS = 63 - 2 * LEG_BITS;
+  static final int MAX_LEG = (1 << LEG_BITS) - 2;
+  static final int MAX_TIME = (1 << TIME_BITS) - 1;
+  static final int NO_LEG = -1;
+
+  private static final long LEG_MASK = (1L << LEG_BITS) - 1;
+  // Keys the heap has room for before it first grows
+  private static final int INITIAL_CAPACITY = 64;
+
+  private final int limit;
+  private long[] heap;
+  private int size;
+
+  /**
+   * Creates a heap that keeps at most {@code k} keys. Room for them is added
+   * as keys arrive, so a large k costs nothing until that many are offered.
+   */
+  TopItineraries(int k) {
+    limit = Math.max(k, 0);
+    heap = new long[Math.min(limit, INITIAL_CAPACITY)];
+  }
+
+  /**
+   * Packs an itinerary into a key. Use {@link #NO_LEG} as the second leg of a
+   * direct flight.
+   */
+  static long key(int totalTime, int firstLeg, int secondLeg) {
+    if (totalTime < 0 || totalTime > MAX_TIME || firstLeg < 0 || firstLeg > MAX_LEG || secondLeg < NO_LEG
+        || secondLeg > MAX_LEG) {
+      throw new IllegalArgumentException("Itinerary out of key range: " + totalTime + " " + firstLeg + " " + secondLeg);
+    }
+    return ((long) totalTime << (2 * LEG_BITS)) | ((long) firstLeg << LEG_BITS) | (secondLeg + 1);
+  }
+
+  static int totalTime(long key) {
+    return (int) (key >>> (2 * LEG_BITS));
+  }
+
+  static int firstLeg(long key) {
+    return (int) ((key >>> LEG_BITS) & LEG_MASK);
+  }
+
+  /**
+   * Returns the second leg, or {@link #NO_LEG} for a direct flight
+   */
+  static int secondLeg(long key) {
+    return (int) (key & LEG_MASK) - 1;
+  }
+
+  /**
+   * Offers a key. Returns false if the heap is full and the key is not smaller
+   * than the largest key kept.
+   */
+  boolean offer(long key) {
+    if (size < limit) {
+      if (size == heap.length) {
+        heap = Arrays.copyOf(heap, (int) Math.min(limit, 2L * size));
+      }
+      heap[size] = key;
+      siftUp(size++);
+      return true;
+    }
+    if (size == 0 || key >= heap[0]) {
+      return false;
+    }
+    heap[0] = key;
+    siftDown(0);
+    return true;
+  }
+
+  boolean isFull() {
+    return size == limit;
+  }
+
+  /**
+   * Largest key kept. Only valid when the heap is not empty.
+   */
+  long max() {
+    return heap[0];
+  }
+
+  int size() {
+    return size;
+  }
+
+  /**
+   * Returns the kept keys in ascending order
+   */
+  long[] toSortedArray() {
+    long[] keys = Arrays.copyOf(heap, size);
+    Arrays.sort(keys);
+    return keys;
+  }
+
+  private void siftUp(int i) {
+    long key = heap[i];
+    while (i > 0) {
+      int parent = (i - 1) >>> 1;
+      if (heap[parent] >= key) {
+        break;
+      }
+      heap[i] = heap[parent];
+      i = parent;
+    }
+    heap[i] = key;
+  }
+
+  private void siftDown(int i) {
+    long key = heap[i];
+    int half = size >>> 1;
+    while (i < half) {
+      int child = 2 * i + 1;
+      if (child + 1 < size && heap[child + 1] > heap[child]) {
+        child++;
+      }
+      if (key >= heap[child]) {
+        break;
+      }
+      heap[i] = heap[child];
+      i = child;
+    }
+    heap[i] = key;
+  }
+}
@@ -0,0 +1,212 @@
+package edu.uw.cs;
+
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Runs transaction bodies, retrying the ones that lost a deadlock or a
+ * serialization conflict.
+ *
+ * A body that throws is always rolled back. If the error is one a retry can
+ * fix, see {@link #isRetryable}, the body runs again after a capped
+ * exponential backoff with full jitter, up to {@code maxAttempts} times in
+ * all. Any other error, or running out of attempts, gives the failure
+ * response. Attempts, retries, aborts and fatal errors are counted per
+ * {@link TransactionType}.
+ */
+class TransactionRetry {
+  // SQL Server: deadlock victim, snapshot update conflicts, lock timeout
+  private static final Set<Integer> SQLSERVER_RETRYABLE = new HashSet<>(Arrays.asList(1205, 3960, 3961, 1222));
+  // H2: deadlock, lock timeout, concurrent update
+  private static final Set<Integer> H2_RETRYABLE = new HashSet<>(Arrays.asList(40001, 50200, 90131));
+
+  /**
+   * A transaction body, run on the session's current connection
+   */
+  interface Body {
+    String run() throws SQLException;
+  }
+
+  private final int maxAttempts;
+  private final long baseMillis;
+  private final long maxMillis;
+
+  private final AtomicLongArray attempts = new AtomicLongArray(TransactionType.values().length);
+  private final AtomicLongArray retries = new AtomicLongArray(TransactionType.values().length);
+  private final AtomicLongArray aborts = new AtomicLongArray(TransactionType.values().length);
+  private final AtomicLongArray fatal = new AtomicLongArray(TransactionType.values().length);
+
+  TransactionRetry(int maxAttempts, long baseMillis, long maxMillis) {
+    if (maxAttempts <= 0 || baseMillis < 0 || maxMillis < baseMillis) {
+      throw new IllegalArgumentException("Bad retry settings: " + maxAttempts + " attempts, " + baseMillis + "-"
+          + maxMillis + " ms");
+    }
+    this.maxAttempts = maxAttempts;
+    this.baseMillis = baseMillis;
+    this.maxMillis = maxMillis;
+  }
+
+  /**
+   * Runs {@code body}, rolling {@code conn} back after each failed attempt.
+   * {@code conn} may be null for a body that does not use the database.
+   *
+   * @return the body's response, or {@code failure} if it could not complete
+   */
+  String run(TransactionType type, Connection conn, String failure, Body body) {
+    int t = type.ordinal();
+    for (int attempt = 1; ; attempt++) {
+      attempts.incrementAndGet(t);
+      try {
+        return body.run();
+      } catch (SQLException e) {
+        rollback(conn);
+        if (!isRetryable(e)) {
+          fatal.incrementAndGet(t);
+          return failure;
+        }
+        if (attempt == maxAttempts) {
+          aborts.incrementAndGet(t);
+          return failure;
+        }
+        retries.incrementAndGet(t);
+        if (!backoff(attempt)) {
+          aborts.incrementAndGet(t);
+          return failure;
+        }
+      }
+    }
+  }
+
+  /**
+   * Whether {@code e}, or an exception chained to it, is a deadlock or
+   * serialization failure that running the transaction again can fix
+   */
+  static boolean isRetryable(SQLException e) {
+    for (Throwable t = e; t != null; t = t.getCause()) {
+      if (t instanceof SQLException) {
+        for (SQLException s = (SQLException) t; s != null; s = s.getNextException()) {
+          if ("40001".equals(s.getSQLState()) || "40P01".equals(s.getSQLState())
+              || SQLSERVER_RETRYABLE.contains(s.getErrorCode()) || H2_RETRYABLE.contains(s.getErrorCode())) {
+            return true;
+          }
+          if (s.getNextException() == s) {
+            break;
+          }
+        }
+      }
+      if (t.getCause() == t) {
+        break;
+      }
+    }
+    return false;
+  }
+
+  long attempts(TransactionType type) {
+    return attempts.get(type.ordinal());
+  }
+
+  long retries(TransactionType type) {
+    return retries.get(type.ordinal());
+  }
+
+  long aborts(TransactionType type) {
+    return aborts.get(type.ordinal());
+  }
+
+  long fatal(TransactionType type) {
+    return fatal.get(type.ordinal());
+  }
+
+  /**
+   * One line summary of the retry counts, for the types that have run
+   */
+  String metrics() {
+    StringBuilder sb = new StringBuilder("retry:");
+    for (TransactionType type : TransactionType.values()) {
+      int t = type.ordinal();
+      if (attempts.get(t) > 0) {
+        sb.append(' ').append(type.name().toLowerCase(Locale.ROOT)).append("=[attempts=").append(attempts.get(t))
+            .append(" retries=").append(retries.get(t)).append(" aborts=").append(aborts.get(t))
+            .append(" fatal=").append(fatal.get(t)).append(']');
+      }
+    }
+    return sb.toString();
+  }
+
+  /**
+   * The policy's MBean
+   */
+  RetryMBean mbean() {
+    return new Stats();
+  }
+
+  /**
+   * Attempts, retries, aborts and fatal errors over every transaction type
+   */
+  public interface RetryMBean extends QueryMetrics.ComponentMBean {
+    long getAttempts();
+
+    long getRetries();
+
+    long getAborts();
+
+    long getFatal();
+  }
+
+  private class Stats implements RetryMBean {
+    public String getSummary() {
+      return metrics();
+    }
+
+    public long getAttempts() {
+      return total(attempts);
+    }
+
+    public long getRetries() {
+      return total(retries);
+    }
+
+    public long getAborts() {
+      return total(aborts);
+    }
+
+    public long getFatal() {
+      return total(fatal);
+    }
+  }
+
+  private static long total(AtomicLongArray counts) {
+    long n = 0;
+    for (int i = 0; i < counts.length(); i++) {
+      n += counts.get(i);
+    }
+    return n;
+  }
+
+  /**
+   * Sleeps before attempt {@code attempt + 1}. Returns false if interrupted.
+   */
+  private boolean backoff(int attempt) {
+    long cap = Math.min(maxMillis, baseMillis << Math.min(attempt - 1, 20));
+    try {
+      Thread.sleep(cap == 0 ? 0 : ThreadLocalRandom.current().nextLong(cap + 1));
+      return true;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
+  private static void rollback(Connection conn) {
+    if (conn == null) {
+      return;
+    }
+    try {
+      conn.rollback();
+    } catch (SQLException e) {
+      e.printStackTrace();
+    }
+  }
+}
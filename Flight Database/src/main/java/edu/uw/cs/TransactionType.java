@@ -0,0 +1,8 @@
+package edu.uw.cs;
+
+/**
+ * The transactions a Query runs, for retry accounting
+ */
+enum TransactionType {
+  CLEAR_TABLES, LOGIN, CREATE_CUSTOMER, SEARCH, BOOK, PAY, RESERVATIONS, CANCEL
+}
@@ -0,0 +1,90 @@
+package edu.uw.cs;
+
+import org.junit.*;
+
+import java.util.*;
+import java.util.regex.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the command parser against the regex tokenizer it replaced
+ */
+public class CommandParserTest {
+  private static final Pattern TOKEN = Pattern.compile("\"([^\"]*)\"|(\\S+)");
+
+  private static List<String> regexTokens(String command) {
+    Matcher m = TOKEN.matcher(command);
+    List<String> tokens = new ArrayList<>();
+    while (m.find()) {
+      tokens.add(m.group(1) != null ? m.group(1) : m.group(2));
+    }
+    return tokens;
+  }
+
+  private static List<String> tokens(CommandParser p, String command) {
+    List<String> tokens = new ArrayList<>();
+    for (int i = 0; i < p.parse(command); i++) {
+      tokens.add(p.token(i));
+    }
+    return tokens;
+  }
+
+  @Test
+  public void tokenizesLikeTheRegex() {
+    CommandParser p = new CommandParser();
+    String[] commands = {"", "   ", "search \"Seattle WA\" \"Boston MA\" 1 1 10", "login a b", "x\"y z\"",
+        "\"unclosed quote here", "\"\" a", "a\t\tb\r\n", "\"a\"\"b\"", "one \"two three\"four five"};
+    for (String c : commands) {
+      assertEquals(c, regexTokens(c), tokens(p, c));
+    }
+    Random random = new Random(7);
+    char[] alphabet = {'a', 'b', ' ', '"', '\t', '1'};
+    for (int n = 0; n < 5000; n++) {
+      char[] c = new char[random.nextInt(16)];
+      for (int i = 0; i < c.length; i++) {
+        c[i] = alphabet[random.nextInt(alphabet.length)];
+      }
+      String command = new String(c);
+      assertEquals(command, regexTokens(command), tokens(p, command));
+    }
+  }
+
+  @Test
+  public void readsIntsLikeParseInt() {
+    CommandParser p = new CommandParser();
+    String[] ints = {"0", "-0", "+7", "42", "-2147483648", "2147483647", "007"};
+    for (String s : ints) {
+      p.parse(s);
+      assertTrue(s, p.isInt(0));
+      assertEquals(Integer.parseInt(s), p.intToken(0));
+    }
+    String[] bad = {"abc", "-", "+", "1.5", "2147483648", "-2147483649", "99999999999", "1a", "--1"};
+    for (String s : bad) {
+      p.parse(s);
+      assertFalse(s, p.isInt(0));
+    }
+  }
+
+  @Test
+  public void comparesTokensInPlace() {
+    CommandParser p = new CommandParser();
+    p.parse("book 12");
+    assertTrue(p.tokenEquals(0, "book"));
+    assertFalse(p.tokenEquals(0, "boo"));
+    assertFalse(p.tokenEquals(1, "13"));
+  }
+
+  @Test
+  public void badIntsBecomeErrorResponses() {
+    assertEquals("Failed to parse integer", FlightService.execute(null, "book abc"));
+    assertEquals("Failed to parse integer", FlightService.execute(null, "pay 1x"));
+    assertEquals("Failed to parse integer", FlightService.execute(null, "create u p lots"));
+    assertEquals("Failed to parse integer", FlightService.execute(null, "search a b 1 x 2"));
+    assertEquals("Error: Please provide an itinerary_id", FlightService.execute(null, "book"));
+    assertEquals("Error: unrecognized command 'fly'", FlightService.execute(null, "  fly away"));
+    assertEquals("Please enter a command", FlightService.execute(null, " "));
+  }
+}
@@ -0,0 +1,109 @@
+package edu.uw.cs;
+
+import org.junit.*;
+
+import java.lang.management.*;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that Query objects on one database share a context, that it turns
+ * down other settings while open, and that the last close shuts it down
+ */
+public class DatabaseTest {
+  private static final String URL = "jdbc:h2:mem:databasetest;MODE=MSSQLServer;NON_KEYWORDS=DAY;DB_CLOSE_DELAY=-1";
+
+  private static Properties config() {
+    Properties configProps = H2QueryTest.config(true);
+    configProps.setProperty("hw1.h2.url", URL);
+    configProps.setProperty("hw1.h2.synthetic_flights", "2000");
+    configProps.setProperty("hw1.pool.min_idle", "1");
+    return configProps;
+  }
+
+  private static Database open(Properties configProps) throws SQLException {
+    Storage storage = Storage.fromConfig(configProps);
+    storage.initialize();
+    return Database.open(storage, configProps);
+  }
+
+  @Test
+  public void sharedUntilTheLastClose() throws SQLException {
+    Database first = open(config());
+    Database second = open(config());
+    assertSame(first, second);
+    assertNull(first.searchCache());
+    first.close();
+    assertTrue(second.pool().idleCount() > 0);
+    ConnectionPool.PooledConnection held = second.pool().borrow();
+    second.close();
+    assertEquals(0, second.pool().idleCount());
+    // a connection released after the last close is closed, not kept
+    second.pool().release(held);
+    assertEquals(0, second.pool().idleCount());
+    assertTrue(held.connection().isClosed());
+    try {
+      second.pool().borrow();
+      fail("borrowed from a closed pool");
+    } catch (SQLException e) {
+      // expected
+    }
+    try {
+      second.hasher().submit("pw", second.hasher().newSalt());
+      fail("hashed after the last close");
+    } catch (RejectedExecutionException e) {
+      // expected
+    }
+
+    Database again = open(config());
+    assertNotSame(first, again);
+    again.close();
+  }
+
+  @Test
+  public void turnsDownOtherSettingsWhileOpen() throws SQLException {
+    Database db = open(config());
+    Properties other = config();
+    other.setProperty("hw1.retry.max_attempts", "2");
+    try {
+      open(other);
+      fail("opened with other settings");
+    } catch (IllegalArgumentException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains("hw1.retry.max_attempts"));
+    }
+    // settings only a Query reads may differ
+    Properties direct = config();
+    direct.setProperty("hw1.flight_index", "false");
+    open(direct).close();
+    db.close();
+
+    // closed, so the next open may change them
+    open(other).close();
+  }
+
+  @Test
+  public void queriesOpenAndCloseIt() throws Exception {
+    Query q = new Query();
+    q.openConnection(config());
+    q.prepareStatements();
+    Database db = open(config());
+    FlightCache flights = db.flightCache(null);
+    assertEquals(2000, flights.size());
+    // published once loaded
+    assertEquals(2000, ManagementFactory.getPlatformMBeanServer()
+        .getAttribute(db.metrics().name("Component", "FlightCache"), "Flights"));
+    q.closeConnection();
+    // closing twice gives up only one share
+    q.closeConnection();
+    assertSame(flights, db.flightCache(null));
+    db.close();
+  }
+}
@@ -0,0 +1,59 @@
+package edu.uw.cs;
+
+import org.junit.*;
+
+import java.io.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks fid lookups and rendering from the flight cache
+ */
+public class FlightCacheTest {
+  private FlightCache cache;
+
+  @Before
+  public void setup() {
+    FlightCache.Builder b = new FlightCache.Builder();
+    b.add(3, 1, "AS", "24", "Seattle WA", "Boston MA", 300, 10, 100, false);
+    b.add(7, 2, "B6", "98", "Boston MA", "Seattle WA", 290, 12, 140, true);
+    b.add(40, 31, "AS", "24", "Seattle WA", "St. Louis MO", 110, 8, 90, false);
+    cache = b.build();
+  }
+
+  @Test
+  public void findsRowsByFid() {
+    assertEquals(0, cache.row(3));
+    assertEquals(2, cache.row(40));
+    assertEquals(-1, cache.row(4));
+    assertEquals(-1, cache.row(41));
+    assertTrue(cache.canceled(cache.row(7)));
+  }
+
+  @Test
+  public void appendsLikeFlightToString() throws IOException {
+    for (int row = 0; row < cache.size(); row++) {
+      StringBuffer sb = new StringBuffer();
+      cache.appendFlight(sb, row, cache.capacity(row));
+      assertEquals(cache.flight(row).toString(), sb.toString());
+    }
+    StringBuffer sb = new StringBuffer();
+    cache.appendFlight(sb, 0, 3);
+    assertTrue(sb.toString().contains(" Capacity: 3 "));
+  }
+
+  @Test
+  public void sharesDictionaryEntries() {
+    assertEquals(3, cache.cityCount());
+    assertEquals(cache.city("seattle wa"), cache.origin(0));
+    assertEquals(cache.origin(0), cache.dest(1));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsRowsOutOfFidOrder() {
+    FlightCache.Builder b = new FlightCache.Builder();
+    b.add(2, 1, "AS", "24", "Seattle WA", "Boston MA", 300, 10, 100, false);
+    b.add(1, 1, "AS", "24", "Seattle WA", "Boston MA", 300, 10, 100, false);
+  }
+}
@@ -0,0 +1,97 @@
+package edu.uw.cs;
+
+import org.junit.*;
+
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that the in-memory flight index orders results like the search
+ * queries do
+ */
+public class FlightIndexTest {
+  private FlightIndex index;
+
+  @Before
+  public void setup() {
+    FlightCache.Builder b = new FlightCache.Builder();
+    // fid, day, carrier, number, origin, dest, time, capacity, price, canceled
+    b.add(1, 1, "AS", "24", "Seattle WA", "Boston MA", 300, 10, 100, false);
+    b.add(2, 1, "B6", "98", "Seattle WA", "Boston MA", 290, 10, 100, false);
+    b.add(3, 1, "AS", "12", "Seattle WA", "Boston MA", 290, 10, 100, true);
+    b.add(4, 1, "WN", "392", "Seattle WA", "St. Louis MO", 110, 10, 100, false);
+    b.add(5, 1, "WN", "392", "St. Louis MO", "Boston MA", 142, 10, 100, false);
+    b.add(6, 1, "WN", "393", "St. Louis MO", "Boston MA", 142, 10, 100, false);
+    b.add(7, 1, "WN", "394", "St. Louis MO", "Boston MA", 100, 10, 100, true);
+    b.add(8, 2, "AS", "24", "Seattle WA", "Boston MA", 250, 10, 100, false);
+    index = new FlightIndex(b.build());
+  }
+
+  @Test
+  public void directIncludesCanceledInTimeThenFidOrder() {
+    assertEquals(Arrays.asList(2, 3, 1), firstFids(index.direct("Seattle WA", "Boston MA", 1, 10)));
+  }
+
+  @Test
+  public void directStopsAtLimit() {
+    assertEquals(Arrays.asList(2), firstFids(index.direct("Seattle WA", "Boston MA", 1, 1)));
+    assertEquals(0, index.direct("Seattle WA", "Boston MA", 1, 0).length);
+  }
+
+  @Test
+  public void indirectSkipsCanceledAndBreaksTiesOnFid() {
+    long[] indirect = index.indirect("Seattle WA", "Boston MA", 1, 10);
+    assertEquals(2, indirect.length);
+    Query.Itinerary best = index.itinerary(indirect[0]);
+    assertEquals(4, best.f1.fid);
+    assertEquals(5, best.f2.fid);
+    assertEquals(252, best.totalTime);
+    assertEquals(6, index.itinerary(indirect[1]).f2.fid);
+  }
+
+  @Test
+  public void indirectKeepsOnlyTheBest() {
+    long[] indirect = index.indirect("Seattle WA", "Boston MA", 1, 1);
+    assertEquals(1, indirect.length);
+    assertEquals(5, index.itinerary(indirect[0]).f2.fid);
+  }
+
+  @Test
+  public void cityLookupIgnoresCase() {
+    assertEquals(Arrays.asList(8), firstFids(index.direct("seattle wa", "BOSTON MA", 2, 10)));
+  }
+
+  @Test
+  public void unknownCityOrDayFindsNothing() {
+    assertEquals(0, index.direct("Nowhere", "Boston MA", 1, 10).length);
+    assertEquals(0, index.direct("Seattle WA", "Boston MA", 31, 10).length);
+    assertEquals(0, index.indirect("Seattle WA", "Boston MA", 2, 10).length);
+  }
+
+  @Test
+  public void flightKeepsJdbcValues() {
+    assertEquals("ID: 4 Day: 1 Carrier: WN Number: 392 Origin: Seattle WA Dest: St. Louis MO Duration: 110 Capacity: 10 Price: 100",
+        index.itinerary(index.indirect("Seattle WA", "Boston MA", 1, 1)[0]).f1.toString());
+  }
+
+  private List<Query.Itinerary> itineraries(long[] keys) {
+    List<Query.Itinerary> result = new ArrayList<>();
+    for (long key : keys) {
+      result.add(index.itinerary(key));
+    }
+    return result;
+  }
+
+  private List<Integer> firstFids(long[] keys) {
+    return fids(itineraries(keys));
+  }
+
+  private static List<Integer> fids(List<Query.Itinerary> itineraries) {
+    List<Integer> fids = new ArrayList<>();
+    for (Query.Itinerary it : itineraries) {
+      fids.add(it.f1.fid);
+    }
+    return fids;
+  }
+}
@@ -0,0 +1,137 @@
+package edu.uw.cs;
+
+import org.junit.*;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.*;
+import java.sql.*;
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives the network front end with plain sockets against H2
+ */
+public class FlightServerTest {
+  private FlightServer server;
+  private Thread loop;
+
+  @Before
+  public void start() throws Exception {
+    Query q = H2QueryTest.open(true);
+    q.clearTables();
+    q.closeConnection();
+    server = new FlightServer(0, H2QueryTest.config(true));
+    loop = new Thread(() -> {
+      try {
+        server.run();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    });
+    loop.start();
+  }
+
+  @After
+  public void stop() throws Exception {
+    server.close();
+    loop.join(10000);
+  }
+
+  private static class Client implements Closeable {
+    final Socket socket;
+    final BufferedReader in;
+    final Writer out;
+
+    Client(int port) throws IOException {
+      socket = new Socket("localhost", port);
+      in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+      out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+    }
+
+    void send(String command) throws IOException {
+      out.write(command + "\n");
+      out.flush();
+    }
+
+    // Reads one response, up to the empty line that ends it
+    String receive() throws IOException {
+      StringBuilder sb = new StringBuilder();
+      String line;
+      while ((line = in.readLine()) != null && !line.isEmpty()) {
+        sb.append(line).append('\n');
+      }
+      return sb.toString();
+    }
+
+    String call(String command) throws IOException {
+      send(command);
+      return receive();
+    }
+
+    @Override
+    public void close() throws IOException {
+      socket.close();
+    }
+  }
+
+  @Test
+  public void runsCommandsInOrderPerConnection() throws IOException {
+    try (Client c = new Client(server.port())) {
+      // pipelined commands answer in order
+      c.send("create u1 pw 1000");
+      c.send("login u1 pw");
+      c.send("");
+      assertEquals("Created user u1\n", c.receive());
+      assertEquals("Logged in as u1\n", c.receive());
+      assertEquals("Please enter a command\n", c.receive());
+      assertTrue(c.call("search \"Seattle WA\" \"Chicago IL\" 0 1 2").startsWith("Itinerary 0: "));
+      // the search survives between commands, whichever worker runs them
+      assertEquals("Booked flight(s), reservation ID: 1\n", c.call("book 1"));
+      assertEquals("Goodbye\n", c.call("quit"));
+      assertNull(c.in.readLine());
+    }
+  }
+
+  @Test
+  public void keepsErrorTextFromClients() throws IOException {
+    FlightService.register("explode", (q, cmd, out) -> {
+      throw new IllegalStateException("Invalid column name 'secret' in SELECT * FROM Users");
+    });
+    try (Client c = new Client(server.port())) {
+      assertEquals("Failed to run explode\n", c.call("explode"));
+      // the session carries on
+      assertEquals("Created user u1\n", c.call("create u1 pw 1000"));
+    }
+    assertEquals("Failed to pay for reservation 7\n", FlightService.failure("pay 7"));
+    assertEquals("Failed to search\n", FlightService.failure("search-next abc"));
+  }
+
+  @Test
+  public void keepsOneSessionPerConnection() throws Exception {
+    List<Client> clients = new ArrayList<>();
+    try {
+      for (int i = 0; i < 50; i++) {
+        Client c = new Client(server.port());
+        clients.add(c);
+        c.send("create user" + i + " pw 10");
+      }
+      for (Client c : clients) {
+        c.receive();
+        c.send("login " + "user" + clients.indexOf(c) + " pw");
+      }
+      for (int i = 0; i < clients.size(); i++) {
+        assertEquals("Logged in as user" + i + "\n", clients.get(i).receive());
+      }
+      assertEquals("User already logged in\n", clients.get(0).call("login user1 pw"));
+      assertEquals(50, server.sessionCount());
+    } finally {
+      for (Client c : clients) {
+        c.close();
+      }
+    }
+  }
+}
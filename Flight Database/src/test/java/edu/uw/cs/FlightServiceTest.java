@@ -28,13 +28,6 @@ public class FlightServiceTest {
   /** Folder name and path that contains the test cases */
   private static String casesFolder;
 
-  /** Denotes a comment */
-  static final String COMMENTS = "#";
-  /** Denotes information mode change */
-  static final String DELIMITER = "*";
-  /** Denotes alternate result */
-  static final String SEPARATOR = "|";
-
   /**
    * Models a single user. Callable from a thread.
    */
@@ -71,7 +64,8 @@ public class FlightServiceTest {
   }
 
   /**
-   * Parse the input test case. Format expected is
+   * Parse the input test case. Format expected is described in
+   * {@link Scenario}
    * 
    * @param filename test case's path and file name
    * @return new User objects with commands to run and expected results
@@ -79,75 +73,9 @@ public class FlightServiceTest {
    */
   static List<User> parse(String filename) throws IOException, SQLException {
     List<User> users = new ArrayList<>();
-    List<String> cmds = new ArrayList<>();
-    List<String> results = new ArrayList<>();
-    String r = "";
-    boolean isCmd = true;
-    BufferedReader reader = new BufferedReader(new FileReader(filename));
-    String l;
-    int lineNumber = 0;
-    while ((l = reader.readLine()) != null) {
-      lineNumber++;
-
-      // Skip comment lines
-      if (l.startsWith(COMMENTS)) {
-        continue;
-
-        // Switch between recording commands and recording results
-      } else if (l.startsWith(DELIMITER)) {
-        if (isCmd) {
-          isCmd = false;
-        } else {
-          // Result recordings finished for a user so user is fully specified
-          results.add(r);
-          users.add(new User(cmds, results));
-          cmds = new ArrayList<>();
-          results = new ArrayList<>();
-          r = "";
-          isCmd = true;
-        }
-
-        // Record an alternate outcome result
-      } else if (l.startsWith(SEPARATOR)) {
-        if (isCmd) {
-          reader.close();
-          throw new IllegalArgumentException("ERROR: input file is malformatted on line: " + lineNumber);
-        } else {
-          results.add(r);
-          r = "";
-        }
-
-        // Build command list or result string
-      } else {
-        // Ignore trailing comments
-        l = l.split(COMMENTS, 2)[0];
-        // Add new command or build current result
-        if (isCmd) {
-          cmds.add(l);
-        } else {
-          r = r + l + "\n";
-        }
-      }
-    }
-    reader.close();
-
-    // Everything should be parsed by now and put into user objects
-    if (cmds.size() > 0 || r.length() > 0 || results.size() > 0) {
-      throw new IllegalArgumentException(String.format(
-          "ERROR: input file is malformatted, extra information found #commands=%s, len(result)=%s, #results=%s",
-          cmds.size(), r.length(), results.size()));
+    for (Scenario.User user : Scenario.parse(filename).users()) {
+      users.add(new User(user.commands(), user.results()));
     }
-
-    // check that all users have the same number of possible scenarios
-    int n = users.get(0).results().size();
-    for (int i = 1; i < users.size(); ++i) {
-      int m = users.get(i).results().size();
-      if (m != n) {
-        throw new IllegalArgumentException(String.format(
-            "ERROR: input file is malformatted, user %s should have %s possible results rather than %s", i, n, m));
-      }
-    }
-
     return users;
   }
 
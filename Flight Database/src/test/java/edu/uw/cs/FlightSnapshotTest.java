@@ -0,0 +1,95 @@
+package edu.uw.cs;
+
+import org.junit.*;
+import org.junit.rules.*;
+
+import java.io.*;
+import java.nio.file.*;
+import java.sql.*;
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that a flight snapshot reads back the cache it was written from,
+ * and that files it cannot trust are turned down
+ */
+public class FlightSnapshotTest {
+  private static final String URL = "jdbc:h2:mem:snapshottest;MODE=MSSQLServer;NON_KEYWORDS=DAY;DB_CLOSE_DELAY=-1";
+  private static final String FLIGHTS = "synthetic 3 1";
+  // rows and fid range of the cache below
+  private static final int[] EXTENT = { 3, 3, 40 };
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private FlightCache cache;
+  private Path file;
+
+  @Before
+  public void setup() throws IOException {
+    FlightCache.Builder b = new FlightCache.Builder();
+    b.add(3, 1, "AS", "24", "Seattle WA", "Boston MA", 300, 10, 100, false);
+    b.add(7, 2, "B6", null, "Boston MA", "Seattle WA", 290, 12, 140, true);
+    b.add(40, 31, "AS", "24", "Seattle WA", "Saint-Étienne", 110, 8, 90, false);
+    cache = b.build();
+    file = folder.getRoot().toPath().resolve("flights.snapshot");
+    FlightSnapshot.write(cache, URL, FLIGHTS, file);
+  }
+
+  @Test
+  public void readsBackEveryRow() throws IOException {
+    assertSame(cache, FlightSnapshot.read(URL, FLIGHTS, EXTENT, file));
+  }
+
+  @Test
+  public void turnsDownOtherDatabasesAndDamage() throws IOException {
+    assertNull(FlightSnapshot.readIfValid("jdbc:h2:mem:other", FLIGHTS, EXTENT, file));
+    assertNull(FlightSnapshot.readIfValid(URL, FLIGHTS, EXTENT, folder.getRoot().toPath().resolve("missing")));
+
+    byte[] bytes = Files.readAllBytes(file);
+    bytes[bytes.length - 1] ^= 1;
+    Files.write(file, bytes);
+    assertNull(FlightSnapshot.readIfValid(URL, FLIGHTS, EXTENT, file));
+
+    Files.write(file, Arrays.copyOf(bytes, bytes.length / 2));
+    assertNull(FlightSnapshot.readIfValid(URL, FLIGHTS, EXTENT, file));
+  }
+
+  @Test
+  public void turnsDownOtherLoadsOfTheSameDatabase() {
+    assertNull(FlightSnapshot.readIfValid(URL, "synthetic 3 2", EXTENT, file));
+    assertNull(FlightSnapshot.readIfValid(URL, FLIGHTS, new int[] { 2, 3, 40 }, file));
+    assertNull(FlightSnapshot.readIfValid(URL, FLIGHTS, new int[] { 3, 3, 41 }, file));
+  }
+
+  @Test
+  public void loadScansThenWritesTheSnapshot() throws SQLException, IOException {
+    Properties configProps = new Properties();
+    configProps.setProperty("hw1.h2.url", URL);
+    configProps.setProperty("hw1.h2.synthetic_flights", "2000");
+    H2Storage storage = new H2Storage(configProps);
+    storage.initialize();
+    Path shared = folder.getRoot().toPath().resolve("shared.snapshot");
+    FlightCache scanned;
+    try (Connection conn = DriverManager.getConnection(URL)) {
+      scanned = FlightCache.load(URL, storage.flightsSource(), shared, conn);
+      assertEquals(2000, scanned.size());
+      assertTrue(Files.isRegularFile(shared));
+      assertSame(scanned, FlightSnapshot.read(URL, storage.flightsSource(), FlightSnapshot.extent(conn), shared));
+    }
+  }
+
+  private static void assertSame(FlightCache expected, FlightCache actual) {
+    assertEquals(expected.size(), actual.size());
+    assertEquals(expected.cityCount(), actual.cityCount());
+    for (int row = 0; row < expected.size(); row++) {
+      assertEquals(expected.flight(row).toString(), actual.flight(row).toString());
+      assertEquals(expected.canceled(row), actual.canceled(row));
+      assertEquals(row, actual.row(expected.fid(row)));
+    }
+    assertEquals(expected.metrics(), actual.metrics());
+  }
+}
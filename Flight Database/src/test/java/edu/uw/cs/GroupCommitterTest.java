@@ -0,0 +1,144 @@
+package edu.uw.cs;
+
+import org.junit.*;
+
+import java.lang.management.*;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import javax.management.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs concurrent sessions with group commit on and checks each gets the
+ * answer it would get alone
+ */
+public class GroupCommitterTest {
+  private static final String URL = "jdbc:h2:mem:groupcommittest;MODE=MSSQLServer;NON_KEYWORDS=DAY;DB_CLOSE_DELAY=-1";
+  private static final int SESSIONS = 8;
+
+  private static Properties config() {
+    Properties configProps = H2QueryTest.config(true);
+    configProps.setProperty("hw1.h2.url", URL);
+    configProps.setProperty("hw1.group_commit.enabled", "true");
+    // wide enough that concurrent sessions land in one group
+    configProps.setProperty("hw1.group_commit.window_ms", "20");
+    return configProps;
+  }
+
+  private static Query open() throws SQLException {
+    Query q = new Query();
+    q.openConnection(config());
+    q.prepareStatements();
+    return q;
+  }
+
+  // Held open for the whole test, so every session shares one committer
+  private Database database;
+
+  @Before
+  public void openDatabase() throws SQLException {
+    Properties configProps = config();
+    Storage storage = Storage.fromConfig(configProps);
+    storage.initialize();
+    database = Database.open(storage, configProps);
+  }
+
+  @After
+  public void closeDatabase() {
+    database.close();
+  }
+
+  @Test
+  public void groupedSessionsKeepTheirOwnResults() throws Exception {
+    Query admin = open();
+    admin.clearTables();
+    for (int i = 0; i < SESSIONS; i++) {
+      // odd users cannot afford their flight
+      admin.transaction_createCustomer("u" + i, "pw", i % 2 == 0 ? 100000 : 1);
+    }
+    admin.closeConnection();
+
+    ExecutorService threads = Executors.newFixedThreadPool(SESSIONS);
+    List<Future<List<String>>> results = new ArrayList<>();
+    CyclicBarrier barrier = new CyclicBarrier(SESSIONS);
+    for (int i = 0; i < SESSIONS; i++) {
+      String user = "u" + i;
+      // a day each, so no two sessions compete for seats
+      int day = 1 + i;
+      results.add(threads.submit(() -> {
+        Query q = open();
+        try {
+          q.transaction_login(user, "pw");
+          q.transaction_search("Seattle WA", "Chicago IL", true, day, 2);
+          List<String> out = new ArrayList<>();
+          barrier.await();
+          out.add(q.transaction_book(0));
+          barrier.await();
+          out.add(q.transaction_book(1));
+          barrier.await();
+          String rid = out.get(0).substring(out.get(0).lastIndexOf(' ') + 1).trim();
+          out.add(q.transaction_pay(Integer.parseInt(rid)));
+          barrier.await();
+          out.add(q.transaction_cancel(Integer.parseInt(rid)));
+          return out;
+        } finally {
+          q.closeConnection();
+        }
+      }));
+    }
+    Set<String> rids = new HashSet<>();
+    for (int i = 0; i < SESSIONS; i++) {
+      List<String> out = results.get(i).get(60, TimeUnit.SECONDS);
+      assertTrue(out.get(0), out.get(0).startsWith("Booked flight(s), reservation ID: "));
+      rids.add(out.get(0));
+      assertEquals("You cannot book two flights in the same day\n", out.get(1));
+      if (i % 2 == 0) {
+        assertTrue(out.get(2), out.get(2).startsWith("Paid reservation: "));
+      } else {
+        assertTrue(out.get(2), out.get(2).startsWith("User has only 1 in account but itinerary costs "));
+      }
+      assertTrue(out.get(3), out.get(3).startsWith("Canceled reservation "));
+    }
+    threads.shutdown();
+    assertEquals(SESSIONS, rids.size());
+
+    // every paid booking was refunded on cancel
+    for (int i = 0; i < SESSIONS; i += 2) {
+      Query check = open();
+      check.transaction_login("u" + i, "pw");
+      check.transaction_search("Seattle WA", "Chicago IL", true, 1 + SESSIONS + i, 1);
+      String booked = check.transaction_book(0);
+      String rid = booked.substring(booked.lastIndexOf(' ') + 1).trim();
+      String paid = check.transaction_pay(Integer.parseInt(rid));
+      int balance = Integer.parseInt(paid.substring(paid.lastIndexOf(' ') + 1).trim());
+      int price = Integer.parseInt(check.transaction_reservations().replaceAll("(?s).* Price: (\\d+)\\n$", "$1"));
+      assertEquals(100000 - price, balance);
+      check.closeConnection();
+    }
+
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    ObjectName committer = database.metrics().name("Component", "GroupCommitter");
+    long groups = (Long) server.getAttribute(committer, "Groups");
+    long grouped = (Long) server.getAttribute(committer, "Grouped");
+    assertTrue((String) server.getAttribute(committer, "Summary"), groups > 0 && grouped > groups);
+  }
+
+  @Test
+  public void stoppingFailsWaitingBodies() throws Exception {
+    // a long window keeps the first body waiting for more
+    GroupCommitter committer = new GroupCommitter(null, null, 60000, 64);
+    ExecutorService threads = Executors.newFixedThreadPool(2);
+    Future<String> first = threads.submit(() -> committer.submit(null, TransactionType.BOOK, "first failed\n", () -> "ran"));
+    Future<String> second = threads.submit(() -> committer.submit(null, TransactionType.PAY, "second failed\n", () -> "ran"));
+    Thread.sleep(100);
+    committer.stop();
+    assertEquals("first failed\n", first.get(10, TimeUnit.SECONDS));
+    assertEquals("second failed\n", second.get(10, TimeUnit.SECONDS));
+    assertEquals("late failed\n", committer.submit(null, TransactionType.CANCEL, "late failed\n", () -> "ran"));
+    threads.shutdown();
+  }
+
+}
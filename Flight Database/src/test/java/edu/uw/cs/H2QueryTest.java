@@ -0,0 +1,317 @@
+package edu.uw.cs;
+
+import org.junit.*;
+
+import java.io.*;
+import java.nio.*;
+import java.sql.*;
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs Query against the embedded H2 backend with synthetic flights
+ */
+public class H2QueryTest {
+  private static final String URL = "jdbc:h2:mem:h2querytest;MODE=MSSQLServer;NON_KEYWORDS=DAY;DB_CLOSE_DELAY=-1";
+
+  private Query q;
+
+  static Properties config(boolean flightIndex) {
+    Properties configProps = new Properties();
+    configProps.setProperty("hw1.storage", "h2");
+    configProps.setProperty("hw1.h2.url", URL);
+    configProps.setProperty("hw1.h2.synthetic_flights", "20000");
+    configProps.setProperty("hw1.flight_index", Boolean.toString(flightIndex));
+    // both sessions share one URL, so a shared cache would answer for both
+    configProps.setProperty("hw1.search_cache.max_entries", "0");
+    return configProps;
+  }
+
+  static Query open(boolean flightIndex) throws SQLException {
+    Query q = new Query();
+    q.openConnection(config(flightIndex));
+    q.prepareStatements();
+    return q;
+  }
+
+  @Before
+  public void setup() throws SQLException {
+    q = open(true);
+    q.clearTables();
+  }
+
+  @After
+  public void teardown() throws SQLException {
+    q.closeConnection();
+  }
+
+  @Test
+  public void indexAnswersLikeTheDatabase() throws SQLException {
+    Query sql = open(false);
+    Random random = new Random(1);
+    for (int i = 0; i < 200; i++) {
+      String origin = SyntheticFlights.CITIES[random.nextInt(12)];
+      String dest = SyntheticFlights.CITIES[random.nextInt(12)];
+      boolean direct = random.nextBoolean();
+      int day = 1 + random.nextInt(SyntheticFlights.DAYS);
+      int k = 1 + random.nextInt(30);
+      assertEquals(origin + " " + dest + " " + direct + " " + day + " " + k,
+          sql.transaction_search(origin, dest, direct, day, k), q.transaction_search(origin, dest, direct, day, k));
+    }
+    sql.closeConnection();
+  }
+
+  @Test
+  public void hugeCountsSearchWhatThereIs() throws SQLException {
+    Query sql = open(false);
+    assertEquals(sql.transaction_search("Seattle WA", "Boston MA", false, 1, 2000000000),
+        q.transaction_search("Seattle WA", "Boston MA", false, 1, 2000000000));
+    sql.closeConnection();
+  }
+
+  @Test
+  public void bookPayCancel() {
+    assertEquals("Created user u1\n", q.transaction_createCustomer("u1", "pw", 100000));
+    assertEquals("Logged in as u1\n", q.transaction_login("u1", "pw"));
+    assertTrue(q.transaction_search("Seattle WA", "Chicago IL", false, 1, 3).startsWith("Itinerary 0: "));
+    assertEquals("Booked flight(s), reservation ID: 1\n", q.transaction_book(0));
+    assertEquals("You cannot book two flights in the same day\n", q.transaction_book(1));
+    assertTrue(q.transaction_reservations().startsWith("Reservation 1 paid: false:\n"));
+    assertTrue(q.transaction_pay(1).startsWith("Paid reservation: 1 remaining balance: "));
+    assertEquals("Canceled reservation 1\n", q.transaction_cancel(1));
+    assertEquals("No reservations found\n", q.transaction_reservations());
+  }
+
+  @Test
+  public void payChecksBalanceAndCancelRefunds() throws SQLException {
+    q.transaction_createCustomer("u1", "pw", 1);
+    q.transaction_login("u1", "pw");
+    q.transaction_search("Seattle WA", "Chicago IL", true, 1, 1);
+    assertEquals("Booked flight(s), reservation ID: 1\n", q.transaction_book(0));
+    String pay = q.transaction_pay(1);
+    assertTrue(pay, pay.startsWith("User has only 1 in account but itinerary costs "));
+    assertTrue(q.transaction_reservations().startsWith("Reservation 1 paid: false:\n"));
+    assertEquals("Cannot find unpaid reservation 2 under user: u1\n", q.transaction_pay(2));
+    assertEquals("Canceled reservation 1\n", q.transaction_cancel(1));
+    assertEquals("Failed to cancel reservation 1\n", q.transaction_cancel(1));
+
+    Query other = open(true);
+    other.transaction_createCustomer("u2", "pw", 100000);
+    other.transaction_login("u2", "pw");
+    other.transaction_search("Seattle WA", "Chicago IL", true, 1, 1);
+    assertEquals("Booked flight(s), reservation ID: 2\n", other.transaction_book(0));
+    String paid = other.transaction_pay(2);
+    assertTrue(paid, paid.startsWith("Paid reservation: 2 remaining balance: "));
+    assertEquals("Cannot find unpaid reservation 2 under user: u2\n", other.transaction_pay(2));
+    assertEquals("Canceled reservation 2\n", other.transaction_cancel(2));
+    other.transaction_search("Seattle WA", "Chicago IL", true, 1, 1);
+    other.transaction_book(0);
+    // the refund restored the balance, so paying again leaves the same amount
+    assertEquals(paid.replace(": 2 ", ": 3 "), other.transaction_pay(3));
+    other.closeConnection();
+  }
+
+  @Test
+  public void bookingChecksCapacityInTheDatabase() throws SQLException {
+    q.transaction_createCustomer("u1", "pw", 100000);
+    q.transaction_login("u1", "pw");
+    String flight = q.transaction_search("Seattle WA", "Chicago IL", true, 1, 1);
+    assertEquals("Booked flight(s), reservation ID: 1\n", q.transaction_book(0));
+    int fid = Integer.parseInt(flight.replaceAll("(?s).*ID: (\\d+) .*", "$1"));
+    int capacity = Integer.parseInt(flight.replaceAll("(?s).* Capacity: (\\d+) .*", "$1"));
+
+    // the rest of the seats go to bookings this process does not see
+    try (Connection conn = DriverManager.getConnection(URL);
+        PreparedStatement insert = conn.prepareStatement("INSERT INTO Reservations VALUES (?, 0, 'u1', ?, NULL, 1, 1)");
+        PreparedStatement take = conn.prepareStatement(SeatInventory.TAKE_SEAT)) {
+      for (int i = 1; i < capacity; i++) {
+        insert.setInt(1, 1000 + i);
+        insert.setInt(2, fid);
+        insert.executeUpdate();
+        take.setInt(1, fid);
+        assertEquals(1, take.executeUpdate());
+      }
+    }
+    Query other = open(true);
+    other.transaction_createCustomer("u2", "pw", 100000);
+    other.transaction_login("u2", "pw");
+    other.transaction_search("Seattle WA", "Chicago IL", true, 1, 1);
+    assertEquals("Booking failed\n", other.transaction_book(0));
+    // seeded again from the database, so this one stops at the count
+    assertEquals("Booking failed\n", other.transaction_book(0));
+    assertEquals("No reservations found\n", other.transaction_reservations());
+    // a cancellation gives the seat back to the flight's row
+    assertEquals("Canceled reservation 1\n", q.transaction_cancel(1));
+    assertTrue(other.transaction_book(0).startsWith("Booked flight(s)"));
+    other.closeConnection();
+  }
+
+  // Splits search output into the flight lines of each itinerary
+  private static List<String> itineraries(String search) {
+    List<String> out = new ArrayList<>();
+    for (String block : search.split("Itinerary \\d+: ")) {
+      if (!block.isEmpty()) {
+        out.add(block.substring(block.indexOf('\n') + 1));
+      }
+    }
+    return out;
+  }
+
+  @Test
+  public void reservationsShowBothLegs() throws SQLException {
+    q.transaction_createCustomer("u1", "pw", 100000);
+    q.transaction_login("u1", "pw");
+    List<String> day1 = itineraries(q.transaction_search("Seattle WA", "Chicago IL", false, 1, 50));
+    int oneHop = 0;
+    while (day1.get(oneHop).split("\n").length != 2) {
+      oneHop++;
+    }
+    assertEquals("Booked flight(s), reservation ID: 1\n", q.transaction_book(oneHop));
+    List<String> day2 = itineraries(q.transaction_search("Seattle WA", "Chicago IL", true, 2, 1));
+    assertEquals("Booked flight(s), reservation ID: 2\n", q.transaction_book(0));
+    q.transaction_pay(2);
+    String expected = "Reservation 1 paid: false:\n" + day1.get(oneHop) + "Reservation 2 paid: true:\n" + day2.get(0);
+    assertEquals(expected, q.transaction_reservations());
+
+    // without the flight cache the flights come from the join
+    Properties configProps = config(false);
+    configProps.setProperty("hw1.flight_cache", "false");
+    Query sql = new Query();
+    sql.openConnection(configProps);
+    sql.prepareStatements();
+    sql.transaction_login("u1", "pw");
+    assertEquals(expected, sql.transaction_reservations());
+    sql.closeConnection();
+  }
+
+  @Test
+  public void sinksGetTheSameResponses() throws IOException {
+    q.transaction_createCustomer("u1", "pw", 100000);
+    q.transaction_login("u1", "pw");
+    StringWriter writer = new StringWriter();
+    q.transaction_search("Seattle WA", "Chicago IL", false, 1, 20, writer);
+    assertEquals(q.transaction_search("Seattle WA", "Chicago IL", false, 1, 20), writer.toString());
+    q.transaction_book(0);
+    CharBuffer buffer = CharBuffer.allocate(1 << 16);
+    q.transaction_reservations(buffer);
+    ((Buffer) buffer).flip();
+    assertEquals(q.transaction_reservations(), buffer.toString());
+    StringBuilder sb = new StringBuilder();
+    assertTrue(FlightService.execute(q, "search \"Seattle WA\" \"Boston MA\" 1 1 5", sb));
+    assertEquals(q.transaction_search("Seattle WA", "Boston MA", true, 1, 5), sb.toString());
+    assertEquals(false, FlightService.execute(q, "quit", sb));
+  }
+
+  @Test
+  public void pagesWalkTheWholeSearch() throws SQLException {
+    Query sql = open(false);
+    String full = q.transaction_search("Seattle WA", "Chicago IL", false, 1, 100000);
+    for (Query session : Arrays.asList(q, sql)) {
+      StringBuilder pages = new StringBuilder();
+      String page = session.transaction_searchPage("Seattle WA", "Chicago IL", false, 1, 40);
+      int count = 1;
+      while (true) {
+        int next = page.indexOf("Next page: ");
+        if (next < 0) {
+          pages.append(page);
+          break;
+        }
+        pages.append(page, 0, next);
+        page = session.transaction_searchNext(page.substring(next + "Next page: ".length()).trim());
+        count++;
+      }
+      assertTrue(count > 2);
+      assertEquals(full, pages.toString());
+    }
+    assertEquals("Invalid search cursor\n", sql.transaction_searchNext("not-a-cursor"));
+    // pages larger than hw1.search_page.max_size are cut to it
+    assertEquals(sql.transaction_searchPage("Seattle WA", "Chicago IL", false, 1, 1000),
+        sql.transaction_searchPage("Seattle WA", "Chicago IL", false, 1, Integer.MAX_VALUE));
+    sql.closeConnection();
+
+    // numbers from later pages stay bookable
+    q.transaction_createCustomer("u1", "pw", 100000);
+    q.transaction_login("u1", "pw");
+    String first = q.transaction_searchPage("Seattle WA", "Chicago IL", false, 1, 3);
+    String cursor = first.substring(first.indexOf("Next page: ") + "Next page: ".length()).trim();
+    assertTrue(q.transaction_searchNext(cursor).startsWith("Itinerary 3: "));
+    assertEquals("Booked flight(s), reservation ID: 1\n", q.transaction_book(4));
+    assertEquals("Reservation 1 paid: false:\n" + itineraries(full).get(4), q.transaction_reservations());
+  }
+
+  @Test
+  public void hopsFindWhatSearchDoesAndBookEveryLeg() throws SQLException {
+    // up to two legs, the same itineraries as search, only ordered by time
+    for (String dest : new String[] { "Chicago IL", "Boston MA", "Atlanta GA" }) {
+      List<String> expected = itineraries(q.transaction_search("Seattle WA", dest, false, 1, 100000));
+      List<String> actual = itineraries(q.transaction_searchHops("Seattle WA", dest, 2, 1, 100000));
+      Collections.sort(expected);
+      Collections.sort(actual);
+      assertEquals(dest, expected, actual);
+    }
+    assertEquals("No flights match your selection\n", q.transaction_searchHops("Seattle WA", "Nowhere", 3, 1, 10));
+
+    q.transaction_createCustomer("u1", "pw", 100000);
+    q.transaction_login("u1", "pw");
+    List<String> hops = itineraries(q.transaction_searchHops("Seattle WA", "Chicago IL", 3, 1, 100000));
+    int threeLegs = 0;
+    while (hops.get(threeLegs).split("\n").length != 3) {
+      threeLegs++;
+    }
+    assertEquals("Booked flight(s), reservation ID: 1\n", q.transaction_book(threeLegs));
+    String expected = "Reservation 1 paid: false:\n" + hops.get(threeLegs);
+    assertEquals(expected, q.transaction_reservations());
+    assertTrue(q.transaction_pay(1).startsWith("Paid reservation: 1 remaining balance: "));
+
+    Properties configProps = config(false);
+    configProps.setProperty("hw1.flight_cache", "false");
+    Query sql = new Query();
+    sql.openConnection(configProps);
+    sql.prepareStatements();
+    sql.transaction_login("u1", "pw");
+    assertEquals(expected.replace("paid: false", "paid: true"), sql.transaction_reservations());
+    assertEquals("Failed to search\n", sql.transaction_searchHops("Seattle WA", "Chicago IL", 3, 1, 10));
+    sql.closeConnection();
+
+    assertEquals("Canceled reservation 1\n", q.transaction_cancel(1));
+    assertEquals("No reservations found\n", q.transaction_reservations());
+  }
+
+  @Test
+  public void sessionsMoveBetweenQueries() throws SQLException {
+    q.transaction_createCustomer("u1", "pw", 100000);
+    q.resumeSession("s1");
+    q.transaction_login("u1", "pw");
+    List<String> found = itineraries(q.transaction_search("Seattle WA", "Chicago IL", false, 1, 10));
+    q.saveSession();
+    q.resumeSession("s2");
+    assertEquals("Cannot book reservations, not logged in\n", q.transaction_book(0));
+
+    // rebuilt from the database when there is no flight cache
+    Properties configProps = config(false);
+    configProps.setProperty("hw1.flight_cache", "false");
+    Query sql = new Query();
+    sql.openConnection(configProps);
+    sql.prepareStatements();
+    sql.resumeSession("s1");
+    assertEquals("Booked flight(s), reservation ID: 1\n", sql.transaction_book(found.size() - 1));
+    assertEquals("Reservation 1 paid: false:\n" + found.get(found.size() - 1), sql.transaction_reservations());
+    sql.endSession("s1");
+    assertEquals("Cannot view reservations, not logged in\n", sql.transaction_reservations());
+    sql.closeConnection();
+
+    q.resumeSession("s1");
+    assertEquals("Cannot view reservations, not logged in\n", q.transaction_reservations());
+  }
+
+  @Test
+  public void batchRunsUntilQuit() throws IOException {
+    StringWriter out = new StringWriter();
+    int commands = FlightService.batch(q, new BufferedReader(new StringReader(
+        "create u1 pw 100\nlogin u1 pw\nreservations\nquit\nlogin u1 pw\n")), out);
+    assertEquals(4, commands);
+    assertEquals("Created user u1\nLogged in as u1\nNo reservations found\nGoodbye\n", out.toString());
+  }
+}
@@ -0,0 +1,64 @@
+package edu.uw.cs;
+
+import org.junit.*;
+
+import java.sql.*;
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests IsolationPolicy
+ */
+public class IsolationPolicyTest {
+  private final Storage h2 = new H2Storage(new Properties());
+
+  @Test
+  public void readsFromSnapshotsAndWritesSerializably() {
+    IsolationPolicy policy = new IsolationPolicy(h2, new Properties());
+    assertEquals(h2.snapshotIsolation(), policy.level(TransactionType.SEARCH));
+    assertEquals(h2.snapshotIsolation(), policy.level(TransactionType.RESERVATIONS));
+    assertEquals(Connection.TRANSACTION_SERIALIZABLE, policy.level(TransactionType.BOOK));
+    assertEquals(Connection.TRANSACTION_SERIALIZABLE, policy.level(TransactionType.PAY));
+  }
+
+  @Test
+  public void settingsOverrideDefaults() {
+    Properties configProps = new Properties();
+    configProps.setProperty("hw1.isolation.default", "repeatable_read");
+    configProps.setProperty("hw1.isolation.search", "read_committed");
+    IsolationPolicy policy = new IsolationPolicy(h2, configProps);
+    assertEquals(Connection.TRANSACTION_READ_COMMITTED, policy.level(TransactionType.SEARCH));
+    assertEquals(Connection.TRANSACTION_REPEATABLE_READ, policy.level(TransactionType.CANCEL));
+    assertEquals(4096, new SqlServerStorage(new Properties()).snapshotIsolation());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsUnknownLevels() {
+    Properties configProps = new Properties();
+    configProps.setProperty("hw1.isolation.book", "chaos");
+    new IsolationPolicy(h2, configProps);
+  }
+
+  @Test
+  public void appliesLevelPerTransaction() throws SQLException {
+    IsolationPolicy policy = new IsolationPolicy(h2, new Properties());
+    try (Connection conn = DriverManager.getConnection("jdbc:h2:mem:isolationpolicytest")) {
+      conn.setAutoCommit(false);
+      int level = policy.apply(conn, conn.getTransactionIsolation(), TransactionType.SEARCH);
+      assertEquals(h2.snapshotIsolation(), level);
+      assertEquals(level, conn.getTransactionIsolation());
+      level = policy.apply(conn, level, TransactionType.BOOK);
+      assertEquals(Connection.TRANSACTION_SERIALIZABLE, level);
+      assertEquals(level, conn.getTransactionIsolation());
+    }
+  }
+
+  @Test
+  public void leavesAConnectionAtTheLevelAlone() throws SQLException {
+    IsolationPolicy policy = new IsolationPolicy(h2, new Properties());
+    // already serializable, so the connection is not touched at all
+    assertEquals(Connection.TRANSACTION_SERIALIZABLE,
+        policy.apply(null, Connection.TRANSACTION_SERIALIZABLE, TransactionType.PAY));
+  }
+}
@@ -0,0 +1,61 @@
+package edu.uw.cs;
+
+import org.junit.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests LatencyHistogram
+ */
+public class LatencyHistogramTest {
+  @Test
+  public void smallValuesAreExact() {
+    LatencyHistogram h = new LatencyHistogram();
+    for (int i = 1; i <= 100; i++) {
+      h.record(i);
+    }
+    assertEquals(50, h.percentile(50));
+    assertEquals(99, h.percentile(99));
+    assertEquals(100, h.percentile(100));
+    assertEquals(50.5, h.mean(), 1e-9);
+    assertEquals(100, h.max());
+  }
+
+  @Test
+  public void largeValuesAreWithinPrecision() {
+    LatencyHistogram h = new LatencyHistogram();
+    for (long v = 1; v <= 1_000_000; v++) {
+      h.record(v);
+    }
+    for (double p : new double[] { 50, 90, 99, 99.9 }) {
+      long exact = (long) Math.ceil(p / 100 * 1_000_000);
+      long reported = h.percentile(p);
+      assertTrue(p + ": " + reported, reported >= exact && reported <= exact * 1.016);
+    }
+    assertEquals(1_000_000, h.percentile(100));
+  }
+
+  @Test
+  public void bucketsCoverEveryValue() {
+    long[] values = { 0, 127, 128, 129, 255, 256, 1 << 20, Long.MAX_VALUE };
+    for (long v : values) {
+      int index = LatencyHistogram.index(v);
+      assertTrue(v + " above its bucket", LatencyHistogram.highest(index) >= v);
+      assertTrue(v + " below its bucket", index == 0 || LatencyHistogram.highest(index - 1) < v);
+    }
+  }
+
+  @Test
+  public void addMergesCounts() {
+    LatencyHistogram a = new LatencyHistogram();
+    LatencyHistogram b = new LatencyHistogram();
+    a.record(10);
+    b.record(1000);
+    b.record(-5);
+    a.add(b);
+    assertEquals(3, a.count());
+    assertEquals(0, a.percentile(1));
+    assertEquals(1000, a.max());
+  }
+}
@@ -0,0 +1,73 @@
+package edu.uw.cs;
+
+import org.junit.*;
+
+import java.io.*;
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the load generator briefly against the embedded backend
+ */
+public class LoadGeneratorTest {
+  // Two users; the second expects a response it will not get
+  private static final String CASE = "# user 1\n" +
+                                     "create user1 user1 100\n" +
+                                     "login user1 user1\n" +
+                                     "quit\n" +
+                                     "*\n" +
+                                     "Created user user1\n" +
+                                     "Logged in as user1\n" +
+                                     "Goodbye\n" +
+                                     "*\n" +
+                                     "# user 2\n" +
+                                     "create user2 user2 100\n" +
+                                     "login user2 wrong\n" +
+                                     "*\n" +
+                                     "Created user user2\n" +
+                                     "Logged in as user2\n" +
+                                     "*\n";
+
+  @Test
+  public void rewritesUsersAndReservations() {
+    Map<Integer, Integer> reservations = new HashMap<>();
+    reservations.put(1, 41);
+    assertEquals("create user1_7_ pw 100", LoadGenerator.rewrite("create user1 pw 100", "_7_", reservations));
+    assertEquals("login \"a b_7_\" pw", LoadGenerator.rewrite("login \"a b\" pw", "_7_", reservations));
+    assertEquals("pay 41", LoadGenerator.rewrite("pay 1", "_7_", reservations));
+    assertEquals("cancel 2", LoadGenerator.rewrite("cancel 2", "_7_", reservations));
+    assertEquals("search \"Seattle WA\" \"Boston MA\" 1 1 1",
+        LoadGenerator.rewrite("search \"Seattle WA\" \"Boston MA\" 1 1 1", "_7_", reservations));
+  }
+
+  @Test
+  public void parsesCaseFiles() throws IOException {
+    Scenario s = Scenario.parse("case", new BufferedReader(new StringReader(CASE)));
+    assertEquals(2, s.users().size());
+    assertEquals(1, s.outcomes());
+    assertEquals(Arrays.asList("create user1 user1 100", "login user1 user1", "quit"), s.users().get(0).commands());
+    assertEquals("Created user user2\nLogged in as user2\n", s.users().get(1).results().get(0));
+  }
+
+  @Test
+  public void reportsLatencyAndUnexpectedResponses() throws Exception {
+    Scenario s = Scenario.parse("case", new BufferedReader(new StringReader(CASE)));
+    LoadGenerator load = new LoadGenerator(Collections.singletonList(s), H2QueryTest.config(true), 8);
+    load.runClosed(4, 300);
+    String report = load.report("concurrency=4", 0.3);
+    Map<String, String[]> rows = new HashMap<>();
+    for (String line : report.split("\n")) {
+      String[] cols = line.trim().split("\\s+");
+      rows.put(cols[0], cols);
+    }
+    long runs = Long.parseLong(rows.get("scenario_run")[1]);
+    assertTrue(report, runs > 0);
+    assertEquals(report, 2 * runs, Long.parseLong(rows.get("create")[1]));
+    assertEquals(report, "0", rows.get("create")[2]);
+    // only user 2's login is unexpected
+    assertEquals(report, runs, Long.parseLong(rows.get("login")[2]));
+    assertEquals(report, "0", rows.get("quit")[2]);
+  }
+}
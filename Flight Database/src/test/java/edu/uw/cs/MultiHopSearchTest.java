@@ -0,0 +1,162 @@
+package edu.uw.cs;
+
+import org.junit.*;
+
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks multi-hop search against every itinerary worked out by brute force,
+ * and against the flight index for one and two legs
+ */
+public class MultiHopSearchTest {
+  private static final String[] CITIES = { "A", "B", "C", "D", "E", "F" };
+
+  private FlightCache flights;
+  private FlightIndex index;
+
+  @Before
+  public void setup() {
+    Random random = new Random(7);
+    FlightCache.Builder b = new FlightCache.Builder();
+    for (int fid = 1; fid <= 120; fid++) {
+      int origin = random.nextInt(CITIES.length);
+      int dest = (origin + 1 + random.nextInt(CITIES.length - 1)) % CITIES.length;
+      // few distinct times, so ties on time are common
+      b.add(fid, 1 + random.nextInt(2), "AS", Integer.toString(fid), CITIES[origin], CITIES[dest],
+          10 * (1 + random.nextInt(5)), 10, 100, random.nextInt(8) == 0);
+    }
+    flights = b.build();
+    index = new FlightIndex(flights);
+  }
+
+  @Test
+  public void findsTheShortestInFidOrder() {
+    for (int legs = 1; legs <= 4; legs++) {
+      MultiHopSearch search = new MultiHopSearch(index, legs);
+      for (String origin : CITIES) {
+        for (String dest : CITIES) {
+          List<List<Integer>> all = bruteForce(origin, dest, 1, legs);
+          for (int k : new int[] { 1, 3, 20, 100000 }) {
+            List<List<Integer>> expected = all.subList(0, Math.min(k, all.size()));
+            assertEquals(origin + " " + dest + " " + legs + " " + k, expected, fids(search.search(origin, dest, 1, k)));
+          }
+        }
+      }
+    }
+  }
+
+  @Test
+  public void twoLegsAreTheIndexItineraries() {
+    MultiHopSearch search = new MultiHopSearch(index, 2);
+    for (String origin : CITIES) {
+      for (String dest : CITIES) {
+        if (origin.equals(dest)) {
+          continue;
+        }
+        List<Query.Itinerary> expected = new ArrayList<>();
+        expected.addAll(index.itineraries(index.direct(origin, dest, 2, 100000)));
+        expected.addAll(index.itineraries(index.indirect(origin, dest, 2, 100000)));
+        Collections.sort(expected);
+        assertEquals(fids(expected), fids(search.search(origin, dest, 2, 100000)));
+      }
+    }
+  }
+
+  @Test
+  public void itineraryKeepsEveryLeg() {
+    List<Query.Itinerary> found = new MultiHopSearch(index, 4).search("A", "F", 1, 100000);
+    Query.Itinerary longest = found.get(0);
+    for (Query.Itinerary it : found) {
+      if (it.count > longest.count) {
+        longest = it;
+      }
+    }
+    assertEquals(4, longest.count);
+    int time = 0;
+    int price = 0;
+    for (Query.Flight f : longest.legs) {
+      time += f.time;
+      price += f.price;
+    }
+    assertEquals(time, longest.totalTime);
+    assertEquals(price, longest.price());
+    assertEquals(longest.legs[0], longest.f1);
+    assertEquals(longest.legs[1], longest.f2);
+  }
+
+  @Test
+  public void nothingForUnknownCitiesDaysOrLimits() {
+    MultiHopSearch search = new MultiHopSearch(index, 3);
+    assertTrue(search.search("Nowhere", "A", 1, 10).isEmpty());
+    assertTrue(search.search("A", "A", 1, 10).isEmpty());
+    assertTrue(search.search("A", "B", 31, 10).isEmpty());
+    assertTrue(search.search("A", "B", 1, 0).isEmpty());
+  }
+
+  /**
+   * Every itinerary of up to {@code legs} flights that takes no city twice, in
+   * output order: time, then fids leg by leg, then fewer legs
+   */
+  private List<List<Integer>> bruteForce(String origin, String dest, int day, int legs) {
+    List<List<Integer>> found = new ArrayList<>();
+    extend(new ArrayList<>(), new HashSet<>(Collections.singleton(origin)), origin, dest, day, legs, found);
+    found.sort((a, b) -> {
+      int c = Integer.compare(time(a), time(b));
+      for (int i = 0; c == 0 && i < a.size() && i < b.size(); i++) {
+        c = Integer.compare(a.get(i), b.get(i));
+      }
+      return c != 0 ? c : Integer.compare(a.size(), b.size());
+    });
+    return found;
+  }
+
+  private void extend(List<Integer> path, Set<String> seen, String at, String dest, int day, int legs,
+      List<List<Integer>> found) {
+    if (path.size() == legs) {
+      return;
+    }
+    for (int r = 0; r < flights.size(); r++) {
+      Query.Flight f = flights.flight(r);
+      if (f.dayOfMonth != day || !f.originCity.equals(at) || seen.contains(f.destCity)) {
+        continue;
+      }
+      // as in search, only a direct flight may be canceled
+      boolean direct = path.isEmpty() && f.destCity.equals(dest);
+      if (flights.canceled(r) && !direct) {
+        continue;
+      }
+      path.add(f.fid);
+      if (f.destCity.equals(dest)) {
+        found.add(new ArrayList<>(path));
+      } else {
+        seen.add(f.destCity);
+        extend(path, seen, f.destCity, dest, day, legs, found);
+        seen.remove(f.destCity);
+      }
+      path.remove(path.size() - 1);
+    }
+  }
+
+  private int time(List<Integer> fids) {
+    int t = 0;
+    for (int fid : fids) {
+      t += flights.time(flights.row(fid));
+    }
+    return t;
+  }
+
+  private static List<List<Integer>> fids(List<Query.Itinerary> itineraries) {
+    List<List<Integer>> out = new ArrayList<>();
+    for (Query.Itinerary it : itineraries) {
+      List<Integer> fids = new ArrayList<>();
+      for (int fid : it.fids()) {
+        fids.add(fid);
+      }
+      out.add(fids);
+    }
+    return out;
+  }
+}
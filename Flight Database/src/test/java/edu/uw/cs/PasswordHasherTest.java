@@ -0,0 +1,38 @@
+package edu.uw.cs;
+
+import org.junit.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Checks the hashing workers against hashing on the calling thread
+ */
+public class PasswordHasherTest {
+
+  @Test
+  public void workersHashLikeTheCallingThread() {
+    PasswordHasher hasher = new PasswordHasher(2, 4, 5000);
+    byte[] salt = hasher.newSalt();
+    List<Future<byte[]>> hashes = new ArrayList<>();
+    for (int i = 0; i < 4; i++) {
+      hashes.add(hasher.submit("pw" + i, salt));
+    }
+    for (int i = 0; i < 4; i++) {
+      assertArrayEquals(PasswordHasher.hash("pw" + i, salt), PasswordHasher.await(hashes.get(i)));
+    }
+    assertFalse(Arrays.equals(PasswordHasher.hash("pw", salt), PasswordHasher.hash("pw", hasher.newSalt())));
+    assertEquals(0, hasher.queueDepth());
+  }
+
+  @Test(expected = RejectedExecutionException.class)
+  public void turnsCallersAwayWhenFull() {
+    PasswordHasher hasher = new PasswordHasher(1, 0, 0);
+    hasher.submit("pw", hasher.newSalt());
+    hasher.submit("pw", hasher.newSalt());
+  }
+}
@@ -0,0 +1,79 @@
+package edu.uw.cs;
+
+import org.junit.*;
+
+import java.lang.management.*;
+import java.util.*;
+import javax.management.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs a few transactions and checks what the metrics, and their MBeans, show
+ */
+public class QueryMetricsTest {
+  private static final String URL = "jdbc:h2:mem:querymetricstest;MODE=MSSQLServer;NON_KEYWORDS=DAY;DB_CLOSE_DELAY=-1";
+
+  @Test
+  public void countsTransactionsStatementsAndSessions() throws Exception {
+    Properties configProps = H2QueryTest.config(false);
+    configProps.setProperty("hw1.h2.url", URL);
+    configProps.setProperty("hw1.flight_cache", "false");
+    Storage storage = Storage.fromConfig(configProps);
+    storage.initialize();
+    // held open past the Query, so the metrics are still published
+    Database database = Database.open(storage, configProps);
+    QueryMetrics metrics = database.metrics();
+
+    Query q = new Query();
+    q.openConnection(configProps);
+    q.prepareStatements();
+    assertEquals(1, metrics.sessions());
+    q.clearTables();
+    q.transaction_createCustomer("user", "pw", 1000);
+    q.transaction_login("user", "pw");
+    q.transaction_search("Seattle WA", "Chicago IL", true, 1, 1);
+    String booked = q.transaction_book(0);
+    String rid = booked.substring(booked.lastIndexOf(' ') + 1).trim();
+    q.transaction_pay(Integer.parseInt(rid));
+    q.transaction_pay(Integer.parseInt(rid));
+    q.closeConnection();
+
+    assertEquals(0, metrics.sessions());
+    assertEquals(0, metrics.inFlight());
+    assertEquals(2, metrics.transactions(TransactionType.PAY));
+    assertEquals(1, metrics.commits(TransactionType.PAY));
+    assertEquals(1, metrics.rollbacks(TransactionType.PAY));
+    assertEquals(1, metrics.commits(TransactionType.BOOK));
+    assertEquals(1, metrics.executions(CannedStatement.GET_DIRECT));
+    assertEquals(2, metrics.executions(CannedStatement.PAY_RESERVATION));
+    assertEquals(1, metrics.executions(CannedStatement.DEBIT_BALANCE));
+
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    ObjectName pay = metrics.name("Transaction", "pay");
+    assertEquals(2L, server.getAttribute(pay, "Count"));
+    assertEquals(1L, server.getAttribute(pay, "Rollbacks"));
+    // the paid run reads, debits and commits
+    assertEquals(3L, server.getAttribute(pay, "MaxRoundTrips"));
+    assertTrue((Long) server.getAttribute(pay, "MaxMicros") > 0);
+    assertEquals(1L, server.getAttribute(metrics.name("Statement", "GET_DIRECT"), "Count"));
+    assertEquals(0, server.getAttribute(metrics.name("Sessions", null), "OpenSessions"));
+    ObjectName hasher = metrics.name("Component", "PasswordHasher");
+    assertEquals(0, server.getAttribute(hasher, "QueueDepth"));
+    // one hash to create the user, one to log in
+    assertEquals(2L, server.getAttribute(hasher, "Hashes"));
+    assertTrue((Long) server.getAttribute(hasher, "MaxHashMicros") > 0);
+    ObjectName pool = metrics.name("Component", "ConnectionPool");
+    assertEquals(0, server.getAttribute(pool, "Active"));
+    // a connection for each transaction at least
+    assertTrue((Long) server.getAttribute(pool, "Borrows") >= 6);
+    assertEquals(1, server.getAttribute(metrics.name("Component", "SeatInventory"), "Flights"));
+
+    database.close();
+    assertFalse(server.isRegistered(pay));
+    assertFalse(server.isRegistered(hasher));
+    assertFalse(server.isRegistered(pool));
+  }
+}
@@ -0,0 +1,72 @@
+package edu.uw.cs;
+
+import org.junit.*;
+
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that reservation IDs are unique across threads and restart cleanly
+ */
+public class ReservationIdsTest {
+  private static final String URL = "jdbc:h2:mem:ridtest;MODE=MSSQLServer;DB_CLOSE_DELAY=-1";
+
+  @BeforeClass
+  public static void createSequence() throws SQLException {
+    try (Connection conn = DriverManager.getConnection(URL); Statement stmt = conn.createStatement()) {
+      stmt.execute("CREATE SEQUENCE ReservationBlocks AS INT START WITH 0 INCREMENT BY 1");
+    }
+  }
+
+  @Before
+  public void restart() throws SQLException {
+    try (Connection conn = DriverManager.getConnection(URL); Statement stmt = conn.createStatement()) {
+      stmt.execute(ReservationIds.RESET_BLOCKS);
+    }
+  }
+
+  @Test
+  public void concurrentIdsAreUniqueAndDense() throws Exception {
+    ReservationIds ids = new ReservationIds(7);
+    int threads = 8;
+    int perThread = 500;
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    List<Future<List<Integer>>> futures = new ArrayList<>();
+    for (int t = 0; t < threads; t++) {
+      futures.add(pool.submit(() -> {
+        List<Integer> taken = new ArrayList<>();
+        try (Connection conn = DriverManager.getConnection(URL)) {
+          for (int i = 0; i < perThread; i++) {
+            taken.add(ids.next(conn));
+          }
+        }
+        return taken;
+      }));
+    }
+    Set<Integer> all = new TreeSet<>();
+    for (Future<List<Integer>> f : futures) {
+      all.addAll(f.get());
+    }
+    pool.shutdown();
+    assertEquals(threads * perThread, all.size());
+    assertEquals(Integer.valueOf(1), ((TreeSet<Integer>) all).first());
+    assertEquals(Integer.valueOf(threads * perThread), ((TreeSet<Integer>) all).last());
+  }
+
+  @Test
+  public void resetStartsOverAfterSequenceRestart() throws SQLException {
+    ReservationIds ids = new ReservationIds(3);
+    try (Connection conn = DriverManager.getConnection(URL)) {
+      assertEquals(1, ids.next(conn));
+      assertEquals(2, ids.next(conn));
+      try (Statement stmt = conn.createStatement()) {
+        stmt.execute(ReservationIds.RESET_BLOCKS);
+      }
+      ids.reset();
+      assertEquals(1, ids.next(conn));
+    }
+  }
+}
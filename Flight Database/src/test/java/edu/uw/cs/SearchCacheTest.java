@@ -0,0 +1,128 @@
+package edu.uw.cs;
+
+import org.junit.*;
+
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks how cached search results answer smaller and larger searches
+ */
+public class SearchCacheTest {
+
+  private static Query.Itinerary direct(int fid, int time) {
+    return new Query.Itinerary(new Query.Flight(fid, 1, "AS", "1", "A", "C", time, 10, 100));
+  }
+
+  private static Query.Itinerary oneHop(int fid1, int fid2, int time) {
+    return new Query.Itinerary(new Query.Flight(fid1, 1, "AS", "1", "A", "B", time / 2, 10, 100),
+        new Query.Flight(fid2, 1, "AS", "1", "B", "C", time - time / 2, 10, 100));
+  }
+
+  // 3 slow directs and 7 fast one-hops, fetched for k = 10
+  private static SearchResult slowDirects() {
+    List<Query.Itinerary> d = Arrays.asList(direct(1, 500), direct(2, 510), direct(3, 520));
+    List<Query.Itinerary> i = new ArrayList<>();
+    for (int n = 0; n < 7; n++) {
+      i.add(oneHop(100 + n, 200 + n, 100 + n));
+    }
+    return new SearchResult(d, i, 10, false);
+  }
+
+  private static List<Integer> fids(List<Query.Itinerary> itineraries) {
+    List<Integer> fids = new ArrayList<>();
+    for (Query.Itinerary it : itineraries) {
+      fids.add(it.f1.fid);
+    }
+    return fids;
+  }
+
+  @Test
+  public void smallerSearchKeepsAllDirectsItCanHold() {
+    SearchResult r = slowDirects();
+    assertEquals(Arrays.asList(100, 101, 1, 2, 3), fids(r.top(5)));
+    assertEquals(Arrays.asList(1, 2), fids(r.top(2)));
+    assertEquals(10, r.top(10).size());
+  }
+
+  @Test
+  public void topMatchesStableSortOfCandidates() {
+    List<Query.Itinerary> d = Arrays.asList(direct(5, 200), direct(7, 300));
+    List<Query.Itinerary> i = Arrays.asList(oneHop(5, 9, 200), oneHop(6, 1, 250));
+    List<Query.Itinerary> expected = new ArrayList<>(d);
+    expected.addAll(i);
+    Collections.sort(expected);
+    assertEquals(expected, new SearchResult(d, i, 4, false).top(4));
+  }
+
+  @Test
+  public void coversSmallerLimitsAndExhaustedResults() {
+    SearchResult r = slowDirects();
+    assertTrue(r.covers(10));
+    assertFalse(r.covers(11));
+
+    SearchResult exhausted = new SearchResult(Arrays.asList(direct(1, 500)), Arrays.asList(oneHop(2, 3, 90)), 5, false);
+    assertTrue(exhausted.covers(100));
+    assertEquals(2, exhausted.top(100).size());
+
+    SearchResult none = new SearchResult(new ArrayList<>(), new ArrayList<>(), 3, false);
+    assertTrue(none.covers(50));
+    assertTrue(none.top(50).isEmpty());
+  }
+
+  @Test
+  public void hitsForSmallerKAndMissesForLarger() {
+    SearchCache cache = new SearchCache(10, 60000);
+    assertNull(cache.get("A", "C", false, 1, 10));
+    cache.put("A", "C", false, 1, slowDirects());
+    assertSame(cache.get("A", "C", false, 1, 4), cache.get("A", "C", false, 1, 10));
+    assertNull(cache.get("A", "C", false, 1, 11));
+    assertNull(cache.get("A", "C", true, 1, 4));
+    assertEquals(2, cache.hitCount());
+    assertEquals(3, cache.missCount());
+    // and the same over JMX
+    SearchCache.CacheMBean mbean = cache.mbean();
+    assertEquals(2, mbean.getHits());
+    assertEquals(3, mbean.getMisses());
+    assertEquals(1, mbean.getSize());
+  }
+
+  @Test
+  public void evictsLeastRecentlyUsed() {
+    SearchCache cache = new SearchCache(2, 60000);
+    cache.put("A", "C", false, 1, slowDirects());
+    cache.put("A", "C", false, 2, slowDirects());
+    assertNotNull(cache.get("A", "C", false, 1, 1));
+    cache.put("A", "C", false, 3, slowDirects());
+    assertNull(cache.get("A", "C", false, 2, 1));
+    assertNotNull(cache.get("A", "C", false, 1, 1));
+    assertEquals(1, cache.evictionCount());
+    assertEquals(1, cache.mbean().getEvictions());
+  }
+
+  @Test
+  public void expiresAfterTtl() {
+    SearchCache cache = new SearchCache(10, -1);
+    cache.put("A", "C", false, 1, slowDirects());
+    assertNull(cache.get("A", "C", false, 1, 1));
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  public void invalidatesEntriesShowingAFlight() {
+    SearchCache cache = new SearchCache(10, 60000);
+    cache.put("A", "C", false, 1, slowDirects());
+    cache.put("A", "C", true, 1, new SearchResult(Arrays.asList(direct(1, 500)), new ArrayList<>(), 1, true));
+    cache.invalidateFlight(203);
+    assertNull(cache.get("A", "C", false, 1, 1));
+    assertNotNull(cache.get("A", "C", true, 1, 1));
+    cache.invalidateFlight(1);
+    assertEquals(0, cache.size());
+  }
+}
@@ -0,0 +1,49 @@
+package edu.uw.cs;
+
+import org.junit.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that cursors survive being passed around as tokens
+ */
+public class SearchCursorTest {
+  @Test
+  public void roundTrips() {
+    Query.Itinerary last = new Query.Itinerary(new Query.Flight(7, 3, "AA", "12", "Seattle WA", "Chicago IL", 100,
+        5, 300), new Query.Flight(9, 3, "AA", "13", "Chicago IL", "Boston MA", 50, 5, 200));
+    String token = SearchCursor.first("Seattle WA", "Boston MA", false, 3, 10).after(last).encode();
+    assertTrue(token, token.matches("[A-Za-z0-9_-]+"));
+    SearchCursor cursor = SearchCursor.decode(token, 100);
+    assertEquals("Seattle WA", cursor.originCity);
+    assertEquals("Boston MA", cursor.destinationCity);
+    assertEquals(false, cursor.directFlight);
+    assertEquals(3, cursor.dayOfMonth);
+    assertEquals(10, cursor.pageSize);
+    assertEquals(150, cursor.totalTime);
+    assertEquals(7, cursor.fid1);
+    assertEquals(9, cursor.fid2);
+
+    String direct = SearchCursor.first("Seattle WA", "Boston MA", true, 3, 10)
+        .after(new Query.Itinerary(last.f1)).encode();
+    assertEquals(SearchCursor.NO_FLIGHT, SearchCursor.decode(direct, 100).fid2);
+  }
+
+  @Test
+  public void cutsThePageSizeToTheMost() {
+    Query.Itinerary last = new Query.Itinerary(new Query.Flight(7, 3, "AA", "12", "Seattle WA", "Boston MA", 100,
+        5, 300));
+    String token = SearchCursor.first("Seattle WA", "Boston MA", true, 3, Integer.MAX_VALUE).after(last).encode();
+    assertEquals(100, SearchCursor.decode(token, 100).pageSize);
+  }
+
+  @Test
+  public void rejectsOtherTokens() {
+    assertNull(SearchCursor.decode("not a cursor", 100));
+    assertNull(SearchCursor.decode("", 100));
+    // a cursor before the first page is never handed out
+    assertNull(SearchCursor.decode(SearchCursor.first("a", "b", true, 1, 1).encode(), 100));
+  }
+}
@@ -0,0 +1,127 @@
+package edu.uw.cs;
+
+import org.junit.*;
+
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the seat inventory never oversells and takes both legs or neither
+ */
+public class SeatInventoryTest {
+  private static final String URL = "jdbc:h2:mem:seattest;MODE=MSSQLServer;DB_CLOSE_DELAY=-1";
+
+  private Connection conn;
+
+  @BeforeClass
+  public static void createTables() throws SQLException {
+    try (Connection conn = DriverManager.getConnection(URL); Statement stmt = conn.createStatement()) {
+      stmt.execute("CREATE TABLE FlightSeats (fid INT PRIMARY KEY, capacity INT, seats_left INT)");
+      // flight 1 is on two reservations, 3 and 4 on one
+      stmt.execute("INSERT INTO FlightSeats VALUES (1, 3, 1), (2, 1, 1), (3, 100, 99), (4, 2, 1)");
+    }
+  }
+
+  @Before
+  public void connect() throws SQLException {
+    conn = DriverManager.getConnection(URL);
+  }
+
+  @After
+  public void disconnect() throws SQLException {
+    conn.close();
+  }
+
+  @Test
+  public void seedsFromTheFlightsRow() throws SQLException {
+    SeatInventory seats = new SeatInventory(URL, Connection.TRANSACTION_READ_COMMITTED);
+    assertEquals(-1, seats.remaining(1));
+    assertTrue(seats.reserve(1, SeatInventory.NO_FLIGHT));
+    assertEquals(0, seats.remaining(1));
+    assertFalse(seats.reserve(1, SeatInventory.NO_FLIGHT));
+    seats.release(1, SeatInventory.NO_FLIGHT);
+    assertEquals(1, seats.remaining(1));
+  }
+
+  @Test
+  public void takesBothLegsOrNeither() throws SQLException {
+    SeatInventory seats = new SeatInventory(URL, Connection.TRANSACTION_READ_COMMITTED);
+    assertTrue(seats.reserve(3, 2));
+    assertEquals(98, seats.remaining(3));
+    assertEquals(0, seats.remaining(2));
+    assertFalse(seats.reserve(3, 2));
+    assertEquals(98, seats.remaining(3));
+  }
+
+  @Test
+  public void takesEveryLegOrNone() throws SQLException {
+    SeatInventory seats = new SeatInventory(URL, Connection.TRANSACTION_READ_COMMITTED);
+    // flight 4 has one seat left
+    assertTrue(seats.reserve(new int[] { 3, 4, 1 }));
+    assertEquals(98, seats.remaining(3));
+    assertEquals(0, seats.remaining(4));
+    assertEquals(0, seats.remaining(1));
+    assertFalse(seats.reserve(new int[] { 3, 2, 4 }));
+    assertEquals(98, seats.remaining(3));
+    assertEquals(1, seats.remaining(2));
+    seats.release(new int[] { 3, 4, 1 });
+    assertEquals(1, seats.remaining(4));
+  }
+
+  @Test
+  public void reseedsFromWhatIsCommitted() throws SQLException {
+    SeatInventory seats = new SeatInventory(URL, Connection.TRANSACTION_READ_COMMITTED);
+    assertTrue(seats.reserve(4, SeatInventory.NO_FLIGHT));
+    assertEquals(0, seats.remaining(4));
+    // canceled elsewhere without the inventory knowing
+    try (Statement stmt = conn.createStatement()) {
+      stmt.execute("UPDATE FlightSeats SET seats_left = 2 WHERE fid = 4");
+      try {
+        seats.reseed(new int[] { 4 });
+        assertEquals(2, seats.remaining(4));
+        // a seat taken before the reseed goes back to the counter in use
+        seats.release(4, SeatInventory.NO_FLIGHT);
+        assertEquals(3, seats.remaining(4));
+      } finally {
+        stmt.execute("UPDATE FlightSeats SET seats_left = 1 WHERE fid = 4");
+      }
+    }
+    seats.close();
+  }
+
+  @Test(expected = SQLException.class)
+  public void unknownFlightFails() throws SQLException {
+    new SeatInventory(URL, Connection.TRANSACTION_READ_COMMITTED).reserve(42, SeatInventory.NO_FLIGHT);
+  }
+
+  @Test
+  public void concurrentBookingsNeverOversell() throws Exception {
+    SeatInventory seats = new SeatInventory(URL, Connection.TRANSACTION_READ_COMMITTED);
+    AtomicInteger booked = new AtomicInteger();
+    ExecutorService pool = Executors.newFixedThreadPool(8);
+    List<Future<?>> futures = new ArrayList<>();
+    for (int t = 0; t < 8; t++) {
+      futures.add(pool.submit(() -> {
+        for (int i = 0; i < 50; i++) {
+          if (seats.reserve(3, i % 2 == 0 ? SeatInventory.NO_FLIGHT : 1)) {
+            booked.incrementAndGet();
+          }
+        }
+        return null;
+      }));
+    }
+    for (Future<?> f : futures) {
+      f.get();
+    }
+    pool.shutdown();
+    assertEquals(99, booked.get());
+    assertEquals(0, seats.remaining(3));
+    assertTrue(seats.remaining(1) >= 0);
+  }
+}
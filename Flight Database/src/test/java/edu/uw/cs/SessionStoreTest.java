@@ -0,0 +1,92 @@
+package edu.uw.cs;
+
+import org.junit.*;
+
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Checks packing of search results and how sessions expire and are evicted
+ */
+public class SessionStoreTest {
+
+  private static Query.Flight flight(int fid, int time, int price) {
+    return new Query.Flight(fid, 1, "AS", "1", "A", "B", time, 10, price);
+  }
+
+  private static SessionStore.State loggedIn(String username) {
+    return new SessionStore.State(username, null);
+  }
+
+  @Test
+  public void packsFidsAndTotals() {
+    SessionStore.Itineraries packed = SessionStore.Itineraries.of(Arrays.asList(
+        new Query.Itinerary(flight(7, 100, 50)),
+        new Query.Itinerary(new Query.Flight[] { flight(3, 60, 20), flight(9, 70, 30), flight(4, 80, 40) })));
+    packed = packed.append(Collections.singletonList(new Query.Itinerary(flight(1, 120, 10), flight(2, 30, 5))));
+    assertEquals(3, packed.size());
+    assertEquals(1, packed.legs(0));
+    assertEquals(7, packed.fid(0, 0));
+    assertEquals(100, packed.totalTime(0));
+    assertEquals(50, packed.price(0));
+    assertEquals(3, packed.legs(1));
+    assertEquals(Arrays.asList(3, 9, 4), Arrays.asList(packed.fid(1, 0), packed.fid(1, 1), packed.fid(1, 2)));
+    assertEquals(210, packed.totalTime(1));
+    assertEquals(90, packed.price(1));
+    assertEquals(2, packed.fid(2, 1));
+    assertEquals(150, packed.totalTime(2));
+    assertEquals(4L * (4 + 4 + 6 + 5), packed.footprintBytes());
+  }
+
+  @Test
+  public void idleSessionsExpire() throws InterruptedException {
+    SessionStore store = new SessionStore(200, Long.MAX_VALUE);
+    store.put("a", loggedIn("u1"));
+    store.put("b", loggedIn("u2"));
+    Thread.sleep(120);
+    assertNotNull(store.get("a"));
+    Thread.sleep(120);
+    // b was idle the whole time, a only since it was read
+    assertNull(store.get("b"));
+    assertEquals("u1", store.get("a").username);
+    assertEquals(1, store.size());
+    assertEquals(1, store.mbean().getExpirations());
+  }
+
+  @Test
+  public void leastRecentlyUsedGoOverTheCap() {
+    SessionStore probe = new SessionStore(Long.MAX_VALUE, Long.MAX_VALUE);
+    probe.put("s0", loggedIn("u0"));
+    long each = probe.footprintBytes();
+
+    SessionStore store = new SessionStore(Long.MAX_VALUE, 3 * each);
+    store.put("s0", loggedIn("u0"));
+    store.put("s1", loggedIn("u1"));
+    store.put("s2", loggedIn("u2"));
+    store.get("s0");
+    store.put("s3", loggedIn("u3"));
+    assertEquals(3, store.size());
+    assertNull(store.get("s1"));
+    assertNotNull(store.get("s0"));
+    assertEquals(3 * each, store.footprintBytes());
+    assertEquals(1, store.mbean().getEvictions());
+
+    SessionStore.State replaced = loggedIn("u9");
+    store.put("s0", replaced);
+    assertSame(replaced, store.get("s0"));
+    store.remove("s0");
+    store.remove("s0");
+    assertEquals(2 * each, store.footprintBytes());
+  }
+
+  @Test
+  public void idsAreDistinct() {
+    assertNotEquals(SessionStore.newId(), SessionStore.newId());
+    assertEquals(22, SessionStore.newId().length());
+  }
+}
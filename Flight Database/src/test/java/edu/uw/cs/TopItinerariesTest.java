@@ -0,0 +1,79 @@
+package edu.uw.cs;
+
+import org.junit.*;
+
+import java.util.*;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the packed itinerary keys and the bounded heap
+ */
+public class TopItinerariesTest {
+
+  @Test
+  public void keyRoundTrips() {
+    long key = TopItineraries.key(252, 1034748, 1035037);
+    assertEquals(252, TopItineraries.totalTime(key));
+    assertEquals(1034748, TopItineraries.firstLeg(key));
+    assertEquals(1035037, TopItineraries.secondLeg(key));
+
+    long direct = TopItineraries.key(TopItineraries.MAX_TIME, TopItineraries.MAX_LEG, TopItineraries.NO_LEG);
+    assertEquals(TopItineraries.MAX_TIME, TopItineraries.totalTime(direct));
+    assertEquals(TopItineraries.MAX_LEG, TopItineraries.firstLeg(direct));
+    assertEquals(TopItineraries.NO_LEG, TopItineraries.secondLeg(direct));
+  }
+
+  @Test
+  public void keysOrderLikeItineraries() {
+    assertTrue(TopItineraries.key(100, 9, 9) < TopItineraries.key(101, 0, 0));
+    assertTrue(TopItineraries.key(100, 1, 9) < TopItineraries.key(100, 2, 0));
+    assertTrue(TopItineraries.key(100, 1, 1) < TopItineraries.key(100, 1, 2));
+    assertTrue(TopItineraries.key(100, 1, TopItineraries.NO_LEG) < TopItineraries.key(100, 1, 0));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void keyRejectsNegativeTime() {
+    TopItineraries.key(-1, 0, 0);
+  }
+
+  @Test
+  public void keepsTheSmallestKeys() {
+    Random random = new Random(344);
+    long[] all = new long[1000];
+    TopItineraries top = new TopItineraries(10);
+    for (int i = 0; i < all.length; i++) {
+      all[i] = TopItineraries.key(random.nextInt(600), i, TopItineraries.NO_LEG);
+      top.offer(all[i]);
+    }
+    Arrays.sort(all);
+    assertTrue(top.isFull());
+    assertArrayEquals(Arrays.copyOf(all, 10), top.toSortedArray());
+    assertEquals(all[9], top.max());
+  }
+
+  @Test
+  public void growsAsKeysArriveUpToAnyLimit() {
+    TopItineraries top = new TopItineraries(Integer.MAX_VALUE);
+    long[] all = new long[1000];
+    for (int i = 0; i < all.length; i++) {
+      all[i] = TopItineraries.key(all.length - i, i, TopItineraries.NO_LEG);
+      assertTrue(top.offer(all[i]));
+    }
+    Arrays.sort(all);
+    assertFalse(top.isFull());
+    assertArrayEquals(all, top.toSortedArray());
+  }
+
+  @Test
+  public void rejectsKeysThatCannotMakeIt() {
+    TopItineraries top = new TopItineraries(1);
+    assertTrue(top.offer(5));
+    assertFalse(top.offer(6));
+    assertTrue(top.offer(4));
+    assertFalse(new TopItineraries(0).offer(1));
+  }
+}
@@ -0,0 +1,67 @@
+package edu.uw.cs;
+
+import org.junit.*;
+
+import java.sql.*;
+import java.util.concurrent.atomic.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks which errors are retried and how the attempts are counted
+ */
+public class TransactionRetryTest {
+  private static final SQLException DEADLOCK = new SQLException("deadlock victim", "40001", 1205);
+
+  @Test
+  public void classifiesDeadlocksAndSerializationFailures() {
+    assertTrue(TransactionRetry.isRetryable(DEADLOCK));
+    assertTrue(TransactionRetry.isRetryable(new SQLException("snapshot conflict", "S0001", 3960)));
+    assertTrue(TransactionRetry.isRetryable(new SQLException("h2 deadlock", "40001", 40001)));
+    assertFalse(TransactionRetry.isRetryable(new SQLException("duplicate key", "23000", 2627)));
+
+    SQLException batch = new SQLException("batch failed", "S0001", 0);
+    batch.setNextException(new SQLException("deadlock victim", "S0001", 1205));
+    assertTrue(TransactionRetry.isRetryable(batch));
+    assertTrue(TransactionRetry.isRetryable(new SQLException("wrapped", "S0001", 0, DEADLOCK)));
+  }
+
+  @Test
+  public void retriesUntilTheBodySucceeds() {
+    TransactionRetry retry = new TransactionRetry(5, 1, 4);
+    AtomicInteger calls = new AtomicInteger();
+    assertEquals("ok", retry.run(TransactionType.BOOK, null, "failed", () -> {
+      if (calls.incrementAndGet() < 3) {
+        throw DEADLOCK;
+      }
+      return "ok";
+    }));
+    assertEquals(3, retry.attempts(TransactionType.BOOK));
+    assertEquals(2, retry.retries(TransactionType.BOOK));
+    assertEquals(0, retry.aborts(TransactionType.BOOK));
+    assertEquals(2, retry.mbean().getRetries());
+  }
+
+  @Test
+  public void givesUpAfterMaxAttempts() {
+    TransactionRetry retry = new TransactionRetry(3, 0, 0);
+    assertEquals("failed", retry.run(TransactionType.PAY, null, "failed", () -> {
+      throw DEADLOCK;
+    }));
+    assertEquals(3, retry.attempts(TransactionType.PAY));
+    assertEquals(1, retry.aborts(TransactionType.PAY));
+  }
+
+  @Test
+  public void doesNotRetryFatalErrors() {
+    TransactionRetry retry = new TransactionRetry(3, 0, 0);
+    assertEquals("failed", retry.run(TransactionType.CANCEL, null, "failed", () -> {
+      throw new SQLException("syntax error", "42000", 102);
+    }));
+    assertEquals(1, retry.attempts(TransactionType.CANCEL));
+    assertEquals(1, retry.fatal(TransactionType.CANCEL));
+    assertTrue(retry.metrics().contains("cancel=[attempts=1 retries=0 aborts=0 fatal=1]"));
+  }
+}